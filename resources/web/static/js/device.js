@@ -48,6 +48,8 @@ class DeviceWindow {
         this.rotate = false // 屏幕是否旋转，默认=false=竖屏
         this.keyMap = false // 是否键盘映射
         this.displaySize = defaultDisplaySize
+        this.source = "minicap" // 采集源 minicap(jpg) 或 h264(scrcpy)
+        this.mode = "" // tile 为脏块增量模式，只接收变化的块
     }
 
     resize(setCenter = true) {
@@ -150,7 +152,7 @@ window.onload = function() {
 
     $('#rotateCheckBox').on('click', function() {
         deviceWindow.rotate = $('#rotateCheckBox').prop('checked')
-        net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale}})
+        net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale, source: deviceWindow.source, mode: deviceWindow.mode}})
         // 隐藏设置窗口
         $('#myModal').modal('hide')
         // 显示等待capservice窗口
@@ -181,7 +183,7 @@ window.onload = function() {
         // vue
         title.outputScale = scale
         
-        net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale}})
+        net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale, source: deviceWindow.source, mode: deviceWindow.mode}})
         // 隐藏设置窗口
         $('#myModal').modal('hide')
         // 显示等待capservice窗口
@@ -194,6 +196,12 @@ window.onload = function() {
         w: deviceInfo.physicsSize.w * scale, 
         h: deviceInfo.physicsSize.h * scale
     })
+    if (urlParams.source) {
+        deviceWindow.source = urlParams.source
+    }
+    if (urlParams.mode) {
+        deviceWindow.mode = urlParams.mode
+    }
 
     deviceWindow.resize()
 
@@ -204,7 +212,18 @@ window.onload = function() {
     net = new NetWork(ip, port)
     net.connect({
         onopen() {
-            net.request("M_WAIT", {sn: deviceInfo.serialNumber})
+            if (urlParams.replay) {
+                // 回放录像: ?sn=xx&w=..&h=..&replay=录像名&offset=ms&speed=倍速
+                net.request("M_REPLAY", {
+                    action: "start",
+                    sn: deviceInfo.serialNumber,
+                    session: urlParams.replay,
+                    offset: parseInt(urlParams.offset || 0),
+                    speed: parseFloat(urlParams.speed || 1)
+                })
+            } else {
+                net.request("M_WAIT", {sn: deviceInfo.serialNumber})
+            }
         },
         onclose() {
             deviceWindow.win.close()
@@ -240,11 +259,17 @@ window.onload = function() {
                     case 0x0011:
                         self.SM_JPG(data.slice(6))
                     break;
+                    case 0x0012:
+                        self.SM_H264(data)
+                    break;
+                    case 0x0014:
+                        self.SM_TILE(data)
+                    break;
                 }
             }
         },
         SM_OPENED(body) {
-            net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale}})
+            net.request("M_START", {type: "cap", config: {rotate: deviceWindow.rotate ? 90 : 0, scale: deviceWindow.scale, source: deviceWindow.source, mode: deviceWindow.mode}})
             net.request("M_START", {type: "event"})
         },
         SM_SERVICE_STATE(body) {
@@ -281,12 +306,141 @@ window.onload = function() {
 
             this.M_WAITTING()
         },
+        SM_H264(blob) {
+            let fr = new FileReader()
+            fr.readAsArrayBuffer(blob)
+            fr.onload = function() {
+                h264Player.decode(fr.result)
+            }
+        },
+        SM_TILE(blob) {
+            let fr = new FileReader()
+            fr.readAsArrayBuffer(blob)
+            fr.onload = function() {
+                tilePlayer.decode(fr.result)
+            }
+        },
         M_WAITTING() {
             net.request("M_WAITTING", null)
         }
     })
 }
 
+/**
+ * 脏块增量模式，把收到的块画到和设备画面一样大的离屏画布上，再缩放到显示画布
+ * 数据格式: head(2) + len(4) + flags(1, bit0 关键帧) + w(2) + h(2) + count(2) + count * [x(2) y(2) w(2) h(2) len(4)] + 各块的JPG
+ */
+let tilePlayer = {
+    screen: document.createElement('canvas'),
+    // 块的图片异步加载，按消息顺序绘制
+    pending: Promise.resolve(),
+
+    decode(buffer) {
+        let view = new DataView(buffer)
+        let w = view.getUint16(7, true)
+        let h = view.getUint16(9, true)
+        let count = view.getUint16(11, true)
+        let tiles = []
+        let offset = 13 + count * 12
+        for (let i = 0; i < count; i++) {
+            let p = 13 + i * 12
+            let len = view.getUint32(p + 8, true)
+            let blob = new Blob([new Uint8Array(buffer, offset, len)], {type: 'image/jpeg'})
+            tiles.push({x: view.getUint16(p, true), y: view.getUint16(p + 2, true), blob: blob})
+            offset += len
+        }
+        let bitmaps = Promise.all(tiles.map(t => createImageBitmap(t.blob)))
+        this.pending = this.pending.then(() => bitmaps).then(images => {
+            let screen = this.screen
+            if (screen.width != w || screen.height != h) {
+                screen.width = w
+                screen.height = h
+            }
+            let sg = screen.getContext('2d')
+            images.forEach((img, i) => sg.drawImage(img, tiles[i].x, tiles[i].y))
+            canvas.width = parseInt(deviceWindow.displaySize.w)
+            canvas.height = parseInt(deviceWindow.displaySize.h)
+            g.drawImage(screen, 0, 0, canvas.width, canvas.height)
+            canvas.img = screen
+        }).catch(e => console.warn(e))
+    }
+}
+
+/**
+ * 使用 WebCodecs 解码 scrcpy 的 H.264 数据
+ * 数据格式: head(2) + len(4) + flags(1, bit0 config, bit1 关键帧) + pts(8) + Annex B 数据
+ */
+let h264Player = {
+    decoder: null,
+    config: null,
+
+    decode(buffer) {
+        if (typeof VideoDecoder == 'undefined') {
+            console.warn("当前浏览器不支持 WebCodecs")
+            return
+        }
+        let view = new DataView(buffer)
+        let flags = view.getUint8(6)
+        let pts = view.getUint32(7, true) + view.getUint32(11, true) * 4294967296
+        let payload = new Uint8Array(buffer, 15)
+
+        if (flags & 1) {
+            this.configure(payload)
+            return
+        }
+        if (!this.decoder || this.decoder.state != 'configured') {
+            return
+        }
+        let key = (flags & 2) != 0
+        let data = payload
+        if (key && this.config) {
+            // Annex B 格式没有 description，关键帧前带上 SPS/PPS
+            data = new Uint8Array(this.config.length + payload.length)
+            data.set(this.config, 0)
+            data.set(payload, this.config.length)
+        }
+        this.decoder.decode(new EncodedVideoChunk({type: key ? 'key' : 'delta', timestamp: pts, data: data}))
+    },
+
+    configure(config) {
+        let sps = this.findNal(config, 7)
+        if (sps < 0) {
+            return
+        }
+        let hex = (b) => ('0' + b.toString(16)).slice(-2)
+        let codec = 'avc1.' + hex(config[sps + 1]) + hex(config[sps + 2]) + hex(config[sps + 3])
+        this.config = config.slice()
+        if (this.decoder) {
+            this.decoder.close()
+        }
+        this.decoder = new VideoDecoder({
+            output(frame) {
+                canvas.width = parseInt(deviceWindow.displaySize.w);
+                canvas.height = parseInt(deviceWindow.displaySize.h);
+                g.drawImage(frame, 0, 0, canvas.width, canvas.height);
+                frame.close()
+            },
+            error(e) {
+                console.warn("h264 decode error: " + e)
+            }
+        })
+        this.decoder.configure({codec: codec, optimizeForLatency: true})
+    },
+
+    // 返回NAL头所在的位置
+    findNal(data, type) {
+        for (let i = 0; i + 3 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if ((data[i + 3] & 0x1f) == type) {
+                    return i + 3
+                }
+                i += 2
+            }
+        }
+        return -1
+    }
+}
+
 /**
  * 返回url参数组成的js对象
  */
@@ -4,6 +4,9 @@
 
 let scale = 0.15
 
+// index.html?wall=30 时通过一个websocket实时刷新所有设备的缩略图，数值为所有设备的总帧率
+let wallFps = parseInt(new URLSearchParams(window.location.search).get('wall')) || 0
+
 let device_list = new Vue({
     el: '#phone-list',
     data: {
@@ -34,6 +37,7 @@ class NetWork {
 
     connect(config) {
         let webSocket = new WebSocket("ws://" + this.ip + ":" + this.port)
+        webSocket.binaryType = 'arraybuffer'
         webSocket.onopen = function() {
             config.onopen()
         }
@@ -58,6 +62,7 @@ class Device {
         this.h = configObject.h
         this.sn = configObject.sn
         this.server = server
+        this.shot = null // 缩略图墙的最新画面
     }
 }
 
@@ -77,6 +82,9 @@ class Server {
                 self.connected = true
                 // 请求获取设备列表
                 net.request("M_DEVICES", null)
+                if (wallFps > 0) {
+                    net.request("M_WALL", {action: "start", scale: 0.1, fps: wallFps})
+                }
             },
             onclose() {
                 self.connected = false
@@ -103,6 +111,21 @@ class Server {
                 func.call(this, body)
             },
             onbinary(data) {
+                let view = new DataView(data)
+                // SM_WALL_JPG: 类型(2) + 长度(4) + 序列号长度(1) + 序列号 + JPG
+                if (view.getUint16(0, true) != 0x0013) {
+                    return
+                }
+                let snLen = view.getUint8(6)
+                let sn = new TextDecoder().decode(new Uint8Array(data, 7, snLen))
+                let device = self.devices.find(d => d.sn == sn)
+                if (!device) {
+                    return
+                }
+                if (device.shot) {
+                    URL.revokeObjectURL(device.shot)
+                }
+                device.shot = URL.createObjectURL(new Blob([data.slice(7 + snLen)], {type: 'image/jpeg'}))
             },
             SM_DEVICES(body) {
                 let devicesConf = JSON.parse(body);
@@ -0,0 +1,233 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.yeetor.bench;
+
+import com.yeetor.adb.AdbSync;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用模拟的sync:服务检查 AdbSync 的push和STAT，并测量push的吞吐
+ *
+ * 模拟设备按序列号区分：
+ * fast   不限速
+ * slow   每秒只读取约512KB，写出去一部分就算有进展，不会超时
+ * finish 收到DONE后按2MB/s模拟写存储再回复OKAY，最后的应答按文件大小留时间
+ * stall  一直不读取，push在空闲超时后失败
+ *
+ * 用法: ANDROID_ADB_SERVER_PORT=15037 java -cp ... com.yeetor.bench.AdbSyncBenchmark [文件大小MB]
+ */
+public class AdbSyncBenchmark {
+
+    private static final long IDLE_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 32) * 1024 * 1024;
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (port == null) {
+            System.err.println("set ANDROID_ADB_SERVER_PORT to a free port first");
+            return;
+        }
+        byte[] content = new byte[size];
+        new Random(1).nextBytes(content);
+        File big = File.createTempFile("adb-sync-bench", ".bin");
+        File small = File.createTempFile("adb-sync-bench", ".bin");
+        big.deleteOnExit();
+        small.deleteOnExit();
+        Files.write(big.toPath(), content);
+        Files.write(small.toPath(), Arrays.copyOf(content, 4 * 1024 * 1024));
+
+        StandInSync sync = new StandInSync();
+        try (StandInAdbServer server = new StandInAdbServer(Integer.parseInt(port), sync)) {
+            push("fast", big, content.length, sync);
+            checkStat();
+            push("slow", small, small.length(), sync);
+            push("finish", small, small.length(), sync);
+            checkStall(big);
+
+            int rounds = 5;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                try (AdbSync s = AdbSync.open("fast")) {
+                    s.push(big, "/data/local/tmp/bench", 0644, IDLE_MS);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("push throughput: %.1f MB/s%n", (double) rounds * size / 1024 / 1024 / seconds);
+        }
+        System.exit(0);
+    }
+
+    private static void push(String serialNumber, File file, long expected, StandInSync sync) throws IOException {
+        long start = System.nanoTime();
+        long bytes;
+        try (AdbSync s = AdbSync.open(serialNumber)) {
+            bytes = s.push(file, "/data/local/tmp/" + serialNumber, 0755, IDLE_MS);
+        }
+        byte[] received = sync.files.get("/data/local/tmp/" + serialNumber);
+        if (bytes != expected || received == null || !Arrays.equals(received, Files.readAllBytes(file.toPath()))) {
+            throw new AssertionError(serialNumber + ": pushed content does not match");
+        }
+        System.out.printf("%s: %d KB pushed in %d ms with %d ms idle timeout%n",
+                serialNumber, bytes / 1024, (System.nanoTime() - start) / 1000000, IDLE_MS);
+    }
+
+    private static void checkStat() throws IOException {
+        try (AdbSync s = AdbSync.open("fast")) {
+            List<AdbSync.FileStat> stats = s.stat(Arrays.asList("/data/local/tmp/fast", "/data/local/tmp/missing"));
+            AdbSync.FileStat stat = stats.get(0);
+            if (!stat.exists() || (stat.mode & 0777) != 0755 || stats.get(1).exists()) {
+                throw new AssertionError("unexpected STAT result");
+            }
+        }
+        System.out.println("stat: ok");
+    }
+
+    private static void checkStall(File file) throws IOException {
+        long start = System.nanoTime();
+        try (AdbSync s = AdbSync.open("stall")) {
+            s.push(file, "/data/local/tmp/stall", 0644, IDLE_MS);
+        } catch (IOException e) {
+            System.out.printf("stall: failed after %d ms (%s)%n", (System.nanoTime() - start) / 1000000, e.getMessage());
+            return;
+        }
+        throw new AssertionError("push to a stalled device should fail");
+    }
+
+    /**
+     * sync: 服务，收到的文件保存在内存里
+     */
+    private static class StandInSync implements StandInAdbServer.Service {
+        final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        final Map<String, Integer> modes = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean accept(String service) {
+            return service.equals("sync:");
+        }
+
+        @Override
+        public void serve(String serialNumber, String service, InputStream input, OutputStream out) throws IOException {
+            DataInputStream in = new DataInputStream(input);
+            if ("stall".equals(serialNumber)) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                }
+                return;
+            }
+            while (true) {
+                String id = readId(in);
+                byte[] body = new byte[readLength(in)];
+                in.readFully(body);
+                String path = new String(body, StandardCharsets.UTF_8);
+                switch (id) {
+                    case "STAT":
+                        byte[] file = files.get(path);
+                        out.write(message("STAT", file == null ? 0 : 0100000 | modes.get(path), file == null ? 0 : file.length, 0));
+                        out.flush();
+                        break;
+                    case "SEND":
+                        int comma = path.lastIndexOf(',');
+                        receive(serialNumber, path.substring(0, comma), Integer.parseInt(path.substring(comma + 1)), in, out);
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        private void receive(String serialNumber, String path, int mode, DataInputStream in, OutputStream out) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                String id = readId(in);
+                int length = readLength(in);
+                if ("DONE".equals(id)) {
+                    break;
+                }
+                if (!"DATA".equals(id) || length > buffer.length) {
+                    throw new IOException("unexpected " + id);
+                }
+                if ("slow".equals(serialNumber)) {
+                    // 每次8KB，约512KB/s
+                    for (int off = 0; off < length; off += 8192) {
+                        int n = Math.min(8192, length - off);
+                        in.readFully(buffer, off, n);
+                        sleep(16);
+                    }
+                } else {
+                    in.readFully(buffer, 0, length);
+                }
+                data.write(buffer, 0, length);
+            }
+            if ("finish".equals(serialNumber)) {
+                sleep(data.size() * 1000L / (2 * 1024 * 1024));
+            }
+            files.put(path, data.toByteArray());
+            modes.put(path, mode);
+            out.write(message("OKAY", 0));
+            out.flush();
+        }
+
+        private static String readId(DataInputStream in) throws IOException {
+            byte[] id = new byte[4];
+            in.readFully(id);
+            return new String(id, StandardCharsets.US_ASCII);
+        }
+
+        private static int readLength(DataInputStream in) throws IOException {
+            return Integer.reverseBytes(in.readInt());
+        }
+
+        private static byte[] message(String id, int... values) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(id.getBytes(StandardCharsets.US_ASCII));
+            for (int v : values) {
+                buffer.putInt(v);
+            }
+            return buffer.array();
+        }
+
+        private static void sleep(long ms) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.bench;
+
+import com.yeetor.minicap.Banner;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.MinicapFrameDecoder;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 对比解析minicap数据流每帧的分配量和耗时
+ *
+ * old:      原来的 DataReader + ImageParser，每4KB一个byte[]放进队列，mergeArray拼出整帧后再拷贝一次
+ * new:      MinicapFrameDecoder 在复用的缓冲区上原地切片
+ * new+hold: 同上，但一直持有最近一帧（以前CaptureSession的做法），缓冲区无法回绕，只能从内存池换新的
+ *
+ * 用法: java -cp ... com.yeetor.bench.FrameParseBenchmark [帧大小KB] [帧数]
+ */
+public class FrameParseBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 100) * 1024;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        byte[] stream = minicapStream(size, frames);
+
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            legacy(stream);
+            decoder(stream, false);
+            decoder(stream, true);
+        }
+
+        long bytes = JpgSendBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        int n = legacy(stream);
+        report("old", start, JpgSendBenchmark.allocatedBytes() - bytes, n, 0);
+
+        for (boolean hold : new boolean[] {false, true}) {
+            long swapped = Metrics.counter("capture.decoder.ring.swapped").get();
+            bytes = JpgSendBenchmark.allocatedBytes();
+            start = System.nanoTime();
+            n = decoder(stream, hold);
+            report(hold ? "new+hold" : "new", start, JpgSendBenchmark.allocatedBytes() - bytes, n,
+                    Metrics.counter("capture.decoder.ring.swapped").get() - swapped);
+        }
+    }
+
+    private static void report(String name, long start, long bytes, int frames, long swapped) {
+        System.out.printf("%s: %d bytes/frame (heap), %.2f us/frame, %d frames, ring swapped %d times%n",
+                name, bytes / frames, (System.nanoTime() - start) / 1000.0 / frames, frames, swapped);
+    }
+
+    /**
+     * banner + 每帧4字节长度和jpg数据
+     */
+    private static byte[] minicapStream(int size, int frames) {
+        byte[] body = new byte[size];
+        new Random(1).nextBytes(body);
+        body[0] = (byte) 0xFF;
+        body[1] = (byte) 0xD8;
+        body[2] = (byte) 0xFF;
+        byte[] stream = new byte[24 + frames * (4 + size)];
+        stream[0] = 1;
+        stream[1] = 24;
+        int pos = 24;
+        for (int i = 0; i < frames; i++) {
+            stream[pos] = (byte) size;
+            stream[pos + 1] = (byte) (size >> 8);
+            stream[pos + 2] = (byte) (size >> 16);
+            stream[pos + 3] = (byte) (size >> 24);
+            System.arraycopy(body, 0, stream, pos + 4, size);
+            pos += 4 + size;
+        }
+        return stream;
+    }
+
+    private static int decoder(byte[] stream, boolean hold) throws IOException {
+        int[] count = {0};
+        JpgFrame[] held = {null};
+        MinicapFrameDecoder decoder = new MinicapFrameDecoder(new MinicapFrameDecoder.Handler() {
+            @Override
+            public void onBanner(Banner banner) {
+            }
+
+            @Override
+            public void onFrame(JpgFrame frame) {
+                count[0]++;
+                if (hold) {
+                    if (held[0] != null) {
+                        held[0].release();
+                    }
+                    held[0] = frame.retain();
+                }
+            }
+        });
+        InputStream in = new ByteArrayInputStream(stream);
+        while (decoder.readFrom(in) >= 0) {
+        }
+        if (held[0] != null) {
+            held[0].release();
+        }
+        decoder.release();
+        return count[0];
+    }
+
+    /**
+     * 原来 Minicap.DataReader 和 Minicap.ImageParser 的解析逻辑，两个线程之间的队列改为在同一线程里交替读写
+     */
+    private static int legacy(byte[] stream) throws IOException {
+        BlockingQueue<byte[]> dataQueue = new LinkedBlockingQueue<byte[]>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        LegacyParser parser = new LegacyParser();
+        while (true) {
+            byte[] buffer = new byte[4096];
+            int len = in.read(buffer);
+            if (len == -1) {
+                return parser.frames;
+            }
+            dataQueue.add(len == 4096 ? buffer : Util.subArray(buffer, 0, len));
+            parser.parse(dataQueue.poll());
+        }
+    }
+
+    private static class LegacyParser {
+        int readn = 0;
+        int bannerLen = 2;
+        int readFrameBytes = 0;
+        int frameBodyLength = 0;
+        byte[] frameBody = new byte[0];
+        int frames = 0;
+
+        void parse(byte[] buffer) {
+            int length = buffer.length;
+            for (int cursor = 0; cursor < length;) {
+                int ch = buffer[cursor] & 0xff;
+                if (readn < bannerLen) {
+                    if (cursor == 1) {
+                        bannerLen = ch;
+                    }
+                    ++readn;
+                    ++cursor;
+                } else if (readFrameBytes < 4) {
+                    frameBodyLength += (ch << (readFrameBytes * 8));
+                    cursor += 1;
+                    readFrameBytes += 1;
+                } else {
+                    if (length - cursor >= frameBodyLength) {
+                        byte[] subByte = Arrays.copyOfRange(buffer, cursor, cursor + frameBodyLength);
+                        frameBody = Util.mergeArray(frameBody, subByte);
+                        if ((frameBody[0] != -1) || frameBody[1] != -40) {
+                            return;
+                        }
+                        byte[] finalBytes = Arrays.copyOfRange(frameBody, 0, frameBody.length);
+                        if (finalBytes.length > 0) {
+                            frames++;
+                        }
+                        cursor += frameBodyLength;
+                        frameBodyLength = 0;
+                        readFrameBytes = 0;
+                        frameBody = new byte[0];
+                    } else {
+                        byte[] subByte = Arrays.copyOfRange(buffer, cursor, length);
+                        frameBody = Util.mergeArray(frameBody, subByte);
+                        frameBodyLength -= (length - cursor);
+                        readFrameBytes += (length - cursor);
+                        cursor = length;
+                    }
+                }
+            }
+        }
+    }
+}
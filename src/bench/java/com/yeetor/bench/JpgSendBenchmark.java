@@ -0,0 +1,109 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.bench;
+
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.protocol.BinaryProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 对比发送 SM_JPG 的两种方式每帧的分配量和耗时
+ *
+ * old: toByteArray + ArrayUtils.addAll + Unpooled.copiedBuffer，三次拷贝
+ * new: BinaryProtocol.newHeader + retainedDuplicate，只分配6字节的头
+ *
+ * 用法: java -cp ... com.yeetor.bench.JpgSendBenchmark [帧大小KB] [帧数]
+ */
+public class JpgSendBenchmark {
+
+    public static void main(String[] args) {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 100) * 1024;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+
+        ByteBuf source = alloc.directBuffer(size);
+        source.writerIndex(size);
+        JpgFrame frame = new JpgFrame(source, System.currentTimeMillis());
+
+        // 预热
+        run("old", frame, frames / 4, alloc, true);
+        run("new", frame, frames / 4, alloc, false);
+
+        report("old", frame, frames, alloc, true);
+        report("new", frame, frames, alloc, false);
+        frame.release();
+    }
+
+    private static void report(String name, JpgFrame frame, int frames, ByteBufAllocator alloc, boolean old) {
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        run(name, frame, frames, alloc, old);
+        long ns = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("%s: %d bytes/frame (heap), %.2f us/frame, frame=%d bytes%n",
+                name, bytes / frames, ns / 1000.0 / frames, frame.length());
+    }
+
+    private static void run(String name, JpgFrame frame, int frames, ByteBufAllocator alloc, boolean old) {
+        for (int i = 0; i < frames; i++) {
+            ByteBuf message = old ? oldMessage(frame) : newMessage(frame, alloc);
+            // 相当于写入socket后释放
+            message.release();
+        }
+    }
+
+    private static ByteBuf oldMessage(JpgFrame frame) {
+        byte[] data = frame.toByteArray();
+        byte[] head = new byte[2];
+        head[0] = (BinaryProtocol.Header.SM_JPG) & 0xff;
+        head[1] = (BinaryProtocol.Header.SM_JPG >> 8) & 0xff;
+        int len = data.length;
+        byte[] lenbuf = new byte[4];
+        lenbuf[0] = (byte) ((len) & 0xff);
+        lenbuf[1] = (byte) ((len >> 8) & 0xff);
+        lenbuf[2] = (byte) ((len >> 16) & 0xff);
+        lenbuf[3] = (byte) ((len >> 24) & 0xff);
+        byte[] d = ArrayUtils.addAll(ArrayUtils.addAll(head, lenbuf), data);
+        return Unpooled.copiedBuffer(d);
+    }
+
+    private static ByteBuf newMessage(JpgFrame frame, ByteBufAllocator alloc) {
+        ByteBuf head = BinaryProtocol.newHeader(alloc, BinaryProtocol.Header.SM_JPG, frame.length(), 0);
+        return Unpooled.wrappedBuffer(head, frame.content().retainedDuplicate());
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.bench;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.yeetor.adb.AdbConnection;
+import com.yeetor.util.Util;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * 对比两种截图方式每次的耗时和分配量（不包括设备上minicap本身的耗时）
+ *
+ * raw:    exec: 读取二进制jpg到可增长的ByteBuf，直接交给HTTP响应
+ * base64: 原来的方式。ddmlib shell: 读取 minicap -b 的base64文本，每块输出都用mergeArray拼到一个新数组，
+ *         new String 后查找jpg头，再用 sun.misc.BASE64Decoder 解码成byte[]。
+ *         JDK 9以后没有 sun.misc.BASE64Decoder，这时用 java.util.Base64 的MIME解码代替，结果会偏乐观
+ *
+ * 用法: ANDROID_ADB_SERVER_PORT=15037 java -cp ... com.yeetor.bench.ScreenshotBenchmark [jpg大小KB] [次数]
+ * 会在 ANDROID_ADB_SERVER_PORT 上启动一个模拟的adb server
+ */
+public class ScreenshotBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 300) * 1024;
+        int shots = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (port == null) {
+            System.err.println("set ANDROID_ADB_SERVER_PORT to a free port first");
+            return;
+        }
+
+        // 模拟minicap -s 的输出：一行文本 + jpg
+        byte[] jpg = new byte[size];
+        new Random(1).nextBytes(jpg);
+        jpg[0] = (byte) 0xFF;
+        jpg[1] = (byte) 0xD8;
+        jpg[2] = (byte) 0xFF;
+        byte[] banner = "PID: 1234\nINFO: (jni/minicap/minicap.cpp) taking screenshot\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] base64 = Base64.getMimeEncoder().encode(jpg);
+
+        StandInAdbServer.Service minicap = new StandInAdbServer.Service() {
+            @Override
+            public boolean accept(String service) {
+                return service.startsWith("exec:") || service.startsWith("shell:");
+            }
+
+            @Override
+            public void serve(String serialNumber, String service, InputStream in, OutputStream out) throws IOException {
+                out.write(banner);
+                out.write(service.contains(" -b") ? base64 : jpg);
+                out.flush();
+            }
+        };
+
+        try (StandInAdbServer server = new StandInAdbServer(Integer.parseInt(port), minicap)) {
+            adbAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            if (DECODE_BUFFER == null) {
+                System.out.println("sun.misc.BASE64Decoder not found, base64 uses java.util.Base64 instead");
+            }
+            run("raw", shots / 4, false);
+            run("base64", shots / 4, true);
+            report("raw", shots, false);
+            report("base64", shots, true);
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, int shots, boolean base64) throws IOException {
+        long bytes = JpgSendBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        run(name, shots, base64);
+        long ns = System.nanoTime() - start;
+        bytes = JpgSendBenchmark.allocatedBytes() - bytes;
+        System.out.printf("%s: %.2f ms/shot, %d KB allocated/shot%n", name, ns / 1e6 / shots, bytes / shots / 1024);
+    }
+
+    private static void run(String name, int shots, boolean base64) throws IOException {
+        for (int i = 0; i < shots; i++) {
+            ByteBuf jpg = base64 ? base64Shot() : rawShot();
+            if (jpg.readableBytes() < 2 || jpg.getByte(jpg.readerIndex()) != (byte) 0xFF) {
+                throw new IOException(name + ": not a jpg");
+            }
+            jpg.release();
+        }
+    }
+
+    /**
+     * 同 Minicap.takeRawScreenShot
+     */
+    private static ByteBuf rawShot() throws IOException {
+        ByteBuf output = AdbConnection.execOut("bench", "minicap -s", 10000);
+        for (int i = output.readerIndex(); i < output.writerIndex() - 1; i++) {
+            if (output.getByte(i) == (byte) 0xFF && output.getByte(i + 1) == (byte) 0xD8) {
+                output.readerIndex(i);
+                return output;
+            }
+        }
+        output.release();
+        throw new IOException("not a jpg file!");
+    }
+
+    /**
+     * 同原来的 Minicap.takeScreenShot：IDevice.executeShellCommand 最终调用的 AdbHelper.executeRemoteCommand，
+     * 输出交给原来的 BinaryOutputReceiver，最后像原来的ScreenshotCache一样包装成ByteBuf
+     */
+    private static ByteBuf base64Shot() throws IOException {
+        LegacyReceiver receiver = new LegacyReceiver();
+        try {
+            EXECUTE_REMOTE_COMMAND.invoke(null, adbAddress, "minicap -s -b", DEVICE, receiver, 0);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IOException(e);
+        }
+        byte[] bytes = receiver.output;
+        String dataStr = new String(bytes);
+        int jpgStart = dataStr.indexOf("/9j/");
+        if (jpgStart < 0) {
+            throw new IOException("not a jpg file!");
+        }
+        dataStr = dataStr.substring(jpgStart);
+        return Unpooled.wrappedBuffer(decodeBuffer(dataStr));
+    }
+
+    private static byte[] decodeBuffer(String dataStr) throws IOException {
+        if (DECODE_BUFFER == null) {
+            return Base64.getMimeDecoder().decode(dataStr);
+        }
+        try {
+            return (byte[]) DECODE_BUFFER.invoke(DECODE_BUFFER.getDeclaringClass().newInstance(), dataStr);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 原来的 BinaryOutputReceiver：每块输出都复制一次再和之前的全部输出合并
+     */
+    private static class LegacyReceiver implements IShellOutputReceiver {
+        byte[] output = new byte[0];
+
+        @Override
+        public void addOutput(byte[] bytes, int offest, int len) {
+            byte[] b = Arrays.copyOfRange(bytes, offest, offest + len);
+            output = Util.mergeArray(output, b);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    private static InetSocketAddress adbAddress;
+
+    private static final IDevice DEVICE = ShellSessionBenchmark.fakeDevice("bench");
+
+    private static final Method EXECUTE_REMOTE_COMMAND;
+    private static final Method DECODE_BUFFER;
+
+    static {
+        try {
+            EXECUTE_REMOTE_COMMAND = Class.forName("com.android.ddmlib.AdbHelper").getDeclaredMethod("executeRemoteCommand",
+                    InetSocketAddress.class, String.class, IDevice.class, IShellOutputReceiver.class, int.class);
+            EXECUTE_REMOTE_COMMAND.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        Method decodeBuffer;
+        try {
+            decodeBuffer = Class.forName("sun.misc.BASE64Decoder").getMethod("decodeBuffer", String.class);
+        } catch (ReflectiveOperationException e) {
+            decodeBuffer = null;
+        }
+        DECODE_BUFFER = decodeBuffer;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.bench;
+
+import com.android.ddmlib.IDevice;
+import com.yeetor.adb.AdbConnection;
+import com.yeetor.adb.ShellSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比每个命令新建exec:连接和常驻shell（逐个等待、流水线）的耗时
+ *
+ * 模拟的adb server把 exec:sh 接到本机的 /bin/sh，exec:<cmd> 用 sh -c 执行，不包括设备上的开销。
+ * 另外检查不完整的引号、exit、cd 不影响后面的命令，设备不读取输入时提交命令不阻塞，
+ * 一个命令超时后排在后面的命令在新的会话里照常执行
+ *
+ * 用法: ANDROID_ADB_SERVER_PORT=15037 java -cp ... com.yeetor.bench.ShellSessionBenchmark [命令数]
+ */
+public class ShellSessionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (port == null) {
+            System.err.println("set ANDROID_ADB_SERVER_PORT to a free port first");
+            return;
+        }
+        try (StandInAdbServer server = new StandInAdbServer(Integer.parseInt(port), new LocalShell())) {
+            IDevice device = fakeDevice("bench");
+            check(device);
+            checkStall(fakeDevice("stall"));
+            checkRequeue(device);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < count / 5; i++) {
+                AdbConnection.execOut("bench", "echo " + i, 5000).release();
+            }
+            report("fresh exec connection", start, count / 5);
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                expect(ShellSession.execute(device, "echo " + i).get(), i + "\n");
+            }
+            report("session sequential", start, count);
+
+            start = System.nanoTime();
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(ShellSession.execute(device, "echo " + i));
+            }
+            for (int i = 0; i < count; i++) {
+                expect(futures.get(i).get(), i + "\n");
+            }
+            report("session pipelined", start, count);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 这些命令只影响自己，之后的命令照常执行
+     */
+    private static void check(IDevice device) throws Exception {
+        String[] unsafe = {"echo '", "echo \"", "echo \\", "}", ")", "exit 3", "cd /", "export BENCH=1", "input text hello;exit"};
+        for (String command : unsafe) {
+            ShellSession.execute(device, command).get(5, TimeUnit.SECONDS);
+        }
+        expect(ShellSession.execute(device, "echo ok; echo ${BENCH:-unset}").get(5, TimeUnit.SECONDS), "ok\nunset\n");
+        expect(ShellSession.execute(device, "echo 'it'\\''s'").get(5, TimeUnit.SECONDS), "it's\n");
+        System.out.println("unsafe commands: ok");
+    }
+
+    /**
+     * 设备不读取输入时提交不阻塞，新的会话同样卡住，每个命令到各自的超时失败
+     */
+    private static void checkStall(IDevice device) throws Exception {
+        String big = "echo " + new String(new char[64 * 1024]).replace('\0', 'x');
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(ShellSession.execute(device, big, 1000));
+        }
+        long submitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int failed = 0;
+        for (CompletableFuture<String> f : futures) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        long failMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("stalled device: 8 x 64KB submitted in %d ms, %d failed after %d ms%n", submitMs, failed, failMs);
+        if (failed != futures.size()) {
+            throw new AssertionError("commands to a stalled device should fail");
+        }
+    }
+
+    /**
+     * 超时的命令单独失败，后面的命令转到新的会话
+     */
+    private static void checkRequeue(IDevice device) throws Exception {
+        CompletableFuture<String> slow = ShellSession.execute(device, "sleep 3", 500);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(ShellSession.execute(device, "echo " + i, 5000));
+        }
+        try {
+            slow.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("sleep 3 should time out");
+        } catch (ExecutionException e) {
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            expect(futures.get(i).get(5, TimeUnit.SECONDS), i + "\n");
+        }
+        System.out.println("commands behind a timed out one: ok");
+    }
+
+    private static void expect(String actual, String expected) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError("expect [" + expected + "] got [" + actual + "]");
+        }
+    }
+
+    private static void report(String name, long start, int count) {
+        System.out.printf("%s: %.3f ms/cmd%n", name, (System.nanoTime() - start) / 1e6 / count);
+    }
+
+    /**
+     * 只实现了 getSerialNumber 的IDevice
+     */
+    static IDevice fakeDevice(String serialNumber) {
+        return (IDevice) Proxy.newProxyInstance(ShellSessionBenchmark.class.getClassLoader(), new Class<?>[] {IDevice.class},
+                (proxy, method, params) -> "getSerialNumber".equals(method.getName()) || "toString".equals(method.getName()) ? serialNumber : null);
+    }
+
+    /**
+     * exec: 服务交给本机的sh执行；"stall"设备的shell不读取输入
+     */
+    private static class LocalShell implements StandInAdbServer.Service {
+        @Override
+        public boolean accept(String service) {
+            return service.startsWith("exec:");
+        }
+
+        @Override
+        public void serve(String serialNumber, String service, InputStream in, OutputStream out) throws IOException {
+            if ("stall".equals(serialNumber)) {
+                // 设备卡住，一直不读取
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                }
+                return;
+            }
+            String command = service.substring("exec:".length());
+            Process process = new ProcessBuilder("sh", "-c", command).redirectErrorStream(true).start();
+            Thread pump = new Thread(() -> copy(process.getInputStream(), out), "stand-in-sh-out");
+            pump.start();
+            try {
+                copy(in, process.getOutputStream());
+            } finally {
+                process.destroy();
+            }
+        }
+
+        private static void copy(InputStream in, OutputStream out) {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } catch (IOException e) {
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
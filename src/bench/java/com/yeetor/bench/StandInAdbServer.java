@@ -0,0 +1,127 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.bench;
+
+import com.yeetor.util.NamedThreadFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本地模拟的adb server，用于在没有设备的情况下测试adb协议的客户端
+ *
+ * host:transport:<序列号> 总是成功，之后的服务请求交给 {@link Service} 处理，处理前已经回复了 OKAY。
+ * 客户端通过环境变量 ANDROID_ADB_SERVER_PORT 连接到这里
+ */
+public class StandInAdbServer implements Closeable {
+
+    public interface Service {
+        /**
+         * @return false表示不支持这个服务，回复FAIL
+         */
+        boolean accept(String service);
+
+        /**
+         * @param serialNumber host:transport 选择的设备
+         */
+        void serve(String serialNumber, String service, InputStream in, OutputStream out) throws IOException;
+    }
+
+    private final ServerSocket server;
+    private final Service service;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new NamedThreadFactory("stand-in-adb"));
+
+    public StandInAdbServer(int port, Service service) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.service = service;
+        executor.execute(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                // adb server对本地连接关闭了Nagle
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            String serialNumber = null;
+            while (true) {
+                String request = readRequest(in);
+                if (request.startsWith("host:transport")) {
+                    serialNumber = request.startsWith("host:transport:") ? request.substring("host:transport:".length()) : null;
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    continue;
+                }
+                if (!service.accept(request)) {
+                    out.write("FAIL0006closed".getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                service.serve(serialNumber, request, in, out);
+                return;
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] body = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+        in.readFully(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        executor.shutdownNow();
+    }
+}
@@ -27,7 +27,9 @@
 package com.yeetor;
 
 import com.yeetor.adb.AdbServer;
+import com.yeetor.adb.ForwardRegistry;
 import com.yeetor.server.AndroidControlServer;
+import com.yeetor.server.ServicesPool;
 import com.yeetor.util.JarTool;
 import org.apache.log4j.Logger;
 
@@ -53,6 +55,12 @@ public class Main {
         // 同步ADB的设备列表
         AdbServer.server().listenADB();
 
+        // 接管adb上已有的forward
+        ForwardRegistry.getInstance();
+
+        // 提前给所有设备安装minicap等程序
+        ServicesPool.getInstance().getProvisioningService().start();
+
 
         AndroidControlServer server = new AndroidControlServer();
         server.listen(6655);
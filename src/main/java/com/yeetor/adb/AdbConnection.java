@@ -0,0 +1,208 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.yeetor.util.NamedThreadFactory;
+
+/**
+ * 直接与adb server通讯的连接，不经过ddmlib
+ *
+ * 协议：请求为 4位十六进制长度 + 内容，adb server 回复 OKAY 或 FAIL + 4位十六进制长度 + 错误信息
+ * 参考 https://android.googlesource.com/platform/packages/modules/adb/+/refs/heads/main/SERVICES.TXT
+ */
+public class AdbConnection implements Closeable {
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_PORT = 5037;
+
+    // 超时后直接关闭连接，阻塞的读写会抛出 AsynchronousCloseException
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("adb-watchdog"));
+
+    private final SocketChannel channel;
+    private ScheduledFuture<?> deadline;
+
+    private AdbConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public static AdbConnection open() throws IOException {
+        return new AdbConnection(SocketChannel.open(new InetSocketAddress(DEFAULT_HOST, getAdbPort())));
+    }
+
+    /**
+     * 连接adb server并切换到指定设备，之后发送的请求都由设备上的adbd处理
+     */
+    public static AdbConnection openTransport(String serialNumber) throws IOException {
+        AdbConnection connection = open();
+        try {
+            connection.request("host:transport:" + serialNumber);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    static int getAdbPort() {
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (port != null) {
+            try {
+                return Integer.parseInt(port.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return DEFAULT_PORT;
+    }
+
+    /**
+     * 在设备上执行命令，输出为原始二进制数据（不经过pty，不会转换换行符）
+     * @param timeoutMs 整个命令的超时时间，0表示不超时
+     * @return 命令的标准输出，堆内存ByteBuf，容量按需增长
+     */
+    public static ByteBuf execOut(String serialNumber, String command, long timeoutMs) throws IOException {
+        AdbConnection connection = openTransport(serialNumber);
+        try {
+            connection.setTimeout(timeoutMs);
+            connection.request("exec:" + command);
+            ByteBuf output = Unpooled.buffer(256 * 1024);
+            try {
+                connection.readFully(output);
+            } catch (IOException e) {
+                output.release();
+                throw e;
+            }
+            return output;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * 超过指定时间后关闭连接
+     */
+    public void setTimeout(long timeoutMs) {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if (timeoutMs > 0) {
+            deadline = watchdog.schedule(this::close, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 发送请求并等待 OKAY
+     */
+    public void request(String request) throws IOException {
+        byte[] body = request.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + body.length);
+        buffer.put(String.format("%04x", body.length).getBytes(StandardCharsets.US_ASCII));
+        buffer.put(body);
+        buffer.flip();
+        write(buffer);
+        readStatus(request);
+    }
+
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 读取数据直到对方关闭连接
+     */
+    public void readFully(ByteBuf output) throws IOException {
+        while (true) {
+            output.ensureWritable(64 * 1024);
+            if (output.writeBytes(channel, output.writableBytes()) < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 读取 4位十六进制长度 + 内容 格式的应答，比如 host:list-forward
+     */
+    public String readString() throws IOException {
+        int length = Integer.parseInt(new String(readBytes(4).array(), StandardCharsets.US_ASCII), 16);
+        return new String(readBytes(length).array(), StandardCharsets.UTF_8);
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void close() {
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void readStatus(String request) throws IOException {
+        ByteBuffer status = readBytes(4);
+        String s = new String(status.array(), StandardCharsets.US_ASCII);
+        if ("OKAY".equals(s)) {
+            return;
+        }
+        if ("FAIL".equals(s)) {
+            int length = Integer.parseInt(new String(readBytes(4).array(), StandardCharsets.US_ASCII), 16);
+            String message = new String(readBytes(length).array(), StandardCharsets.UTF_8);
+            throw new IOException(String.format("adb rejected %s: %s", request, message));
+        }
+        throw new IOException(String.format("adb unexpected response to %s: %s", request, s));
+    }
+
+    private ByteBuffer readBytes(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("adb connection closed");
+            }
+        }
+        return buffer;
+    }
+}
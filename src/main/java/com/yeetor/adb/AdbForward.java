@@ -32,11 +32,21 @@ public class AdbForward {
     private String localAbstract;
 
     private boolean isForward = true;
+    // 创建时间，从adb列表解析的为0
+    private long createTime = 0;
+    // 本地端口的租约标识，见 PortAllocator
+    private String leaseOwner;
 
     public AdbForward(String serialNumber, int port, String localabstract) {
         this.serialNumber = serialNumber;
         this.port = port;
         this.localAbstract = localabstract;
+        this.createTime = System.currentTimeMillis();
+    }
+
+    public AdbForward(String serialNumber, int port, String localabstract, String leaseOwner) {
+        this(serialNumber, port, localabstract);
+        this.leaseOwner = leaseOwner;
     }
 
     public AdbForward(String str) {
@@ -78,4 +88,12 @@ public class AdbForward {
     public boolean isForward() {
         return isForward;
     }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
 }
@@ -28,8 +28,10 @@ package com.yeetor.adb;
 
 import com.android.ddmlib.*;
 import com.android.ddmlib.TimeoutException;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.NamedThreadFactory;
 import org.apache.log4j.Logger;
 
 import javax.usb.*;
@@ -37,8 +39,11 @@ import javax.usb.event.UsbServicesEvent;
 import javax.usb.event.UsbServicesListener;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 public class AdbServer {
@@ -47,12 +52,42 @@ public class AdbServer {
     private String adbPath = null;
     private String adbPlatformTools = "platform-tools";
     
-    List<AdbDevice> adbDeviceList = null;
+    private final DeviceRegistry registry = new DeviceRegistry();
+    // 并行上传文件
+    private final ExecutorService pushExecutor = Executors.newFixedThreadPool(
+            Constant.getIntProperty("adb.push.threads", 4), new NamedThreadFactory("adb-push"));
     List<IAdbServerListener> listeners = null;
 
+    // 设备连接和断开在这个线程里按顺序处理，通知监听者不阻塞ddmlib的设备监控线程
+    private final ScheduledExecutorService deviceExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("adb-device"));
+    // 创建AdbDevice要通过adb读取设备属性，比较慢，多台设备并行创建，结果再回到 deviceExecutor 里加入
+    private final ExecutorService deviceInitExecutor = Executors.newFixedThreadPool(
+            Constant.getIntProperty("adb.device.init.threads", 4), new NamedThreadFactory("adb-device-init"));
+    // 正在创建的设备，只在 deviceExecutor 里访问；创建期间断开时移除，创建结果作废。加入后完成
+    private final Map<String, CompletableFuture<Void>> pendingAdds = new HashMap<>();
+
+    // USB插入的时间，用来统计设备从插入到可用的延迟；USB拔出或超过有效期后移除
+    private static final long USB_ATTACH_EXPIRE_MS = 10 * 60 * 1000;
+    private final Map<String, UsbAttach> usbAttachTimes = new ConcurrentHashMap<>();
+
+    private static class UsbAttach {
+        final UsbDevice usbDevice;
+        final long time;
+
+        UsbAttach(UsbDevice usbDevice, long time) {
+            this.usbDevice = usbDevice;
+            this.time = time;
+        }
+    }
+
     AndroidDebugBridge adb = null;
     private boolean success = false;
 
+    /**
+     * 序列号 -> USB总线，USB设备插拔后重新扫描
+     */
+    private volatile Map<String, String> usbBuses = null;
+
     public static AdbServer server() {
         if (server == null) {
             server = new AdbServer();
@@ -68,8 +103,6 @@ public class AdbServer {
      * 监听USB设备的状态
      */
     public void listenUSB() {
-        adbDeviceList = new ArrayList<>();
-        
         UsbServices services = null;
         try {
             services = UsbHostManager.getUsbServices();
@@ -82,39 +115,64 @@ public class AdbServer {
     
     /**
      * 监听ADB
+     *
+     * 设备连接和断开由ddmlib的 IDeviceChangeListener 推送，定时的全量同步只是兜底，
+     * 用来补上可能漏掉的事件。两者都在 deviceExecutor 里执行，保证顺序
      */
     public void listenADB() {
-        new Thread() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        Thread.sleep(1500);
-                        refreshAdbDeviceList();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        AndroidDebugBridge.addDeviceChangeListener(new DeviceChangeListener());
+        // 返回时已经连接的设备都已加入
+        try {
+            List<CompletableFuture<Void>> pending = deviceExecutor.submit(() -> {
+                refreshAdbDeviceList();
+                return new ArrayList<>(pendingAdds.values());
+            }).get();
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("refresh adb devices failed", e.getCause());
+        }
+        long interval = Constant.getIntProperty("adb.reconcile.ms", 30000);
+        deviceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                int fixed = refreshAdbDeviceList();
+                if (fixed > 0) {
+                    logger.warn("adb reconcile fixed " + fixed + " device(s) missed by events");
+                    Metrics.counter("adb.device.reconciled").add(fixed);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        }.start();
+        }, interval, interval, TimeUnit.MILLISECONDS);
     }
-     
+
     /**
      * USB设备连接时调用
      */
     private void onUsbDeviceConnected(UsbDevice usbDevice) {
         logger.info(String.format("USB设备连接：idProduct(0x%x) idVendor(0x%x)", usbDevice.getUsbDeviceDescriptor().idProduct(), usbDevice.getUsbDeviceDescriptor().idVendor()));
         List<AdbDevice> devices = checkAdbDevices(usbDevice);
+        long now = System.currentTimeMillis();
+        // 一直没有通过adb连上的设备（比如没有授权）不会被 addDevice 取走
+        usbAttachTimes.values().removeIf(a -> now - a.time > USB_ATTACH_EXPIRE_MS);
+        for (AdbDevice adbDevice : devices) {
+            String serialNumber = adbDevice.getSerialNumber();
+            if (serialNumber != null) {
+                usbAttachTimes.put(serialNumber, new UsbAttach(usbDevice, now));
+            }
+        }
         devices.forEach(adbDevice -> onAdbDeviceConnected(adbDevice));
     }
     
     /**
-     * USB设备断开时调用
+     * USB设备断开时调用，ddmlib会推送断开事件，这里只是再同步一次
      */
     private void onUsbDeviceDisConnected(UsbDevice usbDevice) {
         logger.info(String.format("USB设备断开：idProduct(0x%x) idVendor(0x%x)", usbDevice.getUsbDeviceDescriptor().idProduct(), usbDevice.getUsbDeviceDescriptor().idVendor()));
-        List<AdbDevice> devices = checkAdbDevices(usbDevice);
-        devices.forEach(adbDevice -> onAdbDeviceDisConnected(adbDevice));
+        // 拔出后读不到序列号，按插入时记录的UsbDevice移除
+        usbAttachTimes.values().removeIf(a -> a.usbDevice.equals(usbDevice));
+        deviceExecutor.execute(this::refreshAdbDeviceList);
     }
     
     /**
@@ -139,24 +197,72 @@ public class AdbServer {
         adbDeviceList.add(adbDevice);
         */
         
-        refreshAdbDeviceList();
+        deviceExecutor.execute(this::refreshAdbDeviceList);
     }
     
     /**
-     * 发现安卓设备断开时调用
+     * 加入一台在线的设备，已经存在或正在创建时忽略
+     *
+     * AdbDevice 在 deviceInitExecutor 里创建，不阻塞其他设备的事件，创建完成后回到 deviceExecutor 里加入
      */
-    private void onAdbDeviceDisConnected(AdbDevice adbDevice) {
-        for (Iterator it = adbDeviceList.iterator(); it.hasNext(); ) {
-            AdbDevice device = (AdbDevice) it.next();
-            
-            if (adbDevice.getUsbDevice() == device.getUsbDevice()) {
-                logger.info("Android设备断开：" + adbDevice.getSerialNumber());
-                it.remove();
-                listeners.forEach(l -> l.onAdbDeviceDisConnected(device));
+    private void addDevice(IDevice iDevice) {
+        String serialNumber = iDevice.getSerialNumber();
+        if (registry.contains(serialNumber) || pendingAdds.containsKey(serialNumber)) {
+            return;
+        }
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        pendingAdds.put(serialNumber, pending);
+        deviceInitExecutor.execute(() -> {
+            AdbDevice device = null;
+            try {
+                device = new AdbDevice(iDevice);
+            } catch (Exception e) {
+                logger.warn("init device failed: " + serialNumber, e);
             }
+            AdbDevice created = device;
+            deviceExecutor.execute(() -> {
+                try {
+                    // 创建期间已经断开
+                    if (pendingAdds.remove(serialNumber, pending) && created != null) {
+                        applyAdd(created);
+                    }
+                } finally {
+                    pending.complete(null);
+                }
+            });
+        });
+    }
+
+    private void applyAdd(AdbDevice device) {
+        if (!registry.add(device)) {
+            return;
+        }
+        logger.info("Android设备连接：" + device.getSerialNumber());
+        UsbAttach attach = usbAttachTimes.remove(device.getSerialNumber());
+        if (attach != null) {
+            Metrics.histogram("adb.device.arrival.ms").record(System.currentTimeMillis() - attach.time);
         }
+        // 监听者在锁外通知，不阻塞其他设备的事件
+        long start = System.nanoTime();
+        listeners.forEach(l -> l.onAdbDeviceConnected(device));
+        Metrics.histogram("adb.device.notify.us").record((System.nanoTime() - start) / 1000);
     }
-    
+
+    /**
+     * 发现安卓设备断开时调用
+     */
+    private void removeDevice(String serialNumber) {
+        pendingAdds.remove(serialNumber);
+        AdbDevice device = registry.remove(serialNumber);
+        if (device == null) {
+            return;
+        }
+        logger.info("Android设备断开：" + serialNumber);
+        ShellExecutor.getInstance().remove(serialNumber);
+        ShellSession.close(serialNumber);
+        listeners.forEach(l -> l.onAdbDeviceDisConnected(device));
+    }
+
     /**
      * 检测该UsbDevice是否是安卓设备
      * @param usbDevice
@@ -219,41 +325,29 @@ public class AdbServer {
     /**
      * 与adb同步设备状态
      * why？有可能设备是通过wifi或bt连接，这样usb接口是检测不到的
+     * @return 补上的连接和断开的设备数
      */
-    private synchronized void refreshAdbDeviceList() {
-        List<AdbDevice> tmpAdbDeviceList = new ArrayList<>(this.adbDeviceList);
-        IDevice[] iDevices = getIDevices();
-        // 添加新的adb设备
-        for (IDevice iDevice : iDevices) {
-            boolean exists = false;
-            for (AdbDevice adbDev : tmpAdbDeviceList) {
-                if (adbDev.getIDevice().getSerialNumber().equals(iDevice.getSerialNumber())) {
-                    exists = true;
-                    break;
-                }
+    private int refreshAdbDeviceList() {
+        Set<String> online = new HashSet<>();
+        int fixed = 0;
+        for (IDevice iDevice : getIDevices()) {
+            if (!iDevice.isOnline()) {
+                continue;
             }
-            // 如果在已有列表不存在，添加到已有列表
-            if (!exists) {
-                AdbDevice device = new AdbDevice(iDevice);
-                logger.info("Android设备连接：" + device.getSerialNumber());
-                this.adbDeviceList.add(device);
-                listeners.forEach(l -> l.onAdbDeviceConnected(device));
+            online.add(iDevice.getSerialNumber());
+            if (!registry.contains(iDevice.getSerialNumber()) && !pendingAdds.containsKey(iDevice.getSerialNumber())) {
+                addDevice(iDevice);
+                fixed++;
             }
         }
-        // 移除已断开的设备
-        for (AdbDevice adbDev : tmpAdbDeviceList) {
-            boolean exists = false;
-            for (IDevice iDevice : iDevices) {
-                if (adbDev.getIDevice().getSerialNumber().equals(iDevice.getSerialNumber())) {
-                    exists = true;
-                    break;
-                }
-            }
-            // 如果在已有列表不存在，添加到已有列表
-            if (!exists) {
-                onAdbDeviceDisConnected(adbDev);
+        pendingAdds.keySet().retainAll(online);
+        for (AdbDevice device : registry.snapshot()) {
+            if (!online.contains(device.getSerialNumber())) {
+                removeDevice(device.getSerialNumber());
+                fixed++;
             }
         }
+        return fixed;
     }
     
     private String getADBPath(){
@@ -273,7 +367,7 @@ public class AdbServer {
     private void init() {
         AndroidDebugBridge.init(false);
         adb = AndroidDebugBridge.createBridge(getADBPath(), true);
-        listeners = new ArrayList<>();
+        listeners = new CopyOnWriteArrayList<>();
         if (adb != null) {
             if (waitForDeviceList()) {
                 success = true;
@@ -314,49 +408,88 @@ public class AdbServer {
         return adb.getDevices();
     }
     
+    /**
+     * 当前设备列表的快照，不可修改
+     */
     public List<AdbDevice> getDevices() {
-        return this.adbDeviceList;
+        return registry.snapshot();
+    }
+
+    public DeviceRegistry getRegistry() {
+        return registry;
     }
     
     public AdbDevice getDevice(String serialNumber) {
-        for (AdbDevice device : adbDeviceList) {
-            if (device.getSerialNumber().equals(serialNumber)) {
-                return device;
-            }
-        }
-        return null;
+        return registry.get(serialNumber);
     }
 
     public AdbDevice getFirstDevice() {
-        if (adbDeviceList.size() > 0) {
-            return adbDeviceList.get(0);
-        }
-        return null;
+        List<AdbDevice> devices = registry.snapshot();
+        return devices.isEmpty() ? null : devices.get(0);
     }
 
+    /**
+     * 同步执行shell命令，超时见 adb.shell.timeout.ms；不要在netty的线程里调用，改用 {@link ShellExecutor}
+     * @return 命令的输出，失败返回空字符串
+     */
     public static String executeShellCommand(IDevice device, String command) {
-        CollectingOutputReceiver output = new CollectingOutputReceiver();
-
         try {
-            device.executeShellCommand(command, output, 0);
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-        } catch (AdbCommandRejectedException e) {
-            e.printStackTrace();
-        } catch (ShellCommandUnresponsiveException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return ShellExecutor.getInstance().execute(device, command).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn(String.format("device(%s) shell failed: %s, %s", device.getSerialNumber(), command, e.getCause().getMessage()));
         }
-        return output.getOutput();
+        return "";
     }
 
     /**
-     * TODO: 添加自定义adb命令，原因是安卓手表的传输速度太慢，导致adb push超时错误
-     * @param device
-     * @return
+     * 上传文件，优先通过adb协议直接传输，失败时退回到启动adb进程
+     * 直接传输只在一段时间没有进展时超时，传输速度很慢的设备（比如手表）也能传完
+     * @return 传输结果描述，失败返回null
      */
     public String executePushFile(IDevice device, String src, String dst) {
+        File file = new File(src);
+        long start = System.nanoTime();
+        try (AdbSync sync = AdbSync.open(device.getSerialNumber())) {
+            int mode = file.canExecute() ? 0755 : 0644;
+            long bytes = sync.push(file, dst, mode, Constant.getIntProperty("adb.push.idle.ms", 10000));
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Metrics.histogram("adb.push.ms").record(ms);
+            Metrics.counter("adb.push.bytes").add(bytes);
+            return String.format("%s: 1 file pushed. %d bytes in %d ms", src, bytes, ms);
+        } catch (IOException e) {
+            logger.warn(String.format("device(%s) push %s failed, fallback to adb binary: %s", device.getSerialNumber(), dst, e.getMessage()));
+            Metrics.counter("adb.push.fallback").inc();
+        }
+        return forkPushFile(device, src, dst);
+    }
+
+    /**
+     * 并行上传多个文件，每个文件使用单独的连接
+     * @param files 本地路径 -> 设备路径
+     * @return 全部成功返回true
+     */
+    public boolean executePushFiles(IDevice device, Map<String, String> files) {
+        List<Future<String>> futures = new ArrayList<>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            futures.add(pushExecutor.submit(() -> executePushFile(device, e.getKey(), e.getValue())));
+        }
+        boolean ok = true;
+        for (Future<String> f : futures) {
+            try {
+                ok &= f.get() != null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private String forkPushFile(IDevice device, String src, String dst) {
         final File adbFile = new File(AdbServer.server().adbPath);
         final SettableFuture future = SettableFuture.create();
         (new Thread(new Runnable() {
@@ -408,59 +541,12 @@ public class AdbServer {
         return s;
     }
 
-    private ListenableFuture<List<AdbForward>> executeGetForwardList() {
-        final File adbFile = new File(AdbServer.server().adbPath);
-        final SettableFuture future = SettableFuture.create();
-        (new Thread(new Runnable() {
-            public void run() {
-                ProcessBuilder pb = new ProcessBuilder(new String[]{adbFile.getPath(), "forward", "--list"});
-                pb.redirectErrorStream(true);
-                Process p = null;
-
-                try {
-                    p = pb.start();
-                } catch (IOException e) {
-                    future.setException(e);
-                    return;
-                }
-
-                StringBuilder sb = new StringBuilder();
-                BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-                try {
-                    String line;
-                    try {
-                        List<AdbForward> list = new ArrayList<AdbForward>();
-                        while((line = br.readLine()) != null) {
-                            //64b2b4d9 tcp:555 localabstract:shit
-                            AdbForward forward = new AdbForward(line);
-                            if (forward.isForward()) {
-                                list.add(forward);
-                            }
-                        }
-                        future.set(list);
-                        return;
-                    } catch (IOException ex) {
-                        future.setException(ex);
-                        return;
-                    }
-                } finally {
-                    try {
-                        br.close();
-                    } catch (IOException ex) {
-                        future.setException(ex);
-                    }
-
-                }
-            }
-        }, "Obtaining adb version")).start();
-        return future;
-    }
-
+    /**
+     * adb server上的所有forward，本进程创建的forward见 ForwardRegistry
+     */
     public AdbForward[] getForwardList() {
-        ListenableFuture<List<AdbForward>> future = executeGetForwardList();
         try {
-            List<AdbForward> s = future.get(1, TimeUnit.SECONDS);
+            List<AdbForward> s = ForwardRegistry.listAdbForwards();
             AdbForward[] ret = new AdbForward[s.size()];
             s.toArray(ret);
             return ret;
@@ -470,15 +556,105 @@ public class AdbServer {
         return new AdbForward[0];
     }
     
+    /**
+     * 设备所在的USB总线（主机控制器），同一总线上的设备共享USB带宽
+     * @return 总线名称；网络连接的设备或无法读取USB信息时返回null
+     */
+    public String getUsbBus(String serialNumber) {
+        Map<String, String> buses = usbBuses;
+        if (buses == null) {
+            buses = scanUsbBuses();
+            usbBuses = buses;
+        }
+        return buses.get(serialNumber);
+    }
+
+    private Map<String, String> scanUsbBuses() {
+        Map<String, String> buses = new HashMap<>();
+        try {
+            UsbHub root = UsbHostManager.getUsbServices().getRootUsbHub();
+            // 虚拟根hub下面是每条总线的root hub
+            for (Object o : root.getAttachedUsbDevices()) {
+                UsbDevice bus = (UsbDevice) o;
+                UsbPort port = bus.getParentUsbPort();
+                collectUsbBus(bus, "usb" + (port == null ? 0 : port.getPortNumber() & 0xff), buses);
+            }
+        } catch (Exception e) {
+            logger.warn("scan usb topology failed: " + e.getMessage());
+        }
+        return buses;
+    }
+
+    private void collectUsbBus(UsbDevice device, String bus, Map<String, String> buses) {
+        if (device.isUsbHub()) {
+            for (Object child : ((UsbHub) device).getAttachedUsbDevices()) {
+                collectUsbBus((UsbDevice) child, bus, buses);
+            }
+            return;
+        }
+        try {
+            String serialNumber = device.getSerialNumberString();
+            if (serialNumber != null) {
+                buses.put(serialNumber, bus);
+            }
+        } catch (Exception e) {
+            // 没有权限打开的设备跳过
+        }
+    }
+
     public void addListener(IAdbServerListener listener) {
         this.listeners.add(listener);
     }
     
+    /**
+     * ddmlib推送的设备变化，只把在线(已授权)的设备当作已连接
+     */
+    class DeviceChangeListener implements AndroidDebugBridge.IDeviceChangeListener {
+
+        @Override
+        public void deviceConnected(IDevice device) {
+            if (device.isOnline()) {
+                submit(() -> addDevice(device));
+            }
+        }
+
+        @Override
+        public void deviceDisconnected(IDevice device) {
+            String serialNumber = device.getSerialNumber();
+            submit(() -> removeDevice(serialNumber));
+        }
+
+        @Override
+        public void deviceChanged(IDevice device, int changeMask) {
+            if ((changeMask & IDevice.CHANGE_STATE) == 0) {
+                return;
+            }
+            // 状态在回调时读取，排队期间可能又变化
+            if (device.isOnline()) {
+                submit(() -> addDevice(device));
+            } else {
+                String serialNumber = device.getSerialNumber();
+                submit(() -> removeDevice(serialNumber));
+            }
+        }
+
+        private void submit(Runnable task) {
+            deviceExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.warn("handle device event failed", e);
+                }
+            });
+        }
+    }
+
     class MyUSBListener implements UsbServicesListener {
         
         @Override
         public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) {
             UsbDevice device = usbServicesEvent.getUsbDevice();
+            usbBuses = null;
             if (!device.isUsbHub()) {
                 onUsbDeviceConnected(device);
             }
@@ -487,6 +663,7 @@ public class AdbServer {
         @Override
         public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) {
             UsbDevice device = usbServicesEvent.getUsbDevice();
+            usbBuses = null;
             if (!device.isUsbHub()) {
                 onUsbDeviceDisConnected(device);
             }
@@ -0,0 +1,271 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * adb sync协议客户端（sync: 服务），用于push文件和查询文件信息，不需要启动adb进程
+ *
+ * 协议：请求为 4字节id + 4字节小端长度 + 内容。push为 SEND(路径,权限) + 若干 DATA + DONE(修改时间)，
+ * DATA之间不需要等待应答，最后读取一次 OKAY/FAIL。
+ * 参考 https://android.googlesource.com/platform/packages/modules/adb/+/refs/heads/main/SYNC.TXT
+ */
+public class AdbSync implements Closeable {
+
+    // 协议规定单个DATA最大64k
+    private static final int MAX_DATA = 64 * 1024;
+    // 每次写入合并的DATA数量
+    private static final int BATCH = 4;
+    // 非阻塞写入时等待可写的最长时间(ms)，到时间后直接重试写入
+    // socket的可写通知要等发送缓冲区空出一大块，慢设备上可能要很久，不能只靠它判断有没有进展
+    private static final long POLL_MS = 50;
+    // DONE时还有大量数据在本机和adb server的socket缓冲区里，设备收完、写进存储才回复，
+    // 按最慢256KB/s给最后的应答留时间
+    private static final long FINISH_BYTES_PER_SECOND = 256 * 1024;
+
+    private final AdbConnection connection;
+
+    public static class FileStat {
+        public final int mode;
+        public final long size;
+        public final long mtime;
+
+        FileStat(int mode, long size, long mtime) {
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        public boolean exists() {
+            return mode != 0;
+        }
+    }
+
+    private AdbSync(AdbConnection connection) {
+        this.connection = connection;
+    }
+
+    public static AdbSync open(String serialNumber) throws IOException {
+        AdbConnection connection = AdbConnection.openTransport(serialNumber);
+        try {
+            connection.request("sync:");
+            return new AdbSync(connection);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 查询设备上的文件，不存在时mode为0
+     */
+    public FileStat stat(String remote) throws IOException {
+        writeRequest("STAT", remote);
+        return readStat();
+    }
+
+    private FileStat readStat() throws IOException {
+        ByteBuffer resp = read(16);
+        String id = id(resp);
+        if (!"STAT".equals(id)) {
+            throw new IOException("adb sync unexpected response to STAT: " + id);
+        }
+        return new FileStat(resp.getInt(4), resp.getInt(8) & 0xffffffffL, resp.getInt(12) & 0xffffffffL);
+    }
+
+    /**
+     * 批量查询，请求一次全部发出再依次读取应答，只需要一次往返
+     */
+    public List<FileStat> stat(List<String> remotes) throws IOException {
+        for (String remote : remotes) {
+            writeRequest("STAT", remote);
+        }
+        List<FileStat> stats = new ArrayList<>(remotes.size());
+        for (int i = 0; i < remotes.size(); i++) {
+            stats.add(readStat());
+        }
+        return stats;
+    }
+
+    /**
+     * 上传文件
+     * @param idleTimeoutMs 没有进展（写不出去数据）多久后放弃，慢设备只要在传输就不会超时
+     * @return 上传的字节数
+     */
+    public long push(File local, String remote, int mode, long idleTimeoutMs) throws IOException {
+        connection.setTimeout(idleTimeoutMs);
+        writeRequest("SEND", remote + "," + mode);
+        // DATA用非阻塞写入，每写出去一部分都算有进展，自己计算空闲时间
+        connection.setTimeout(0);
+
+        long total = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH * (8 + MAX_DATA)).order(ByteOrder.LITTLE_ENDIAN);
+        SocketChannel channel = connection.channel();
+        channel.configureBlocking(false);
+        try (FileChannel file = FileChannel.open(local.toPath(), StandardOpenOption.READ);
+             Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                for (int i = 0; i < BATCH; i++) {
+                    int header = buffer.position();
+                    buffer.position(header + 8);
+                    buffer.limit(header + 8 + MAX_DATA);
+                    int n = 0;
+                    while (buffer.hasRemaining()) {
+                        int r = file.read(buffer);
+                        if (r < 0) {
+                            eof = true;
+                            break;
+                        }
+                        n += r;
+                    }
+                    buffer.limit(buffer.capacity());
+                    if (n == 0) {
+                        buffer.position(header);
+                        break;
+                    }
+                    buffer.put(header, (byte) 'D').put(header + 1, (byte) 'A').put(header + 2, (byte) 'T').put(header + 3, (byte) 'A');
+                    buffer.putInt(header + 4, n);
+                    total += n;
+                    if (eof) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                write(buffer, selector, idleTimeoutMs);
+            }
+        } finally {
+            // 关闭selector后注册已经取消，可以切回阻塞模式
+            if (channel.isOpen()) {
+                channel.configureBlocking(true);
+            }
+        }
+
+        ByteBuffer done = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        done.put("DONE".getBytes(StandardCharsets.US_ASCII));
+        done.putInt((int) (local.lastModified() / 1000));
+        done.flip();
+        connection.setTimeout(idleTimeoutMs + total * 1000 / FINISH_BYTES_PER_SECOND);
+        connection.write(done);
+        readStatus("SEND " + remote);
+        connection.setTimeout(0);
+        return total;
+    }
+
+    @Override
+    public void close() {
+        try {
+            ByteBuffer quit = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            quit.put("QUIT".getBytes(StandardCharsets.US_ASCII)).putInt(0);
+            quit.flip();
+            connection.write(quit);
+        } catch (IOException e) {
+        }
+        connection.close();
+    }
+
+    /**
+     * 非阻塞写入，写出去任何数据都重新计时，超过idleTimeoutMs没有进展时放弃
+     */
+    private void write(ByteBuffer buffer, Selector selector, long idleTimeoutMs) throws IOException {
+        SocketChannel channel = connection.channel();
+        long lastProgress = System.currentTimeMillis();
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) > 0) {
+                lastProgress = System.currentTimeMillis();
+                continue;
+            }
+            if (System.currentTimeMillis() - lastProgress > idleTimeoutMs) {
+                // 和超时的watchdog一样关闭连接，之后的QUIT不会阻塞在写满的缓冲区上
+                connection.close();
+                throw new SocketTimeoutException(String.format("adb sync no progress in %dms", idleTimeoutMs));
+            }
+            selector.select(POLL_MS);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void writeRequest(String id, String path) throws IOException {
+        byte[] body = path.getBytes(StandardCharsets.UTF_8);
+        if (body.length > 1024) {
+            throw new IOException("adb sync path too long: " + path);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(body.length).put(body);
+        buffer.flip();
+        connection.write(buffer);
+    }
+
+    private void readStatus(String request) throws IOException {
+        ByteBuffer resp = read(8);
+        String id = id(resp);
+        int length = resp.getInt(4);
+        if ("OKAY".equals(id)) {
+            return;
+        }
+        if ("FAIL".equals(id)) {
+            String message = new String(read(length).array(), StandardCharsets.UTF_8);
+            throw new IOException(String.format("adb sync %s failed: %s", request, message));
+        }
+        throw new IOException(String.format("adb sync unexpected response to %s: %s", request, id));
+    }
+
+    private ByteBuffer read(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (connection.channel().read(buffer) < 0) {
+                throw new IOException("adb connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String id(ByteBuffer buffer) {
+        byte[] id = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            id[i] = buffer.get(i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+}
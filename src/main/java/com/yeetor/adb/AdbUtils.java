@@ -36,12 +36,36 @@ import java.util.List;
 
 public class AdbUtils {
 
+    // 设备列表没有变化时直接返回上一次的结果
+    private static volatile DevicesJson devicesJson = null;
+
+    private static class DevicesJson {
+        final long version;
+        final String json;
+
+        DevicesJson(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
     /**
      * 将当前连接的设备列表转换为json
      * @return
      */
     public static String devices2JSON() {
-        return devices2JSON(AdbServer.server().getDevices());
+        DeviceRegistry registry = AdbServer.server().getRegistry();
+        long version = registry.getVersion();
+        DevicesJson cached = devicesJson;
+        if (cached != null && cached.version == version) {
+            return cached.json;
+        }
+        String json = devices2JSON(registry.snapshot());
+        // 生成期间列表又变了，下次重新生成
+        if (version == registry.getVersion()) {
+            devicesJson = new DevicesJson(version, json);
+        }
+        return json;
     }
     
     public static String devices2JSON(List<AdbDevice> devices) {
@@ -53,22 +77,20 @@ public class AdbUtils {
     }
 
 
+    /**
+     * 用单引号包起来作为shell的一个参数，内容不会被shell解释
+     */
+    public static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
     public static void removeForward(AdbDevice adbDevice,AdbForward forward) {
-        if (forward == null || !forward.isForward()) {
-            return;
-        }
-        try {
-            adbDevice.getIDevice().removeForward(forward.getPort(), forward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        ForwardRegistry.getInstance().remove(adbDevice, forward);
     }
 
     public static AdbForward createForward(AdbDevice adbDevice){
-        AdbForward adbForward = generateForwardInfo(adbDevice);
         try {
-            adbDevice.getIDevice().createForward(adbForward.getPort(), adbForward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-            return adbForward;
+            return ForwardRegistry.getInstance().create(adbDevice, "touch");
         } catch (Exception e) {
             System.out.println("create forward failed");
             e.printStackTrace();
@@ -78,40 +100,12 @@ public class AdbUtils {
 
     public static AdbForward createForward(AdbDevice adbDevice,String remoteAbstract){
         try {
-            AdbForward adbForward = new AdbForward(adbDevice.getIDevice().getSerialNumber(), Util.getFreePort(), remoteAbstract);
-            adbDevice.getIDevice().createForward(adbForward.getPort(), adbForward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-            return adbForward;
+            return ForwardRegistry.getInstance().createNamed(adbDevice, remoteAbstract);
         } catch (Exception e) {
             System.out.println("create forward failed");
             e.printStackTrace();
             return null;
         }
     }
-
-    /**
-     * 生成forward信息，主要给minitouch使用
-     */
-    private static AdbForward generateForwardInfo(AdbDevice adbDevice) {
-        AdbForward[] forwards = AdbServer.server().getForwardList();
-        // serial_touch_number
-        int maxNumber = 0;
-        if (forwards.length > 0) {
-            for (AdbForward forward : forwards) {
-                if (forward.getSerialNumber().equals(adbDevice.getIDevice().getSerialNumber())) {
-                    String l = forward.getLocalAbstract();
-                    String[] s = l.split("_");
-                    if (s.length == 3) {
-                        int n = Integer.parseInt(s[2]);
-                        if (n > maxNumber) maxNumber = n;
-                    }
-                }
-            }
-        }
-        maxNumber += 1;
-
-        String forwardStr = String.format("%s_touch_%d", adbDevice.getIDevice().getSerialNumber(), maxNumber);
-        int freePort = Util.getFreePort();
-        return new AdbForward(adbDevice.getIDevice().getSerialNumber(), freePort, forwardStr);
-    }
     
 }
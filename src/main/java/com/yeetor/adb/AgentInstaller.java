@@ -0,0 +1,306 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备端程序（minicap、minitouch、scrcpy-server）的安装缓存
+ *
+ * 每台设备一份清单：设备路径 -> 本地文件的sha256 + push后设备上的大小和修改时间，和设备的 ro.build.fingerprint 一起保存在本地。
+ * 检查时只通过一次 sync STAT 批量查询，大小和修改时间与清单一致就认为内容一致；
+ * 没有清单（比如第一次连接本机）但大小一致的文件再用一次 md5sum 批量确认，只有内容不同的才上传
+ */
+public class AgentInstaller {
+    private static Logger logger = Logger.getLogger(AgentInstaller.class);
+
+    private static final String PROP_FINGERPRINT = "ro.build.fingerprint";
+
+    private static final AgentInstaller instance = new AgentInstaller();
+
+    // 本地文件路径 -> 摘要，文件修改后重新计算
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    // 序列号 -> 清单
+    private final Map<String, JSONObject> manifests = new ConcurrentHashMap<>();
+    // 同一台设备的检查和安装串行执行
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    private static class Digest {
+        final long size;
+        final long lastModified;
+        final String sha256;
+        final String md5;
+
+        Digest(long size, long lastModified, String sha256, String md5) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.md5 = md5;
+        }
+    }
+
+    public static AgentInstaller getInstance() {
+        return instance;
+    }
+
+    /**
+     * 设备上的文件是否都和本地一致
+     * @param files 本地文件 -> 设备路径
+     */
+    public boolean isCurrent(AdbDevice device, Map<File, String> files) {
+        synchronized (lockFor(device)) {
+            try {
+                return stale(device, files).isEmpty();
+            } catch (IOException e) {
+                logger.warn(String.format("device(%s) check agents failed: %s", device.getSerialNumber(), e.getMessage()));
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 上传和本地不一致的文件，并设置为可执行
+     * @param files 本地文件 -> 设备路径
+     * @return 上传的文件数量
+     */
+    public int install(AdbDevice device, Map<File, String> files) throws IOException {
+        synchronized (lockFor(device)) {
+            Map<File, String> stale = stale(device, files);
+            if (stale.isEmpty()) {
+                return 0;
+            }
+            Map<String, String> push = new LinkedHashMap<>();
+            for (Map.Entry<File, String> e : stale.entrySet()) {
+                push.put(e.getKey().getAbsolutePath(), e.getValue());
+            }
+            if (!AdbServer.server().executePushFiles(device.getIDevice(), push)) {
+                throw new IOException("push agents failed: " + StringUtils.join(push.values(), ", "));
+            }
+            // chmod失败时不记录，下次重新安装
+            String chmod = AdbServer.executeShellCommand(device.getIDevice(), "chmod 777 " + StringUtils.join(push.values(), " ") + " && echo ok");
+            if (!chmod.trim().endsWith("ok")) {
+                throw new IOException("chmod agents failed: " + chmod.trim());
+            }
+
+            // 记录push之后的大小和修改时间，下次只需要STAT
+            List<String> remotes = new ArrayList<>(stale.values());
+            List<AdbSync.FileStat> stats;
+            try (AdbSync sync = AdbSync.open(device.getSerialNumber())) {
+                stats = sync.stat(remotes);
+            }
+            JSONObject entries = manifest(device).getJSONObject("files");
+            int i = 0;
+            for (File file : stale.keySet()) {
+                record(entries, remotes.get(i), digest(file), stats.get(i));
+                i++;
+            }
+            save(device);
+            Metrics.counter("agent.install.pushed").add(stale.size());
+            logger.info(String.format("device(%s) installed agents: %s", device.getSerialNumber(), remotes));
+            return stale.size();
+        }
+    }
+
+    private Map<File, String> stale(AdbDevice device, Map<File, String> files) throws IOException {
+        long start = System.nanoTime();
+        List<File> locals = new ArrayList<>(files.keySet());
+        List<String> remotes = new ArrayList<>(files.values());
+        List<AdbSync.FileStat> stats;
+        try (AdbSync sync = AdbSync.open(device.getSerialNumber())) {
+            stats = sync.stat(remotes);
+        }
+
+        JSONObject entries = manifest(device).getJSONObject("files");
+        Map<File, String> stale = new LinkedHashMap<>();
+        // 大小一致但是没有记录的，用md5sum确认
+        Map<Integer, Digest> unknown = new LinkedHashMap<>();
+        for (int i = 0; i < locals.size(); i++) {
+            Digest d = digest(locals.get(i));
+            AdbSync.FileStat stat = stats.get(i);
+            JSONObject entry = entries.getJSONObject(remotes.get(i));
+            if (!stat.exists() || stat.size != d.size) {
+                stale.put(locals.get(i), remotes.get(i));
+            } else if (entry != null && d.sha256.equals(entry.getString("sha256"))
+                    && stat.size == entry.getLongValue("size") && stat.mtime == entry.getLongValue("mtime")) {
+                continue;
+            } else {
+                unknown.put(i, d);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            List<String> paths = new ArrayList<>();
+            for (int i : unknown.keySet()) {
+                paths.add(remotes.get(i));
+            }
+            Map<String, String> md5s = md5sum(device, paths);
+            boolean changed = false;
+            for (Map.Entry<Integer, Digest> e : unknown.entrySet()) {
+                int i = e.getKey();
+                if (e.getValue().md5.equals(md5s.get(remotes.get(i)))) {
+                    record(entries, remotes.get(i), e.getValue(), stats.get(i));
+                    changed = true;
+                } else {
+                    stale.put(locals.get(i), remotes.get(i));
+                }
+            }
+            if (changed) {
+                save(device);
+            }
+        }
+
+        Metrics.histogram("agent.check.ms").record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Metrics.counter("agent.check.current").add(files.size() - stale.size());
+        return stale;
+    }
+
+    /**
+     * 一次shell批量计算设备上文件的md5
+     * @return 设备路径 -> md5，文件不存在或者没有md5sum命令时没有对应的项
+     */
+    private static Map<String, String> md5sum(AdbDevice device, List<String> paths) {
+        Map<String, String> result = new HashMap<>();
+        String output = AdbServer.executeShellCommand(device.getIDevice(), "md5sum " + StringUtils.join(paths, " "));
+        if (output == null) {
+            return result;
+        }
+        // 每行: d41d8cd98f00b204e9800998ecf8427e  /data/local/tmp/minicap
+        for (String line : output.split("\n")) {
+            String[] s = line.trim().split("\\s+", 2);
+            if (s.length == 2 && s[0].length() == 32) {
+                result.put(s[1].trim(), s[0].toLowerCase());
+            }
+        }
+        return result;
+    }
+
+    private static void record(JSONObject entries, String remote, Digest d, AdbSync.FileStat stat) {
+        JSONObject entry = new JSONObject();
+        entry.put("sha256", d.sha256);
+        entry.put("size", stat.size);
+        entry.put("mtime", stat.mtime);
+        entries.put(remote, entry);
+    }
+
+    private Digest digest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        Digest d = digests.get(path);
+        if (d != null && d.size == file.length() && d.lastModified == file.lastModified()) {
+            return d;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MessageDigest sha256, md5;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha256.update(buffer, 0, n);
+                md5.update(buffer, 0, n);
+            }
+        }
+        d = new Digest(size, lastModified, hex(sha256.digest()), hex(md5.digest()));
+        digests.put(path, d);
+        return d;
+    }
+
+    /**
+     * 设备的清单，刷机后（fingerprint变化）作废
+     */
+    private JSONObject manifest(AdbDevice device) {
+        String fingerprint = StringUtils.defaultString(device.getProperty(PROP_FINGERPRINT)).trim();
+        JSONObject manifest = manifests.computeIfAbsent(device.getSerialNumber(), k -> load(device));
+        if (!fingerprint.equals(manifest.getString("fingerprint"))) {
+            manifest.put("fingerprint", fingerprint);
+            manifest.put("files", new JSONObject());
+        }
+        return manifest;
+    }
+
+    private static JSONObject load(AdbDevice device) {
+        File file = manifestFile(device);
+        if (file.exists()) {
+            try {
+                JSONObject manifest = JSON.parseObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                if (manifest != null && manifest.getJSONObject("files") != null) {
+                    return manifest;
+                }
+            } catch (Exception e) {
+                logger.warn("read agent manifest failed: " + file + ", " + e.getMessage());
+            }
+        }
+        return new JSONObject();
+    }
+
+    private void save(AdbDevice device) {
+        File file = manifestFile(device);
+        try {
+            Files.write(file.toPath(), manifests.get(device.getSerialNumber()).toJSONString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("write agent manifest failed: " + file + ", " + e.getMessage());
+        }
+    }
+
+    private static File manifestFile(AdbDevice device) {
+        // 网络设备的序列号是 ip:port
+        return Constant.getTmpFile("agents_" + device.getSerialNumber().replaceAll("[^A-Za-z0-9._-]", "_") + ".json");
+    }
+
+    private Object lockFor(AdbDevice device) {
+        return locks.computeIfAbsent(device.getSerialNumber(), k -> new Object());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
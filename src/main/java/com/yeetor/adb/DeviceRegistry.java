@@ -0,0 +1,101 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已连接设备的注册表，按序列号索引
+ *
+ * 查找不加锁；遍历使用不可变的快照；每次增删设备版本号加一，
+ * 调用方可以用版本号判断设备列表是否变化过，没变化时复用之前的结果
+ */
+public class DeviceRegistry {
+
+    private final Map<String, AdbDevice> devices = new ConcurrentHashMap<>();
+    private volatile List<AdbDevice> snapshot = Collections.emptyList();
+    private volatile long version = 0;
+
+    public AdbDevice get(String serialNumber) {
+        return serialNumber == null ? null : devices.get(serialNumber);
+    }
+
+    public boolean contains(String serialNumber) {
+        return devices.containsKey(serialNumber);
+    }
+
+    /**
+     * 按连接顺序排列的设备列表，不可修改，不会随之后的连接断开变化
+     */
+    public List<AdbDevice> snapshot() {
+        return snapshot;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * @return 该序列号已经存在时返回false
+     */
+    synchronized boolean add(AdbDevice device) {
+        if (devices.putIfAbsent(device.getSerialNumber(), device) != null) {
+            return false;
+        }
+        List<AdbDevice> lst = new ArrayList<>(snapshot);
+        lst.add(device);
+        publish(lst);
+        return true;
+    }
+
+    /**
+     * @return 被移除的设备，不存在时返回null
+     */
+    synchronized AdbDevice remove(String serialNumber) {
+        AdbDevice device = devices.remove(serialNumber);
+        if (device == null) {
+            return null;
+        }
+        List<AdbDevice> lst = new ArrayList<>(snapshot);
+        lst.remove(device);
+        publish(lst);
+        return device;
+    }
+
+    private void publish(List<AdbDevice> lst) {
+        snapshot = Collections.unmodifiableList(lst);
+        version++;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import com.android.ddmlib.IDevice;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本进程创建的adb forward的注册表
+ *
+ * 设备端的socket名称为 序列号_用途_序号，序号按设备原子递增，不需要每次都查询adb。
+ * 启动时和之后每隔一段时间通过adb协议(host:list-forward)同步一次：
+ * 序号从adb里已有的最大值之后开始，避免和之前或其他进程留下的名称冲突；已经不存在的forward从注册表移除，本地端口由 {@link PortAllocator} 回收
+ */
+public class ForwardRegistry {
+    private static Logger logger = Logger.getLogger(ForwardRegistry.class);
+
+    private static final ForwardRegistry instance = new ForwardRegistry();
+
+    // 租出端口到创建好forward的最长时间
+    private static final long LEASE_GRACE = 10000;
+
+    // 序列号+设备端socket名称 -> forward，scrcpy在每台设备上都用固定的名称
+    private final Map<String, AdbForward> forwards = new ConcurrentHashMap<>();
+    // 序列号 -> 已经用过的最大序号
+    private final Map<String, AtomicInteger> sequences = new ConcurrentHashMap<>();
+    // 每次租借端口的序号，保证租约标识不重复
+    private final AtomicLong leaseSequence = new AtomicLong();
+
+    public static ForwardRegistry getInstance() {
+        return instance;
+    }
+
+    private ForwardRegistry() {
+        Metrics.gauge("adb.forwards", forwards::size);
+        // 分配名称之前先同步一次
+        reconcile();
+        long interval = Constant.getIntProperty("adb.forward.reconcile.ms", 60000);
+        Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("adb-forward"))
+                .scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 分配一个设备端不重复的socket名称
+     * @param kind 用途，比如 cap、touch
+     */
+    public String allocateName(String serialNumber, String kind) {
+        int n = sequences.computeIfAbsent(serialNumber, k -> new AtomicInteger()).incrementAndGet();
+        return String.format("%s_%s_%d", serialNumber, kind, n);
+    }
+
+    /**
+     * 分配名称并创建forward
+     */
+    public AdbForward create(AdbDevice device, String kind) throws IOException {
+        return createNamed(device, allocateName(device.getSerialNumber(), kind));
+    }
+
+    /**
+     * 用指定的设备端socket名称创建forward，比如scrcpy的名称是固定的
+     */
+    public AdbForward createNamed(AdbDevice device, String localAbstract) throws IOException {
+        // 同一个名称可能在多台设备上、或者同一台设备上先后使用，每次租借用不同的标识
+        String owner = String.format("%s %s#%d", device.getSerialNumber(), localAbstract, leaseSequence.incrementAndGet());
+        int port = PortAllocator.getInstance().lease(owner);
+        AdbForward forward = new AdbForward(device.getSerialNumber(), port, localAbstract, owner);
+        try {
+            device.getIDevice().createForward(port, localAbstract, IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+        } catch (Exception e) {
+            PortAllocator.getInstance().release(port, owner);
+            throw new IOException("create forward failed: " + localAbstract, e);
+        }
+        forwards.put(key(forward), forward);
+        return forward;
+    }
+
+    public void remove(AdbDevice device, AdbForward forward) {
+        if (forward == null || !forward.isForward()) {
+            return;
+        }
+        forwards.remove(key(forward), forward);
+        try {
+            device.getIDevice().removeForward(forward.getPort(), forward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+        } catch (Exception e) {
+            logger.warn("remove forward failed: " + forward.getLocalAbstract() + ", " + e.getMessage());
+        }
+        PortAllocator.getInstance().release(forward.getPort(), forward.getLeaseOwner());
+    }
+
+    /**
+     * 本进程创建的还存在的forward
+     */
+    public List<AdbForward> getForwards() {
+        return new ArrayList<>(forwards.values());
+    }
+
+    /**
+     * 通过adb协议读取adb server上的所有forward，不需要启动adb进程
+     */
+    public static List<AdbForward> listAdbForwards() throws IOException {
+        List<AdbForward> list = new ArrayList<>();
+        try (AdbConnection connection = AdbConnection.open()) {
+            connection.setTimeout(5000);
+            connection.request("host:list-forward");
+            // 每行: 64b2b4d9 tcp:555 localabstract:name
+            for (String line : connection.readString().split("\n")) {
+                AdbForward forward = new AdbForward(line.trim());
+                if (forward.isForward()) {
+                    list.add(forward);
+                }
+            }
+        }
+        return list;
+    }
+
+    private void reconcile() {
+        // 在这之前租出的端口应该已经出现在adb的列表里
+        long before = System.currentTimeMillis() - LEASE_GRACE;
+        List<AdbForward> adbForwards;
+        try {
+            adbForwards = listAdbForwards();
+        } catch (Exception e) {
+            logger.warn("list adb forwards failed: " + e.getMessage());
+            return;
+        }
+        Set<String> alive = new HashSet<>();
+        Set<Integer> ports = new HashSet<>();
+        for (AdbForward f : adbForwards) {
+            alive.add(key(f));
+            ports.add(f.getPort());
+            seedSequence(f);
+        }
+        PortAllocator.getInstance().reclaim(ports, before);
+        // 设备断开等原因adb已经移除的forward；列表返回之后才创建好的不在列表里，和端口一样留出宽限期
+        int stale = 0;
+        for (AdbForward f : forwards.values()) {
+            if (f.getCreateTime() < before && !alive.contains(key(f)) && forwards.remove(key(f), f)) {
+                stale++;
+            }
+        }
+        if (stale > 0) {
+            logger.info("forward registry dropped " + stale + " forward(s) no longer known to adb");
+        }
+    }
+
+    private static String key(AdbForward f) {
+        return f.getSerialNumber() + " " + f.getLocalAbstract();
+    }
+
+    /**
+     * 序号从adb里已有的 序列号_用途_序号 之后开始
+     */
+    private void seedSequence(AdbForward f) {
+        String name = f.getLocalAbstract();
+        String prefix = f.getSerialNumber() + "_";
+        if (!name.startsWith(prefix)) {
+            return;
+        }
+        int sep = name.lastIndexOf('_');
+        try {
+            int n = Integer.parseInt(name.substring(sep + 1));
+            AtomicInteger seq = sequences.computeIfAbsent(f.getSerialNumber(), k -> new AtomicInteger());
+            seq.accumulateAndGet(n, Math::max);
+        } catch (NumberFormatException e) {
+            // 不是按这个规则命名的forward
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.*;
+
+/**
+ * forward本地端口分配
+ *
+ * 在配置的端口范围内按顺序租借端口，释放的端口要等游标转一圈才会再次使用，避开TIME_WAIT。
+ * 每个租约记录了租借时给出的唯一标识，释放时标识不一致的不处理，所以回收过的端口被重新租出后，迟到的释放不会影响新的租约。
+ * 本进程之外占用的端口在租借时通过bind检测跳过
+ */
+public class PortAllocator {
+    private static Logger logger = Logger.getLogger(PortAllocator.class);
+
+    private static final PortAllocator instance = new PortAllocator(
+            Constant.getIntProperty("adb.port.min", 20000),
+            Constant.getIntProperty("adb.port.max", 20999));
+
+    private final int min;
+    private final int max;
+    // 端口 -> 租约
+    private final Map<Integer, Lease> leases = new HashMap<>();
+    private int cursor;
+
+    private static class Lease {
+        final String owner;
+        final long time;
+
+        Lease(String owner) {
+            this.owner = owner;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    public static PortAllocator getInstance() {
+        return instance;
+    }
+
+    PortAllocator(int min, int max) {
+        if (min <= 0 || max > 65535 || min > max) {
+            throw new IllegalArgumentException(String.format("invalid port range %d-%d", min, max));
+        }
+        this.min = min;
+        this.max = max;
+        this.cursor = min;
+        Metrics.gauge("adb.ports.leased", this::leased);
+        Metrics.gauge("adb.ports.capacity", () -> max - min + 1);
+    }
+
+    /**
+     * 租借一个端口
+     * @param owner 租约标识，每次租借都要不同，释放时用同一个标识
+     * @throws IOException 端口范围内没有可用的端口
+     */
+    public int lease(String owner) throws IOException {
+        int size = max - min + 1;
+        for (int i = 0; i < size; i++) {
+            Lease lease = new Lease(owner);
+            int port = reserve(lease);
+            if (port < 0) {
+                break;
+            }
+            // bind检测不占用锁，检测期间端口已经预定，不会再租给别人
+            if (isBindable(port)) {
+                return port;
+            }
+            synchronized (this) {
+                if (leases.get(port) == lease) {
+                    leases.remove(port);
+                }
+            }
+        }
+        Metrics.counter("adb.ports.exhausted").inc();
+        throw new IOException(String.format("no free port in %d-%d (%d leased)", min, max, leased()));
+    }
+
+    /**
+     * 从游标开始预定下一个没有租出的端口
+     * @return 全部租出时返回-1
+     */
+    private synchronized int reserve(Lease lease) {
+        int size = max - min + 1;
+        for (int i = 0; i < size; i++) {
+            int port = cursor;
+            cursor = cursor == max ? min : cursor + 1;
+            if (!leases.containsKey(port)) {
+                leases.put(port, lease);
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 归还端口，owner和租约不一致时忽略
+     */
+    public synchronized void release(int port, String owner) {
+        Lease lease = leases.get(port);
+        if (lease != null && lease.owner.equals(owner)) {
+            leases.remove(port);
+        }
+    }
+
+    /**
+     * 回收泄漏的租约：在before之前租出，但是端口已经不在adb的forward列表里
+     * @param inUse adb上正在使用的本地端口
+     * @param before 只处理这个时间之前的租约，之后的可能还没来得及创建forward
+     * @return 回收的数量
+     */
+    public synchronized int reclaim(Set<Integer> inUse, long before) {
+        int reclaimed = 0;
+        Iterator<Map.Entry<Integer, Lease>> it = leases.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Lease> e = it.next();
+            if (e.getValue().time < before && !inUse.contains(e.getKey())) {
+                logger.info(String.format("reclaim leaked port %d (%s)", e.getKey(), e.getValue().owner));
+                it.remove();
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            Metrics.counter("adb.ports.reclaimed").add(reclaimed);
+        }
+        return reclaimed;
+    }
+
+    public synchronized int leased() {
+        return leases.size();
+    }
+
+    private static boolean isBindable(int port) {
+        // 和adb一样绑定在回环地址上检测
+        try {
+            new ServerSocket(port, 1, InetAddress.getLoopbackAddress()).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
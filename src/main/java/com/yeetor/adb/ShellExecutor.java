@@ -0,0 +1,221 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步执行shell命令
+ *
+ * 所有设备共用一个有上限的线程池，每台设备同时执行的命令数有上限，超出的在设备自己的队列里等待，不占用线程，
+ * 一台没有响应的设备最多占住 adb.shell.per-device 个线程。
+ * 每个命令都有超时，超时后future以 TimeoutException 结束，ddmlib在下次检查 isCancelled 时停止读取
+ *
+ * 配置见 yeetor.properties:
+ *   adb.shell.threads           线程池大小
+ *   adb.shell.per-device        每台设备同时执行的命令数
+ *   adb.shell.queue.per-device  每台设备最多排队的命令数，超出时直接失败
+ *   adb.shell.timeout.ms        默认超时
+ */
+public class ShellExecutor {
+    private static Logger logger = Logger.getLogger(ShellExecutor.class);
+
+    private static final ShellExecutor instance = new ShellExecutor();
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("adb-shell-timer"));
+    private final int perDevice = Constant.getIntProperty("adb.shell.per-device", 4);
+    private final int queueLimit = Constant.getIntProperty("adb.shell.queue.per-device", 64);
+    private final long defaultTimeout = Constant.getIntProperty("adb.shell.timeout.ms", 30000);
+
+    // 序列号 -> 设备的执行队列
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private static class Lane {
+        final String serialNumber;
+        final Semaphore permits;
+        final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+        // 排队的命令数，ConcurrentLinkedQueue.size() 要遍历整个队列
+        final AtomicInteger queued = new AtomicInteger();
+        // 设备断开后不再执行排队的命令
+        volatile boolean removed = false;
+
+        Lane(String serialNumber, int permits) {
+            this.serialNumber = serialNumber;
+            this.permits = new Semaphore(permits);
+        }
+    }
+
+    private static class Task {
+        final CompletableFuture<String> future;
+        final Runnable body;
+
+        Task(CompletableFuture<String> future, Runnable body) {
+            this.future = future;
+            this.body = body;
+        }
+    }
+
+    public static ShellExecutor getInstance() {
+        return instance;
+    }
+
+    private ShellExecutor() {
+        int threads = Constant.getIntProperty("adb.shell.threads", 16);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("adb-shell"));
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    public CompletableFuture<String> execute(IDevice device, String command) {
+        return execute(device, command, defaultTimeout);
+    }
+
+    /**
+     * @param timeoutMs 包含排队时间的超时，0表示不超时
+     * @return 命令的输出
+     */
+    public CompletableFuture<String> execute(IDevice device, String command, long timeoutMs) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        String type = commandType(command);
+        Lane lane = lanes.computeIfAbsent(device.getSerialNumber(), k -> new Lane(k, perDevice));
+        if (lane.queued.incrementAndGet() > queueLimit) {
+            lane.queued.decrementAndGet();
+            Metrics.counter("adb.shell.rejected").inc();
+            future.completeExceptionally(new RejectedExecutionException(
+                    String.format("device(%s) has too many pending shell commands", device.getSerialNumber())));
+            return future;
+        }
+
+        if (timeoutMs > 0) {
+            ScheduledFuture<?> timeout = timer.schedule(() -> {
+                if (future.completeExceptionally(new TimeoutException(
+                        String.format("device(%s) shell timeout after %d ms: %s", device.getSerialNumber(), timeoutMs, command)))) {
+                    Metrics.counter("adb.shell.timeout").inc();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            future.whenComplete((s, e) -> timeout.cancel(false));
+        }
+
+        lane.pending.add(new Task(future, () -> {
+            if (future.isDone()) {
+                // 排队时已经超时
+                return;
+            }
+            long start = System.nanoTime();
+            // future结束（比如超时）后让ddmlib停止读取
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver() {
+                @Override
+                public boolean isCancelled() {
+                    return future.isDone();
+                }
+            };
+            try {
+                device.executeShellCommand(command, receiver, timeoutMs > 0 ? timeoutMs : 0, TimeUnit.MILLISECONDS);
+                future.complete(receiver.getOutput());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                Metrics.histogram("adb.shell." + type + ".ms").record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }));
+        drain(lane);
+        return future;
+    }
+
+    /**
+     * 有空闲名额时把设备队列里的命令交给线程池
+     */
+    private void drain(Lane lane) {
+        // 加入队列时设备已经断开，lane已经被 remove 丢掉
+        if (lane.removed) {
+            failPending(lane);
+            return;
+        }
+        while (!lane.pending.isEmpty() && lane.permits.tryAcquire()) {
+            Task task = lane.pending.poll();
+            if (task == null) {
+                lane.permits.release();
+                continue;
+            }
+            lane.queued.decrementAndGet();
+            executor.execute(() -> {
+                try {
+                    task.body.run();
+                } finally {
+                    lane.permits.release();
+                    drain(lane);
+                }
+            });
+        }
+    }
+
+    /**
+     * 设备断开后丢弃队列，排队的命令以 RejectedExecutionException 结束，不超时的调用方也不会一直等待。
+     * 正在执行的命令由ddmlib在连接断开时结束
+     */
+    void remove(String serialNumber) {
+        Lane lane = lanes.remove(serialNumber);
+        if (lane != null) {
+            lane.removed = true;
+            failPending(lane);
+        }
+    }
+
+    private static void failPending(Lane lane) {
+        Task task;
+        while ((task = lane.pending.poll()) != null) {
+            lane.queued.decrementAndGet();
+            task.future.completeExceptionally(new RejectedExecutionException(
+                    String.format("device(%s) disconnected", lane.serialNumber)));
+        }
+    }
+
+    /**
+     * 命令类型，用于统计耗时：第一个不是环境变量的词，去掉路径，比如 input、am、dumpsys
+     */
+    static String commandType(String command) {
+        for (String word : command.trim().split("\\s+")) {
+            if (word.isEmpty() || word.contains("=")) {
+                continue;
+            }
+            String name = word.substring(word.lastIndexOf('/') + 1);
+            return name.replaceAll("[^A-Za-z0-9_-]", "_");
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.adb;
+
+import com.android.ddmlib.IDevice;
+import com.yeetor.minicap.CaptureEngine;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.NamedThreadFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 每台设备一个常驻的shell，命令依次写入同一个流，不用每次都新建adb连接
+ *
+ * 每个命令后面输出一个带序号的标记行，按标记切分出每个命令的输出。命令可以连续写入不需要等待上一个的结果（流水线），
+ * 结果按写入顺序返回。优先使用 exec:sh（没有pty，输出是原始数据），不支持时退回到 shell: 并关闭回显和提示符。
+ * 读取在 {@link CaptureEngine} 的selector线程完成，不占用额外的线程。
+ *
+ * 每个命令单引号转义后在子shell里eval执行，引号不完整、exit、cd、export等只影响这个命令本身，不影响共用的shell。
+ * 写入不等待，设备读不过来时排队，socket可写时由selector线程写入。
+ *
+ * 只适合很快结束、不读标准输入的命令（输入重定向到/dev/null）；命令超时后关闭整个会话，
+ * 排在后面还没开始执行的命令按原来的顺序转到新的会话。
+ * 连接失败时命令按提交的顺序退回到 {@link ShellExecutor} 执行
+ */
+public class ShellSession implements CaptureEngine.StreamHandler {
+    private static Logger logger = Logger.getLogger(ShellSession.class);
+
+    // 输出过大说明标记丢失，关闭会话
+    private static final int MAX_BUFFER = 16 * 1024 * 1024;
+    // 排队等待写入的数据过多说明设备已经不读取，关闭会话
+    private static final int MAX_OUTBOUND = 1024 * 1024;
+
+    private static final Map<String, ShellSession> sessions = new ConcurrentHashMap<>();
+    private static final ExecutorService connector = Executors.newCachedThreadPool(new NamedThreadFactory("adb-shell-session"));
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("adb-shell-session-timer"));
+    private static final long defaultTimeout = Constant.getIntProperty("adb.shell.timeout.ms", 30000);
+    // 退回到 ShellExecutor 的命令逐个执行，保持顺序
+    private static final Map<String, CompletableFuture<Void>> fallbackChains = new ConcurrentHashMap<>();
+
+    private final IDevice device;
+    // 标记行: __AC_<token>_<序号>__ <返回值>，token避免和命令本身的输出冲突
+    private final String token = "__AC_" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "_";
+    private final byte[] marker = token.getBytes(StandardCharsets.US_ASCII);
+
+    private final Deque<Command> pending = new ArrayDeque<>();
+    private final List<Command> unsent = new ArrayList<>();
+    private long nextSeq = 1;
+    private SocketChannel channel;
+    private CaptureEngine.Stream stream;
+    private boolean pty;
+    private boolean closed;
+    // 没有写完的数据
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private int outboundBytes;
+
+    // 只在selector线程访问
+    private final ByteBuf input = Unpooled.buffer(64 * 1024);
+
+    private static class Command {
+        // 转到新的会话时重新编号，在所属会话的锁内修改
+        long seq;
+        volatile ShellSession session;
+        final String command;
+        final long timeoutMs;
+        final long startTime = System.nanoTime();
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Command(ShellSession session, long seq, String command, long timeoutMs) {
+            this.session = session;
+            this.seq = seq;
+            this.command = command;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private ShellSession(IDevice device) {
+        this.device = device;
+    }
+
+    public static CompletableFuture<String> execute(IDevice device, String command) {
+        return execute(device, command, defaultTimeout);
+    }
+
+    /**
+     * 在设备的常驻shell里执行命令
+     * @param timeoutMs 超时，0表示不超时
+     * @return 命令的输出（标准输出和错误输出）
+     */
+    public static CompletableFuture<String> execute(IDevice device, String command, long timeoutMs) {
+        // 单引号里也不能表示空字符
+        if (command.indexOf('\0') >= 0) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException("shell command contains NUL: " + command));
+            return future;
+        }
+        while (true) {
+            ShellSession session = sessions.computeIfAbsent(device.getSerialNumber(), k -> {
+                ShellSession s = new ShellSession(device);
+                connector.execute(s::connect);
+                return s;
+            });
+            CompletableFuture<String> future = session.submit(command, timeoutMs);
+            if (future != null) {
+                return future;
+            }
+            // 会话刚刚关闭
+            sessions.remove(device.getSerialNumber(), session);
+        }
+    }
+
+    /**
+     * 设备断开时关闭
+     */
+    static void close(String serialNumber) {
+        fallbackChains.remove(serialNumber);
+        ShellSession session = sessions.remove(serialNumber);
+        if (session != null) {
+            session.shutdown(new IOException("device disconnected"));
+        }
+    }
+
+    private synchronized CompletableFuture<String> submit(String command, long timeoutMs) {
+        if (closed) {
+            return null;
+        }
+        Command c = new Command(this, nextSeq++, command, timeoutMs);
+        pending.add(c);
+        if (timeoutMs > 0) {
+            ScheduledFuture<?> timeout = timer.schedule(() -> {
+                if (c.future.completeExceptionally(new TimeoutException(
+                        String.format("device(%s) shell timeout after %d ms: %s", device.getSerialNumber(), timeoutMs, command)))) {
+                    Metrics.counter("adb.shell.timeout").inc();
+                    // 后面的命令都在等这个命令，只能重新开始
+                    c.session.restart();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            c.future.whenComplete((s, e) -> timeout.cancel(false));
+        }
+        if (channel == null) {
+            unsent.add(c);
+        } else {
+            try {
+                write(c);
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+        return c.future;
+    }
+
+    private void connect() {
+        AdbConnection connection = null;
+        boolean usePty = false;
+        try {
+            try {
+                connection = open("exec:sh");
+            } catch (IOException e) {
+                // 旧版本的adbd没有exec服务
+                connection = open("shell:");
+                usePty = true;
+            }
+            synchronized (this) {
+                if (closed) {
+                    connection.close();
+                    return;
+                }
+                channel = connection.channel();
+                // 命令都很短，不等待合并
+                channel.socket().setTcpNoDelay(true);
+                pty = usePty;
+                // 先注册，之后的写入都不阻塞
+                stream = CaptureEngine.getInstance().register(channel, this);
+                if (pty) {
+                    // 关闭回显和提示符，之前的输出在序号0的标记前丢弃
+                    writeRaw("stty -echo 2>/dev/null; PS1=''; PS2=''; export PS1 PS2\n");
+                    Command sync = new Command(this, 0, ":", 0);
+                    pending.addFirst(sync);
+                    writeRaw(wrap(sync));
+                }
+                for (Command c : unsent) {
+                    write(c);
+                }
+                unsent.clear();
+            }
+            Metrics.counter("adb.shell.session.opened").inc();
+            logger.info(String.format("device(%s) shell session opened%s", device.getSerialNumber(), usePty ? " (pty)" : ""));
+        } catch (IOException e) {
+            logger.warn(String.format("device(%s) open shell session failed: %s", device.getSerialNumber(), e.getMessage()));
+            if (connection != null) {
+                connection.close();
+            }
+            sessions.remove(device.getSerialNumber(), this);
+            fallback();
+        }
+    }
+
+    private AdbConnection open(String service) throws IOException {
+        AdbConnection connection = AdbConnection.openTransport(device.getSerialNumber());
+        try {
+            connection.setTimeout(5000);
+            connection.request(service);
+            connection.setTimeout(0);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 连接失败，已经提交的命令改为单独执行
+     * ShellExecutor 会同时执行同一台设备的多个命令，这里等上一个结束再提交下一个，按键和文字输入不会乱序
+     */
+    private void fallback() {
+        List<Command> commands;
+        synchronized (this) {
+            closed = true;
+            commands = new ArrayList<>(pending);
+            pending.clear();
+            unsent.clear();
+        }
+        for (Command c : commands) {
+            Metrics.counter("adb.shell.session.fallback").inc();
+            fallbackChains.compute(device.getSerialNumber(), (k, tail) ->
+                    (tail == null ? CompletableFuture.<Void>completedFuture(null) : tail).thenCompose(v -> executeFallback(c)));
+        }
+    }
+
+    private CompletableFuture<Void> executeFallback(Command c) {
+        if (c.future.isDone()) {
+            // 排队时已经超时
+            return CompletableFuture.completedFuture(null);
+        }
+        return ShellExecutor.getInstance().execute(device, c.command, c.timeoutMs).handle((s, e) -> {
+            if (e != null) {
+                c.future.completeExceptionally(e);
+            } else {
+                c.future.complete(s);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 有命令超时，换一个新的会话
+     *
+     * 还没开始执行的命令按顺序转到新的会话，新会话连接失败时和其他命令一样退回到 ShellExecutor。
+     * 正在执行的第一个命令可能已经生效（比如按键），不重新执行
+     */
+    private void restart() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            ShellSession fresh = new ShellSession(device);
+            Command head = pending.peekFirst();
+            boolean started = channel != null && head != null && head.seq > 0;
+            for (Command c : pending) {
+                if (c.seq == 0 || c.future.isDone() || (started && c == head)) {
+                    continue;
+                }
+                c.seq = fresh.nextSeq++;
+                c.session = fresh;
+                fresh.pending.add(c);
+                fresh.unsent.add(c);
+            }
+            if (fresh.pending.isEmpty()) {
+                sessions.remove(device.getSerialNumber(), this);
+            } else if (sessions.replace(device.getSerialNumber(), this, fresh)) {
+                // 在锁内替换，新提交的命令排在转过去的命令后面
+                pending.removeAll(fresh.pending);
+                unsent.removeAll(fresh.pending);
+                Metrics.counter("adb.shell.session.requeued").add(fresh.pending.size());
+                connector.execute(fresh::connect);
+            } else {
+                for (Command c : fresh.pending) {
+                    c.session = this;
+                }
+            }
+        }
+        shutdown(new IOException("previous command timed out"));
+    }
+
+    private void shutdown(IOException cause) {
+        List<Command> commands;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            commands = new ArrayList<>(pending);
+            pending.clear();
+            unsent.clear();
+            outbound.clear();
+            outboundBytes = 0;
+            if (stream != null) {
+                stream.close();
+            } else if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        for (Command c : commands) {
+            c.future.completeExceptionally(cause);
+        }
+    }
+
+    private void write(Command c) throws IOException {
+        writeRaw(wrap(c));
+    }
+
+    private String wrap(Command c) {
+        // 标记里插入空字符串，回显的命令行不会被当成标记
+        return String.format("( eval %s ) </dev/null 2>&1; __rc=$?; echo; echo %s\"\"%s%d__ $__rc\n",
+                AdbUtils.shellQuote(c.command), token.substring(0, 4), token.substring(4), c.seq);
+    }
+
+    /**
+     * 调用时持有会话的锁，只做非阻塞的写入，写不完的排队
+     */
+    private void writeRaw(String s) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        // 前面还有没写完的数据时排在后面
+        if (outbound.isEmpty()) {
+            channel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        }
+        if (outboundBytes + buffer.remaining() > MAX_OUTBOUND) {
+            throw new IOException("shell session is not reading input");
+        }
+        if (outbound.isEmpty()) {
+            stream.setWriteInterest(true);
+        }
+        outbound.add(buffer);
+        outboundBytes += buffer.remaining();
+    }
+
+    @Override
+    public synchronized void onWritable(SocketChannel channel) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            outboundBytes -= channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            outbound.poll();
+        }
+        stream.setWriteInterest(false);
+    }
+
+    @Override
+    public int onReadable(SocketChannel channel) throws IOException {
+        input.ensureWritable(64 * 1024);
+        int n = input.writeBytes(channel, input.writableBytes());
+        if (n > 0) {
+            parse();
+        }
+        return n;
+    }
+
+    @Override
+    public void onClosed(IOException cause) {
+        sessions.remove(device.getSerialNumber(), this);
+        shutdown(cause != null ? cause : new IOException("shell session closed"));
+        input.release();
+    }
+
+    /**
+     * 按标记行切分输出
+     */
+    private void parse() throws IOException {
+        while (true) {
+            int start = input.readerIndex();
+            int at = indexOf(input, marker, start);
+            if (at < 0) {
+                if (input.readableBytes() > MAX_BUFFER) {
+                    throw new IOException("shell output too large or marker lost");
+                }
+                return;
+            }
+            int eol = input.indexOf(at, input.writerIndex(), (byte) '\n');
+            if (eol < 0) {
+                return;
+            }
+            // __AC_<token>_<seq>__ <rc>
+            String line = input.toString(at + marker.length, eol - at - marker.length, StandardCharsets.US_ASCII).trim();
+            long seq = Long.parseLong(line.substring(0, line.indexOf("__")));
+            // 去掉 echo 输出的换行
+            int end = at;
+            if (end > start && input.getByte(end - 1) == '\n') {
+                end--;
+                if (end > start && input.getByte(end - 1) == '\r') {
+                    end--;
+                }
+            }
+            String output = input.toString(start, end - start, StandardCharsets.UTF_8);
+            input.readerIndex(eol + 1);
+            complete(seq, pty ? output.replace("\r\n", "\n") : output);
+        }
+    }
+
+    private void complete(long seq, String output) throws IOException {
+        Command c;
+        synchronized (this) {
+            c = pending.poll();
+        }
+        if (c == null || c.seq != seq) {
+            throw new IOException(String.format("shell session out of sync, expect %s got %d", c == null ? "none" : c.seq, seq));
+        }
+        if (c.seq > 0) {
+            Metrics.histogram("adb.shell.session.us").record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - c.startTime));
+        }
+        c.future.complete(output);
+        if (input.readerIndex() > 1024 * 1024) {
+            input.discardReadBytes();
+        }
+    }
+
+    private static int indexOf(ByteBuf buf, byte[] pattern, int from) {
+        int last = buf.writerIndex() - pattern.length;
+        outer:
+        for (int i = buf.indexOf(from, buf.writerIndex(), pattern[0]); i >= 0 && i <= last; i = buf.indexOf(i + 1, buf.writerIndex(), pattern[0])) {
+            for (int j = 1; j < pattern.length; j++) {
+                if (buf.getByte(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
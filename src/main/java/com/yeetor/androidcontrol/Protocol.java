@@ -27,7 +27,7 @@
 package com.yeetor.androidcontrol;
 
 import com.yeetor.androidcontrol.client.LocalClient;
-import com.yeetor.minicap.Minicap;
+import com.yeetor.server.CaptureViewer;
 import com.yeetor.touch.minitouch.Minitouch;
 import io.netty.channel.ChannelHandlerContext;
 
@@ -40,7 +40,7 @@ public class Protocol {
     public ChannelHandlerContext clientSocket;
     public String key;
     public String sn;
-    public Minicap minicap;
+    public CaptureViewer capViewer;
     public Minitouch minitouch;
     public LocalClient localClient;
 
@@ -72,8 +72,8 @@ public class Protocol {
         this.key = key;
     }
 
-    public void setMinicap(Minicap minicap) {
-        this.minicap = minicap;
+    public void setCapViewer(CaptureViewer capViewer) {
+        this.capViewer = capViewer;
     }
 
     public void setMinitouch(Minitouch minitouch) {
@@ -101,8 +101,8 @@ public class Protocol {
         return sn;
     }
 
-    public Minicap getMinicap() {
-        return minicap;
+    public CaptureViewer getCapViewer() {
+        return capViewer;
     }
 
     public Minitouch getMinitouch() {
@@ -115,9 +115,9 @@ public class Protocol {
 
     public void close() {
 
-        if (minicap != null) {
-            minicap.kill();
-            minicap = null;
+        if (capViewer != null) {
+            capViewer.close();
+            capViewer = null;
         }
 
         if (minitouch != null) {
@@ -32,8 +32,11 @@ import com.yeetor.adb.AdbServer;
 import com.yeetor.androidcontrol.Command;
 import com.yeetor.androidcontrol.Protocol;
 import com.yeetor.minicap.Banner;
-import com.yeetor.minicap.Minicap;
+import com.yeetor.minicap.ScreencapBase;
 import com.yeetor.minicap.MinicapListener;
+import com.yeetor.server.CaptureSession;
+import com.yeetor.server.CaptureViewer;
+import com.yeetor.server.ServicesPool;
 import com.yeetor.touch.TouchEventService;
 import com.yeetor.touch.TouchServiceException;
 import com.yeetor.touch.minitouch.Minitouch;
@@ -86,14 +89,14 @@ public class LocalClient extends BaseClient implements MinicapListener, TouchEve
 
     // minicap启动完毕后
     @Override
-    public void onStartup(Minicap minicap, boolean success) {
+    public void onStartup(ScreencapBase minicap, boolean success) {
         if (protocol != null && protocol.getBroswerSocket() != null && success) {
             protocol.getBroswerSocket().channel().writeAndFlush(new TextWebSocketFrame("minicap://open"));
         }
     }
 
     @Override
-    public void onClose(Minicap minicap) {
+    public void onClose(ScreencapBase minicap) {
         if (protocol != null && protocol.getBroswerSocket() != null) {
             protocol.getBroswerSocket().channel().writeAndFlush(new TextWebSocketFrame("minicap://close"));
         }
@@ -101,11 +104,11 @@ public class LocalClient extends BaseClient implements MinicapListener, TouchEve
 
     // banner信息读取完毕
     @Override
-    public void onBanner(Minicap minicap, Banner banner) {}
+    public void onBanner(ScreencapBase minicap, Banner banner) {}
 
     // 读取到图片信息
     @Override
-    public void onJPG(Minicap minicap, byte[] data) {
+    public void onJPG(ScreencapBase minicap, byte[] data) {
         if (isWaitting) {
             if (dataQueue.size() > 0) {
                 dataQueue.add(new ImageData(data));
@@ -238,10 +241,6 @@ public class LocalClient extends BaseClient implements MinicapListener, TouchEve
     }
 
     private void startMinicap(Command command) {
-        if (protocol.getMinicap() != null) {
-            protocol.getMinicap().kill();
-        }
-        
         // 获取请求的配置
         JSONObject obj = (JSONObject) command.get("config");
         Float scale = obj.getFloat("scale");
@@ -250,10 +249,9 @@ public class LocalClient extends BaseClient implements MinicapListener, TouchEve
         if (scale < 0.01) {scale = 0.01f;}
         if (scale > 1.0) {scale = 1.0f;}
         if (rotate == null) { rotate = 0.0f; }
-        Minicap minicap = new Minicap(protocol.getSn());
-        minicap.addEventListener(this);
-        minicap.start(scale, rotate.intValue());
-        protocol.setMinicap(minicap);
+        AdbDevice device = AdbServer.server().getDevice(protocol.getSn());
+        CaptureViewer viewer = ServicesPool.getInstance().getScreencapService().switchTo(protocol.getCapViewer(), device, CaptureSession.Source.MINICAP, scale, rotate.intValue(), this);
+        protocol.setCapViewer(viewer);
     }
 
     private void startMinitouch(Command command) {
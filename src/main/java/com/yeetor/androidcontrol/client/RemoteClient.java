@@ -34,8 +34,11 @@ import com.yeetor.androidcontrol.Command;
 import com.yeetor.androidcontrol.message.BinaryMessage;
 import com.yeetor.androidcontrol.message.FileMessage;
 import com.yeetor.minicap.Banner;
-import com.yeetor.minicap.Minicap;
+import com.yeetor.minicap.ScreencapBase;
 import com.yeetor.minicap.MinicapListener;
+import com.yeetor.server.CaptureSession;
+import com.yeetor.server.CaptureViewer;
+import com.yeetor.server.ServicesPool;
 import com.yeetor.touch.TouchEventService;
 import com.yeetor.touch.TouchServiceException;
 import com.yeetor.touch.minitouch.Minitouch;
@@ -67,7 +70,7 @@ public class RemoteClient extends BaseClient implements MinicapListener, TouchEv
     private String serialNumber;
     private WebSocket ws;
 
-    Minicap minicap = null;
+    CaptureViewer capViewer = null;
     Minitouch minitouch = null;
 
     public RemoteClient(String ip, int port, String key, String serialNumber) throws IOException, WebSocketException {
@@ -88,24 +91,24 @@ public class RemoteClient extends BaseClient implements MinicapListener, TouchEv
     }
 
     @Override
-    public void onStartup(Minicap minicap, boolean success) {
+    public void onStartup(ScreencapBase minicap, boolean success) {
         if (ws != null) {
             ws.sendText("minicap://open");
         }
     }
 
     @Override
-    public void onClose(Minicap minicap) {
+    public void onClose(ScreencapBase minicap) {
         if (ws != null) {
             ws.sendText("minicap://close");
         }
     }
 
     @Override
-    public void onBanner(Minicap minicap, Banner banner) {}
+    public void onBanner(ScreencapBase minicap, Banner banner) {}
 
     @Override
-    public void onJPG(Minicap minicap, byte[] data) {
+    public void onJPG(ScreencapBase minicap, byte[] data) {
         if (isWaitting) {
             if (dataQueue.size() > 0) {
                 dataQueue.add(new LocalClient.ImageData(data));
@@ -248,9 +251,6 @@ public class RemoteClient extends BaseClient implements MinicapListener, TouchEv
     }
 
     private void startMinicap(Command command) {
-        if (minicap != null) {
-            minicap.kill();
-        }
         // 获取请求的配置
         JSONObject obj = (JSONObject) command.get("config");
         Float scale = obj.getFloat("scale");
@@ -259,15 +259,13 @@ public class RemoteClient extends BaseClient implements MinicapListener, TouchEv
         if (scale < 0.01) {scale = 0.01f;}
         if (scale > 1.0) {scale = 1.0f;}
         if (rotate == null) { rotate = 0.0f; }
-        Minicap minicap = new Minicap(serialNumber);
-        minicap.addEventListener(this);
-        minicap.start(scale, rotate.intValue());
-        this.minicap = minicap;
+        AdbDevice device = AdbServer.server().getDevice(serialNumber);
+        this.capViewer = ServicesPool.getInstance().getScreencapService().switchTo(capViewer, device, CaptureSession.Source.MINICAP, scale, rotate.intValue(), this);
     }
 
     private void startMinitouch(Command command) {
         if (minitouch != null) {
-            minicap.kill();
+            minitouch.kill();
         }
 
         Minitouch minitouch = new Minitouch(serialNumber);
@@ -29,10 +29,12 @@ package com.yeetor.engine;
 import com.google.common.util.concurrent.SettableFuture;
 import com.yeetor.adb.AdbDevice;
 import com.yeetor.adb.AdbServer;
+import com.yeetor.adb.ShellSession;
 import com.yeetor.touch.TouchEventService;
 import com.yeetor.touch.TouchServiceException;
 import com.yeetor.touch.minitouch.Minitouch;
 import com.yeetor.touch.TouchEventServiceListener;
+import org.apache.log4j.Logger;
 
 import java.util.concurrent.ExecutionException;
 
@@ -40,6 +42,7 @@ import java.util.concurrent.ExecutionException;
  * Created by harry on 2017/5/11.
  */
 public class EngineDevice {
+    private static Logger logger = Logger.getLogger(EngineDevice.class);
 
     private AdbDevice device;
     private Minitouch minitouch;
@@ -108,12 +111,23 @@ public class EngineDevice {
 
     }
 
+    /**
+     * 在设备的常驻shell里执行，脚本连续调用时不需要每次新建adb连接
+     * @return 命令的输出，失败返回空字符串
+     */
     public String executeShellAndGetString(String command) {
-        return AdbServer.executeShellCommand(device.getIDevice(), command);
+        try {
+            return ShellSession.execute(device.getIDevice(), command).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn(String.format("device(%s) shell failed: %s, %s", device.getSerialNumber(), command, e.getCause().getMessage()));
+        }
+        return "";
     }
 
     public void startApp(String str) {
-        AdbServer.executeShellCommand(device.getIDevice(), "am start " + str);
+        executeShellAndGetString("am start " + str);
     }
 
 }
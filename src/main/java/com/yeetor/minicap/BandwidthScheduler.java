@@ -0,0 +1,262 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import com.yeetor.adb.AdbServer;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 整台主机的屏幕采集带宽调度
+ *
+ * 统计每路minicap、每条USB总线和整台主机的字节速率。超过预算时按max-min公平分配：
+ * 速率低于平均份额的不受影响，最忙的几路被限制在份额以内。超出额度时暂停读取这一路的socket，
+ * 缓冲区满后设备上的minicap(-S)自己跳过帧，不再占用USB带宽；
+ * 持续被限制的降低JPG质量(-Q)，长时间空闲后再恢复
+ */
+public class BandwidthScheduler {
+    private static Logger logger = Logger.getLogger(BandwidthScheduler.class);
+
+    private static final BandwidthScheduler instance = new BandwidthScheduler();
+
+    // 字节/秒，0表示不限制
+    private final long hostBudget = Constant.getIntProperty("capture.bandwidth.host.bytes", 0);
+    private final long busBudget = Constant.getIntProperty("capture.bandwidth.bus.bytes", 0);
+    private final int minQuality = Constant.getIntProperty("capture.bandwidth.min-quality", 40);
+    private final int qualityStep = Constant.getIntProperty("capture.bandwidth.quality-step", 20);
+    // 连续被限制多少秒后降低质量，连续多少秒不受限制后恢复
+    private final int lowerAfter = Constant.getIntProperty("capture.bandwidth.lower-after.s", 3);
+    private final int raiseAfter = Constant.getIntProperty("capture.bandwidth.raise-after.s", 30);
+
+    private static final int DEFAULT_QUALITY = 80;
+    private static final String UNKNOWN_BUS = "unknown";
+
+    private final List<Meter> meters = new CopyOnWriteArrayList<Meter>();
+    private volatile long hostRate = 0;
+    private volatile Map<String, Long> busRates = Collections.emptyMap();
+    private final Set<String> busGauges = new HashSet<>();
+
+    public static BandwidthScheduler getInstance() {
+        return instance;
+    }
+
+    private BandwidthScheduler() {
+        CaptureEngine.getInstance().getScheduler().scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        Metrics.gauge("capture.bandwidth.host.bps", () -> hostRate);
+        Metrics.gauge("capture.bandwidth.throttled", () -> meters.stream().filter(m -> m.limit != Long.MAX_VALUE).count());
+    }
+
+    public boolean isEnabled() {
+        return hostBudget > 0 || busBudget > 0;
+    }
+
+    Meter register(Minicap minicap) {
+        String bus = AdbServer.server().getUsbBus(minicap.getDevice().getSerialNumber());
+        Meter meter = new Meter(minicap, bus == null ? UNKNOWN_BUS : bus);
+        meters.add(meter);
+        return meter;
+    }
+
+    void unregister(Meter meter) {
+        meters.remove(meter);
+    }
+
+    /**
+     * 每秒统计一次速率并重新计算每一路的上限
+     */
+    private void tick() {
+        try {
+            long host = 0;
+            Map<String, List<Meter>> byBus = new HashMap<>();
+            for (Meter m : meters) {
+                m.rate = m.window.getAndSet(0);
+                // 暂停读取期间的流量没有统计到，按读取的时间推算需要的速率
+                long active = TimeUnit.SECONDS.toNanos(1) - Math.min(m.pausedNanos.getAndSet(0), TimeUnit.MILLISECONDS.toNanos(900));
+                m.demand = m.rate * TimeUnit.SECONDS.toNanos(1) / active;
+                host += m.rate;
+                byBus.computeIfAbsent(m.bus, k -> new ArrayList<>()).add(m);
+            }
+            Map<String, Long> buses = new TreeMap<>();
+            for (Map.Entry<String, List<Meter>> e : byBus.entrySet()) {
+                buses.put(e.getKey(), e.getValue().stream().mapToLong(m -> m.rate).sum());
+            }
+            hostRate = host;
+            busRates = buses;
+            for (String bus : buses.keySet()) {
+                if (busGauges.add(bus)) {
+                    Metrics.gauge("capture.bandwidth.bus." + bus + ".bps", () -> busRates.getOrDefault(bus, 0L));
+                }
+            }
+
+            Map<Meter, Long> limits = new HashMap<>();
+            // 不知道在哪条总线上的设备只受整机预算限制
+            if (busBudget > 0) {
+                for (Map.Entry<String, List<Meter>> e : byBus.entrySet()) {
+                    if (!UNKNOWN_BUS.equals(e.getKey())) {
+                        fairShare(e.getValue(), busBudget, limits);
+                    }
+                }
+            }
+            if (hostBudget > 0) {
+                fairShare(meters, hostBudget, limits);
+            }
+            for (Meter m : meters) {
+                Long limit = limits.get(m);
+                m.limit = limit == null ? Long.MAX_VALUE : limit;
+                adjustQuality(m);
+            }
+        } catch (Throwable t) {
+            logger.warn("bandwidth tick failed", t);
+        }
+    }
+
+    /**
+     * max-min公平分配：从速率最低的开始满足，剩下的预算平分给更忙的
+     */
+    private void fairShare(List<Meter> group, long budget, Map<Meter, Long> limits) {
+        List<Meter> sorted = new ArrayList<>(group);
+        // 已经被总线限制过的按限制后的速率参与整机分配
+        sorted.sort(Comparator.comparingLong(m -> effectiveRate(m, limits)));
+        long remaining = budget;
+        for (int i = 0; i < sorted.size(); i++) {
+            Meter m = sorted.get(i);
+            long share = remaining / (sorted.size() - i);
+            long rate = effectiveRate(m, limits);
+            if (rate <= share) {
+                remaining -= rate;
+                continue;
+            }
+            for (int j = i; j < sorted.size(); j++) {
+                limits.put(sorted.get(j), Math.min(share, effectiveRate(sorted.get(j), limits)));
+            }
+            return;
+        }
+    }
+
+    private static long effectiveRate(Meter m, Map<Meter, Long> limits) {
+        Long limit = limits.get(m);
+        return limit == null ? m.demand : Math.min(limit, m.demand);
+    }
+
+    private void adjustQuality(Meter m) {
+        if (m.limit != Long.MAX_VALUE) {
+            m.freeSeconds = 0;
+            if (++m.throttledSeconds >= lowerAfter && m.quality > minQuality) {
+                m.throttledSeconds = 0;
+                m.quality = Math.max(minQuality, m.quality - qualityStep);
+                Metrics.counter("capture.bandwidth.quality.lowered").inc();
+                logger.info(String.format("bandwidth: %s on %s limited to %dB/s, lower quality to %d", m.serialNumber, m.bus, m.limit, m.quality));
+                applyQuality(m);
+            }
+        } else {
+            m.throttledSeconds = 0;
+            if (++m.freeSeconds >= raiseAfter && m.quality < DEFAULT_QUALITY) {
+                m.freeSeconds = 0;
+                m.quality = Math.min(DEFAULT_QUALITY, m.quality + qualityStep);
+                Metrics.counter("capture.bandwidth.quality.raised").inc();
+                logger.info(String.format("bandwidth: %s on %s raise quality to %d", m.serialNumber, m.bus, m.quality));
+                applyQuality(m);
+            }
+        }
+    }
+
+    /**
+     * 重启minicap要调用adb，不占用调度线程
+     */
+    private void applyQuality(Meter m) {
+        int quality = m.quality;
+        CaptureEngine.getInstance().getShellExecutor().execute(() -> {
+            // 排队期间minicap可能已经关闭
+            if (meters.contains(m)) {
+                m.minicap.setQuality(quality);
+            }
+        });
+    }
+
+    /**
+     * 一路minicap的流量统计和令牌桶
+     */
+    class Meter {
+        final Minicap minicap;
+        final String serialNumber;
+        final String bus;
+
+        // 以下字段只在调度线程里修改
+        int quality = DEFAULT_QUALITY;
+        int throttledSeconds = 0;
+        int freeSeconds = 0;
+        volatile long rate = 0;
+        // 不暂停读取时的速率
+        volatile long demand = 0;
+
+        // 本秒发出的字节数和暂停读取的时间
+        final AtomicLong window = new AtomicLong();
+        final AtomicLong pausedNanos = new AtomicLong();
+        volatile long limit = Long.MAX_VALUE;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+
+        Meter(Minicap minicap, String bus) {
+            this.minicap = minicap;
+            this.serialNumber = minicap.getDevice().getSerialNumber();
+            this.bus = bus;
+        }
+
+        /**
+         * 统计发出的一帧，超过上限时返回应当暂停读取的毫秒数，不用暂停时返回0
+         * 只在这一路的selector线程里调用
+         */
+        long consume(int bytes) {
+            window.addAndGet(bytes);
+            long l = limit;
+            long now = System.nanoTime();
+            if (l == Long.MAX_VALUE) {
+                tokens = 0;
+                lastRefill = now;
+                return 0;
+            }
+            // 最多攒一秒的额度
+            tokens = Math.min(l, tokens + (now - lastRefill) / 1e9 * l);
+            lastRefill = now;
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            // 透支的额度补回来之前不再读取，上限比一帧还小时也能慢慢出图
+            long pause = Math.min(1000, (long) Math.ceil(-tokens * 1000 / l));
+            pausedNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(pause));
+            Metrics.counter("capture.bandwidth.paused.ms").add(pause);
+            return pause;
+        }
+    }
+}
@@ -27,29 +27,26 @@
 package com.yeetor.minicap;
 
 import com.android.ddmlib.IShellOutputReceiver;
-import com.yeetor.util.Util;
 
-import java.io.OutputStream;
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
 
 /**
  * Created by harry on 2017/4/17.
  */
 public class BinaryOutputReceiver implements IShellOutputReceiver {
 
-    byte[] output = new byte[0];
+    // 按倍数增长，避免每次输出都复制全部数据
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
 
     @Override
     public void addOutput(byte[] bytes, int offest, int len) {
-        byte[] b = Arrays.copyOfRange(bytes, offest, offest + len);
-        output = Util.mergeArray(output, b);
+        output.write(bytes, offest, len);
 //        System.out.println(len + ":" + output);
 //        System.out.println(new String(bytes, offest, len));
     }
 
     @Override
     public void flush() {
-        System.out.println("flush");
     }
 
     @Override
@@ -58,6 +55,6 @@ public class BinaryOutputReceiver implements IShellOutputReceiver {
     }
 
     public byte[] getOutput() {
-        return output;
+        return output.toByteArray();
     }
 }
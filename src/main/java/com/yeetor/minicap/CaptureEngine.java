@@ -0,0 +1,320 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import com.yeetor.util.Constant;
+import com.yeetor.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 屏幕采集引擎
+ *
+ * 所有设备的采集socket由少量NIO selector线程统一读取，每个连接自己的解析状态保存在 StreamHandler 里，
+ * 设备数量增加时线程数保持不变。
+ * 阻塞的 executeShellCommand 放在单独的线程池里执行，不占用selector线程。
+ *
+ * 线程数配置见 yeetor.properties:
+ *   capture.selector.threads  selector线程数
+ *   capture.dispatch.threads  分发图片给listener的线程数
+ */
+public class CaptureEngine {
+    private static Logger logger = Logger.getLogger(CaptureEngine.class);
+
+    // 每次可读最多读几次，避免一个设备占住selector线程
+    private static final int MAX_READS_PER_SELECT = 4;
+
+    private static CaptureEngine instance = null;
+
+    public interface StreamHandler {
+        /**
+         * socket可读时在selector线程回调
+         * @return 读取的字节数，-1表示连接已关闭
+         */
+        int onReadable(SocketChannel channel) throws IOException;
+
+        /**
+         * 调用过 {@link Stream#setWriteInterest(boolean)} 后socket可写时在selector线程回调
+         */
+        default void onWritable(SocketChannel channel) throws IOException {
+        }
+
+        /**
+         * 连接关闭后在selector线程回调，之后不会再有 onReadable
+         * @param cause 主动关闭时为null
+         */
+        void onClosed(IOException cause);
+    }
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ExecutorService shellExecutor;
+    private final ExecutorService dispatchExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    public static synchronized CaptureEngine getInstance() {
+        if (instance == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int selectors = Constant.getIntProperty("capture.selector.threads", Math.max(1, Math.min(4, cpus / 2)));
+            int dispatchers = Constant.getIntProperty("capture.dispatch.threads", Math.max(2, cpus));
+            try {
+                instance = new CaptureEngine(selectors, dispatchers);
+            } catch (IOException e) {
+                throw new IllegalStateException("can not open selector", e);
+            }
+        }
+        return instance;
+    }
+
+    CaptureEngine(int selectorThreads, int dispatchThreads) throws IOException {
+        loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop("capture-selector-" + i);
+        }
+        shellExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("capture-shell"));
+        dispatchExecutor = Executors.newFixedThreadPool(Math.max(1, dispatchThreads), new NamedThreadFactory("capture-dispatch"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("capture-scheduler"));
+    }
+
+    /**
+     * 注册一个已连接的socket，之后的读取都在selector线程完成
+     */
+    public Stream register(SocketChannel channel, StreamHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        Stream stream = new Stream(loop, scheduler, channel, handler);
+        loop.execute(stream::open);
+        return stream;
+    }
+
+    /**
+     * 执行阻塞shell命令（如minicap进程）的线程池
+     */
+    public ExecutorService getShellExecutor() {
+        return shellExecutor;
+    }
+
+    /**
+     * 分发图片给listener的线程池
+     */
+    public ExecutorService getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * 定时任务，如连接重试
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 一个注册在引擎上的连接
+     */
+    public static class Stream {
+        private final SelectorLoop loop;
+        private final ScheduledExecutorService scheduler;
+        private final SocketChannel channel;
+        private final StreamHandler handler;
+        private SelectionKey key;
+        private boolean closed = false;
+        private volatile boolean paused = false;
+        private volatile boolean writeInterest = false;
+
+        Stream(SelectorLoop loop, ScheduledExecutorService scheduler, SocketChannel channel, StreamHandler handler) {
+            this.loop = loop;
+            this.scheduler = scheduler;
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * 暂停读取一段时间，socket缓冲区满后设备端不再发送；已经暂停时忽略
+         */
+        public void pauseReads(long millis) {
+            if (paused) {
+                return;
+            }
+            paused = true;
+            loop.execute(this::updateInterest);
+            scheduler.schedule(() -> {
+                paused = false;
+                loop.execute(this::updateInterest);
+            }, millis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 是否等待socket可写，有数据没写完时打开，写完后关闭
+         */
+        public void setWriteInterest(boolean on) {
+            writeInterest = on;
+            loop.execute(this::updateInterest);
+        }
+
+        private int interestOps() {
+            return (paused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0);
+        }
+
+        private void updateInterest() {
+            if (!closed && key != null && key.isValid()) {
+                key.interestOps(interestOps());
+            }
+        }
+
+        /**
+         * 关闭连接，可以在任意线程调用，handler.onClosed 会在selector线程回调
+         */
+        public void close() {
+            loop.execute(() -> closeNow(null));
+        }
+
+        private void open() {
+            if (closed) {
+                return;
+            }
+            try {
+                key = channel.register(loop.selector, interestOps(), this);
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        }
+
+        private void read() {
+            try {
+                for (int i = 0; i < MAX_READS_PER_SELECT && !closed && !paused; i++) {
+                    int n = handler.onReadable(channel);
+                    if (n < 0) {
+                        closeNow(new EOFException("end of stream"));
+                        return;
+                    }
+                    if (n == 0) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                closeNow(e);
+            } catch (RuntimeException e) {
+                logger.warn("capture stream handler error", e);
+                closeNow(new IOException(e));
+            }
+        }
+
+        private void write() {
+            try {
+                handler.onWritable(channel);
+            } catch (IOException e) {
+                closeNow(e);
+            } catch (RuntimeException e) {
+                logger.warn("capture stream handler error", e);
+                closeNow(new IOException(e));
+            }
+        }
+
+        private void closeNow(IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            try {
+                handler.onClosed(cause);
+            } catch (RuntimeException e) {
+                logger.warn("capture stream close error", e);
+            }
+        }
+    }
+
+    private static class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Stream stream = (Stream) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            stream.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            stream.write();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (Exception e) {
+                    logger.warn("capture selector error", e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.warn("capture task error", e);
+                }
+            }
+        }
+    }
+}
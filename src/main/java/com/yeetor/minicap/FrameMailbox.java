@@ -0,0 +1,144 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import io.netty.util.ReferenceCounted;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 只保存最新一帧的信箱，生产者和消费者之间无锁交接
+ *
+ * 生产者 offer 时如果上一帧还没被取走，直接替换并释放旧帧，记一次丢帧。
+ * 消费在 executor 上进行，同一个信箱同一时刻最多只有一个消费任务，
+ * 所以消费者再慢也只会丢帧，不会堆积内存。
+ */
+public class FrameMailbox<T extends ReferenceCounted> {
+    private static Logger logger = Logger.getLogger(FrameMailbox.class);
+
+    private final AtomicReference<T> slot = new AtomicReference<T>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor executor;
+    private final Consumer<T> consumer;
+    private volatile boolean closed = false;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public FrameMailbox(Executor executor, Consumer<T> consumer) {
+        this.executor = executor;
+        this.consumer = consumer;
+    }
+
+    /**
+     * 投递一帧，信箱会 retain 这一帧，调用方仍然负责释放自己的引用
+     */
+    public void offer(T frame) {
+        if (closed) {
+            return;
+        }
+        offered.incrementAndGet();
+        frame.retain();
+        T stale = slot.getAndSet(frame);
+        if (stale != null) {
+            stale.release();
+            dropped.incrementAndGet();
+        }
+        if (closed) {
+            clear();
+            return;
+        }
+        schedule();
+    }
+
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getOffered() {
+        return offered.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void clear() {
+        T frame = slot.getAndSet(null);
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                logger.warn("schedule frame mailbox failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            T frame;
+            while (!closed && (frame = slot.getAndSet(null)) != null) {
+                try {
+                    consumer.accept(frame);
+                    delivered.incrementAndGet();
+                } catch (Exception e) {
+                    logger.warn("frame consumer error", e);
+                } finally {
+                    frame.release();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // drain 结束和 scheduled 复位之间可能又来了新帧
+        if (!closed && slot.get() != null) {
+            schedule();
+        }
+    }
+}
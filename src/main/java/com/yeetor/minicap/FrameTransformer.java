@@ -0,0 +1,138 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import com.yeetor.util.Constant;
+import com.yeetor.util.NamedThreadFactory;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 服务端的旋转和缩放
+ *
+ * 在固定大小的线程池中把一帧JPG解码、旋转缩放后重新编码，不需要重启设备上的minicap
+ */
+public class FrameTransformer {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Constant.getIntProperty("capture.transform.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2))),
+            new NamedThreadFactory("capture-transform"));
+
+    // 重新编码的JPG质量上限，1-100
+    private static final float QUALITY = Math.min(100, Math.max(1, Constant.getIntProperty("capture.transform.quality", 70))) / 100f;
+
+    // ImageWriter不是线程安全的，每个线程一个
+    private static final ThreadLocal<ImageWriter> writers = ThreadLocal.withInitial(() -> ImageIO.getImageWritersByFormatName("jpeg").next());
+
+    private FrameTransformer() {
+    }
+
+    /**
+     * 做变换的线程池，配合 FrameMailbox 使用，每一路最多只有一个任务在排队
+     */
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public static BufferedImage decode(JpgFrame frame) throws IOException {
+        try (ByteBufInputStream in = new ByteBufInputStream(frame.content().duplicate())) {
+            BufferedImage image = ImageIO.read(in);
+            if (image == null) {
+                throw new IOException("not a jpg image");
+            }
+            return image;
+        }
+    }
+
+    /**
+     * 旋转后缩放
+     * @param rotate 逆时针旋转角度，0/90/180/270，和minicap -P 的方向一致
+     */
+    public static BufferedImage transform(BufferedImage src, float scale, int rotate) {
+        rotate = ((rotate % 360) + 360) % 360;
+        boolean swap = rotate == 90 || rotate == 270;
+        int w = Math.max(1, Math.round((swap ? src.getHeight() : src.getWidth()) * scale));
+        int h = Math.max(1, Math.round((swap ? src.getWidth() : src.getHeight()) * scale));
+
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            AffineTransform at = new AffineTransform();
+            at.scale(scale, scale);
+            switch (rotate) {
+                case 90:
+                    at.translate(0, src.getWidth());
+                    break;
+                case 180:
+                    at.translate(src.getWidth(), src.getHeight());
+                    break;
+                case 270:
+                    at.translate(src.getHeight(), 0);
+                    break;
+                default:
+                    break;
+            }
+            at.rotate(-Math.toRadians(rotate));
+            g.drawImage(src, at, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * @param fingerprint 源图片的指纹，相同的源图片和参数得到相同的输出
+     */
+    public static JpgFrame encode(BufferedImage image, long timestamp, long fingerprint) throws IOException {
+        ImageWriter writer = writers.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 8);
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(QUALITY);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return new JpgFrame(Unpooled.wrappedBuffer(out.toByteArray()), timestamp, fingerprint);
+    }
+}
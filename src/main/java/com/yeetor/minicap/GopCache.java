@@ -0,0 +1,128 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264关键帧缓存：最近的config包(SPS/PPS)加上从最近一个关键帧开始的所有数据包
+ *
+ * 中途加入的观看者先收到这些数据包，不用等下一个关键帧就能解码出画面。
+ * GOP超过上限时只保留config，等下一个关键帧重新开始缓存。
+ *
+ * 非线程安全，由调用方加锁
+ */
+public class GopCache {
+
+    private static Logger logger = Logger.getLogger(GopCache.class);
+
+    private final String name;
+    private final long maxBytes;
+
+    private H264Packet config;
+    private final List<H264Packet> gop = new ArrayList<H264Packet>();
+    private long gopBytes = 0;
+
+    public GopCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    public void add(H264Packet packet) {
+        if (packet.isConfig()) {
+            // 编码参数变化后之前的GOP不能再用
+            if (config != null) {
+                config.release();
+            }
+            config = packet.retain();
+            clearGop();
+            return;
+        }
+        if (packet.isKeyFrame()) {
+            clearGop();
+        } else if (gop.isEmpty()) {
+            // 没有关键帧，单独的P帧无法解码
+            return;
+        }
+        if (gopBytes + packet.length() > maxBytes) {
+            // 之后这个GOP的P帧都会因为gop为空被跳过，每个GOP最多记录一次
+            logger.warn(String.format("%s: gop exceeds %d bytes after %d packets, cache dropped until next key frame",
+                    name, maxBytes, gop.size()));
+            Metrics.counter("capture.h264.gop.overflow").inc();
+            clearGop();
+            return;
+        }
+        gop.add(packet.retain());
+        gopBytes += packet.length();
+    }
+
+    /**
+     * 按顺序返回缓存的数据包，都已retain，调用方负责释放
+     */
+    public List<H264Packet> snapshot() {
+        List<H264Packet> packets = new ArrayList<H264Packet>(gop.size() + 1);
+        if (config != null) {
+            packets.add(config.retainedDuplicate());
+        }
+        for (H264Packet p : gop) {
+            packets.add(p.retainedDuplicate());
+        }
+        return packets;
+    }
+
+    public boolean hasKeyFrame() {
+        return !gop.isEmpty();
+    }
+
+    public int size() {
+        return gop.size();
+    }
+
+    public long getGopBytes() {
+        return gopBytes;
+    }
+
+    public void clear() {
+        if (config != null) {
+            config.release();
+            config = null;
+        }
+        clearGop();
+    }
+
+    private void clearGop() {
+        for (H264Packet p : gop) {
+            p.release();
+        }
+        gop.clear();
+        gopBytes = 0;
+    }
+}
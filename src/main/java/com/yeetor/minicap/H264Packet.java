@@ -0,0 +1,117 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * 一个H.264数据包（Annex B格式，带起始码），直接转发给客户端解码，服务端不重新编码
+ *
+ * config包含SPS/PPS，客户端必须先收到config才能解码后续的数据包
+ */
+public class H264Packet extends DefaultByteBufHolder {
+
+    // 编码器输出的显示时间戳，单位微秒，config包为-1
+    private final long pts;
+    private final boolean config;
+    private final boolean keyFrame;
+    // 数据包被完整读取的时间
+    private final long timestamp;
+
+    public H264Packet(ByteBuf data, long pts, boolean config, boolean keyFrame, long timestamp) {
+        super(data);
+        this.pts = pts;
+        this.config = config;
+        this.keyFrame = keyFrame;
+        this.timestamp = timestamp;
+    }
+
+    public long getPts() {
+        return pts;
+    }
+
+    public boolean isConfig() {
+        return config;
+    }
+
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int length() {
+        return content().readableBytes();
+    }
+
+    @Override
+    public H264Packet copy() {
+        return (H264Packet) super.copy();
+    }
+
+    @Override
+    public H264Packet duplicate() {
+        return (H264Packet) super.duplicate();
+    }
+
+    @Override
+    public H264Packet retainedDuplicate() {
+        return (H264Packet) super.retainedDuplicate();
+    }
+
+    @Override
+    public H264Packet replace(ByteBuf content) {
+        return new H264Packet(content, pts, config, keyFrame, timestamp);
+    }
+
+    @Override
+    public H264Packet retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public H264Packet retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public H264Packet touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public H264Packet touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * 一帧JPG图片
+ *
+ * content()是从解析缓冲区切出来的引用计数切片，没有额外拷贝。持有期间解析器不能回绕复用缓冲区，不要长期持有。
+ * 回调中拿到的帧在回调返回后会被释放，需要异步使用时请先 retain() 或 retainedDuplicate()
+ */
+public class JpgFrame extends DefaultByteBufHolder {
+
+    // 帧被完整读取的时间
+    private final long timestamp;
+
+    // 图片内容的指纹，相同画面的指纹相同，0表示没有计算
+    private final long fingerprint;
+
+    public JpgFrame(ByteBuf data, long timestamp) {
+        this(data, timestamp, 0);
+    }
+
+    public JpgFrame(ByteBuf data, long timestamp, long fingerprint) {
+        super(data);
+        this.timestamp = timestamp;
+        this.fingerprint = fingerprint;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int length() {
+        return content().readableBytes();
+    }
+
+    /**
+     * 拷贝出一份byte[]，给还在使用byte[]接口的地方用
+     */
+    public byte[] toByteArray() {
+        ByteBuf data = content();
+        byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        return bytes;
+    }
+
+    @Override
+    public JpgFrame copy() {
+        return (JpgFrame) super.copy();
+    }
+
+    @Override
+    public JpgFrame duplicate() {
+        return (JpgFrame) super.duplicate();
+    }
+
+    @Override
+    public JpgFrame retainedDuplicate() {
+        return (JpgFrame) super.retainedDuplicate();
+    }
+
+    @Override
+    public JpgFrame replace(ByteBuf content) {
+        return new JpgFrame(content, timestamp, fingerprint);
+    }
+
+    @Override
+    public JpgFrame retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public JpgFrame retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public JpgFrame touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public JpgFrame touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+}
@@ -27,21 +27,28 @@
 package com.yeetor.minicap;
 
 import com.android.ddmlib.*;
+import com.yeetor.adb.AdbConnection;
 import com.yeetor.adb.AdbDevice;
 import com.yeetor.adb.AdbForward;
 import com.yeetor.adb.AdbServer;
+import com.yeetor.adb.AgentInstaller;
+import com.yeetor.adb.ForwardRegistry;
+import com.yeetor.adb.ShellExecutor;
 import com.yeetor.util.Constant;
-import com.yeetor.util.Util;
+import com.yeetor.util.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
-import sun.misc.BASE64Decoder;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static com.yeetor.adb.AdbDevice.SCREEN_SIZE;
@@ -60,32 +67,52 @@ public class Minicap extends ScreencapBase {
     // 物理屏幕宽高
     private Size deviceSize;
 
-    private boolean running = false;
+    private volatile boolean running = false;
 
-    // 启动minicap的线程
-    private Thread minicapThread, minicapInitialThread, dataReaderThread, imageParserThread;
+    private final CaptureEngine engine = CaptureEngine.getInstance();
 
-    private AdbForward forward;
+    // 当前输出图片的minicap（进程、forward、socket）
+    private volatile StreamReader stream;
 
-    // listener
-    private List<MinicapListener> listenerList = new ArrayList<MinicapListener>();
+    // 重新配置时新启动的minicap，收到数据后替换 stream
+    private volatile StreamReader pendingStream;
+    private volatile long switchStartTime;
 
-    private BlockingQueue<byte[]> dataQueue = new LinkedBlockingQueue<byte[]>();
+    // kill之后不再启动新的minicap，带宽调度的setQuality可能在kill之后才执行；在this锁内修改
+    private volatile boolean killed = false;
 
-    private Banner banner;
+    // 当前的投影参数和JPG质量，质量为0时使用minicap的默认值
+    private volatile float scale = 1.0f;
+    private volatile int rotate = 0;
+    private volatile int quality = 0;
+
+    // 带宽调度的流量统计，没有配置带宽预算时为null
+    private volatile BandwidthScheduler.Meter meter;
 
-    private Socket minicapSocket;
+    // 解析线程与分发线程之间只保留最新一帧，listener处理不过来时丢弃旧帧
+    private final FrameMailbox<JpgFrame> frameMailbox = new FrameMailbox<JpgFrame>(engine.getDispatchExecutor(), this::dispatchJPG);
+
+    private Banner banner;
 
 
     public static void installMinicap(AdbDevice device) throws MinicapInstallException {
         if (device == null) {
             throw new MinicapInstallException("device can't be null");
         }
-        
-        if (isMinicapInstalled(device)) {
-            return;
+
+        // 只上传和设备上不一致的文件
+        try {
+            AgentInstaller.getInstance().install(device, agentFiles(device));
+        } catch (IOException e) {
+            throw new MinicapInstallException(e.getMessage());
         }
+    }
 
+    /**
+     * 按设备的ABI和SDK选择需要安装的文件
+     * @return 本地文件 -> 设备路径
+     */
+    public static Map<File, String> agentFiles(AdbDevice device) throws MinicapInstallException {
         String sdk = device.getProperty(Constant.PROP_SDK);
         String abi = device.getProperty(Constant.PROP_ABI);
 
@@ -100,25 +127,16 @@ public class Minicap extends ScreencapBase {
         if (minicap_bin == null || !minicap_bin.exists()) {
             throw new MinicapInstallException("File: " + minicap_bin.getAbsolutePath() + " not exists!");
         }
-        try {
-            AdbServer.server().executePushFile(device.getIDevice(), minicap_bin.getAbsolutePath(), REMOTE_PATH + "/" + MINICAP_BIN);
-        } catch (Exception e) {
-            throw new MinicapInstallException(e.getMessage());
-        }
-
-        AdbServer.executeShellCommand(device.getIDevice(), "chmod 777 " + REMOTE_PATH + "/" + MINICAP_BIN);
-
         // minicap.so
         File minicap_so = Constant.getMinicapSo(abi, sdk);
         if (minicap_so == null || !minicap_so.exists()) {
             throw new MinicapInstallException("File: " + minicap_so.getAbsolutePath() + " not exists!");
         }
 
-        try {
-            AdbServer.server().executePushFile(device.getIDevice(), minicap_so.getAbsolutePath(), REMOTE_PATH + "/" + MINICAP_SO);
-        } catch (Exception e) {
-            throw new MinicapInstallException(e.getMessage());
-        }
+        Map<File, String> files = new LinkedHashMap<>();
+        files.put(minicap_bin, REMOTE_PATH + "/" + MINICAP_BIN);
+        files.put(minicap_so, REMOTE_PATH + "/" + MINICAP_SO);
+        return files;
     }
 
     public Minicap(AdbDevice device) {
@@ -145,14 +163,30 @@ public class Minicap extends ScreencapBase {
         this(AdbServer.server().getFirstDevice());
     }
 
-    public void addEventListener(MinicapListener listener) {
-        if (listener != null) {
-            this.listenerList.add(listener);
-        }
+    @Override
+    public AdbDevice getDevice() {
+        return device;
     }
-    
-    public List<MinicapListener> getEventListener() {
-        return listenerList;
+
+    /**
+     * 解析出的帧数
+     */
+    public long getReceivedFrames() {
+        return frameMailbox.getOffered();
+    }
+
+    /**
+     * 已分发给listener的帧数
+     */
+    public long getDeliveredFrames() {
+        return frameMailbox.getDelivered();
+    }
+
+    /**
+     * listener来不及处理而丢弃的帧数
+     */
+    public long getDroppedFrames() {
+        return frameMailbox.getDropped();
     }
 
     /*
@@ -186,26 +220,80 @@ public class Minicap extends ScreencapBase {
     }
     
     public AdbForward createForward() {
-        forward = generateForwardInfo();
+        ForwardRegistry registry = ForwardRegistry.getInstance();
+        String name = registry.allocateName(device.getSerialNumber(), "cap");
         try {
-            device.getIDevice().createForward(forward.getPort(), forward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-        } catch (Exception e) {
+            return registry.createNamed(device, name);
+        } catch (IOException e) {
             e.printStackTrace();
             System.out.println("create forward failed");
+            // 端口0连接会失败，按启动失败处理
+            return new AdbForward(device.getSerialNumber(), 0, name);
         }
-        return forward;
     }
 
-    private void removeForward() {
-        if (forward == null || !forward.isForward()) {
-            return;
-        }
+    private void removeForward(AdbForward forward) {
+        ForwardRegistry.getInstance().remove(device, forward);
+    }
+
+    /**
+     * 屏幕截图
+     *
+     * 默认通过 exec 服务直接读取minicap输出的二进制jpg，失败时退回到base64方式
+     *
+     * @return jpg数据，失败返回空数组
+     */
+    public byte[] takeScreenShot() {
+        ByteBuf jpg = takeScreenShotBuffer();
         try {
-            device.getIDevice().removeForward(forward.getPort(), forward.getLocalAbstract(), IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-            forward = null;
-        } catch (Exception e) {
-            e.printStackTrace();
+            return ByteBufUtil.getBytes(jpg);
+        } finally {
+            jpg.release();
+        }
+    }
+
+    /**
+     * 同 takeScreenShot，数据不拷贝成byte[]
+     *
+     * @return jpg数据，失败时没有可读数据，调用方负责释放
+     */
+    public ByteBuf takeScreenShotBuffer() {
+        if ("raw".equals(Constant.getProperty("shot.mode", "raw"))) {
+            try {
+                return takeRawScreenShot();
+            } catch (IOException e) {
+                logger.warn(String.format("device(%s) raw screenshot failed, fallback to base64: %s", device.getSerialNumber(), e.getMessage()));
+            }
         }
+        return Unpooled.wrappedBuffer(takeBase64ScreenShot());
+    }
+
+    /**
+     * 通过 exec 服务截图，输出不经过pty，不存在换行符转换问题，数据直接写入可增长的缓冲区
+     *
+     * @return jpg数据，调用方负责释放
+     */
+    public ByteBuf takeRawScreenShot() throws IOException {
+        String command = getMinicapCommand(deviceSize.w, deviceSize.h, deviceSize.w, deviceSize.h, 0, false, "minicap", new String[] {"-s", "2>/dev/null"});
+        logger.info(String.format("device(%s) takeRawScreenShot", device.getSerialNumber()));
+        ByteBuf output = AdbConnection.execOut(device.getSerialNumber(), command, Constant.getIntProperty("shot.timeout.ms", 10000));
+        // 跳过jpg之前的文本输出
+        int start = indexOfJpg(output);
+        if (start < 0) {
+            output.release();
+            throw new IOException("not a jpg file!");
+        }
+        output.readerIndex(start);
+        return output;
+    }
+
+    private static int indexOfJpg(ByteBuf buf) {
+        for (int i = buf.readerIndex(), end = buf.writerIndex() - 1; i < end; i++) {
+            if (buf.getByte(i) == (byte) 0xFF && buf.getByte(i + 1) == (byte) 0xD8) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -215,20 +303,24 @@ public class Minicap extends ScreencapBase {
      *
      * @return
      */
-    public byte[] takeScreenShot() {
+    public byte[] takeBase64ScreenShot() {
         String command = getMinicapCommand(deviceSize.w, deviceSize.h, deviceSize.w, deviceSize.h, 0, false, "minicap", new String[] {"-s -b"});
         logger.info(String.format("device(%s) takeScreenShot", device.getSerialNumber()));
-        BinaryOutputReceiver receiver = new BinaryOutputReceiver();
+        // base64输出都是ASCII字符，可以按字符串读取
+        String output;
         try {
-            device.getIDevice().executeShellCommand(command, receiver, 0);
-        } catch (Exception e) {
-            logger.warn("device execute command error!");
-            e.printStackTrace();
+            output = ShellExecutor.getInstance().execute(device.getIDevice(), command, Constant.getIntProperty("shot.timeout.ms", 10000)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new byte[0];
+        } catch (ExecutionException e) {
+            logger.warn(String.format("device(%s) takeScreenShot failed: %s", device.getSerialNumber(), e.getCause().getMessage()));
+            return new byte[0];
         }
         // remove text output
-        byte[] bytes = receiver.getOutput();
+        byte[] bytes;
         do {
-            String dataStr = new String(bytes);
+            String dataStr = output;
             int jpgStart = dataStr.indexOf("/9j/");
 
             if (jpgStart >= 0) {
@@ -238,13 +330,13 @@ public class Minicap extends ScreencapBase {
             }
 
             try {
-                bytes = new BASE64Decoder().decodeBuffer(dataStr);
-            } catch (IOException e) {
+                bytes = Base64.getMimeDecoder().decode(dataStr);
+            } catch (IllegalArgumentException e) {
                 logger.warn("base64 decode error!");
                 e.printStackTrace();
                 break;
             }
-            if (bytes[0] != -1 && bytes[1] != -40) {
+            if (bytes.length < 2 || bytes[0] != -1 || bytes[1] != -40) {
                 logger.warn("not a jpg file!");
                 break;
             }
@@ -256,212 +348,190 @@ public class Minicap extends ScreencapBase {
     }
 
     public void start(int ow, int oh, int dw, int dh, int rotate, boolean shipFrame, String[] args) {
-        AdbForward forward = createForward();
-        String command = getMinicapCommand(ow, oh, dw, dh ,rotate, shipFrame, forward.getLocalAbstract(), args);
-        logger.info("start minicap:" + command);
-        minicapThread = startMinicapThread(command);
-        minicapInitialThread = startInitialThread("127.0.0.1", forward.getPort());
+        if (killed) {
+            return;
+        }
+        StreamReader s = launch(ow, oh, dw, dh, rotate, shipFrame, args);
+        boolean accepted;
+        synchronized (this) {
+            accepted = !killed;
+            if (accepted) {
+                stream = s;
+            }
+        }
+        if (!accepted) {
+            s.shutdown();
+            return;
+        }
+        s.connect();
     }
 
+    @Override
     public void start(final float scale, final int rotate) {
+        if (killed) {
+            return;
+        }
+        this.scale = scale;
+        this.rotate = rotate;
+        BandwidthScheduler bandwidth = BandwidthScheduler.getInstance();
+        if (meter == null && bandwidth.isEnabled()) {
+            BandwidthScheduler.Meter m = bandwidth.register(this);
+            meter = m;
+            // kill先设置killed再取meter，两边总有一边能看到对方
+            if (killed) {
+                meter = null;
+                bandwidth.unregister(m);
+                return;
+            }
+        }
         start(deviceSize.w, deviceSize.h, (int)(deviceSize.w * scale), (int)(deviceSize.h * scale), rotate,true, null);
     }
 
+    /**
+     * 修改投影参数
+     *
+     * 新的minicap用新的forward启动，旧的继续输出图片，新的收到数据后再替换旧的并结束旧进程，
+     * 切换期间画面不会中断。新的启动失败时继续使用旧的。
+     */
     public void reStart(final float scale, final int rotate) {
-        running = false;
-        if (minicapThread != null) {
-            minicapThread.stop();
+        if (killed) {
+            return;
         }
-
-        if (dataReaderThread != null) {
-            try {
-                dataReaderThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        this.scale = scale;
+        this.rotate = rotate;
+        if (stream == null) {
+            start(scale, rotate);
+            return;
         }
-
-        if (imageParserThread != null) {
-            try {
-                imageParserThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        StreamReader next = launch(deviceSize.w, deviceSize.h, (int)(deviceSize.w * scale), (int)(deviceSize.h * scale), rotate, true, null);
+        StreamReader old;
+        boolean accepted;
+        synchronized (this) {
+            accepted = !killed;
+            old = accepted ? pendingStream : null;
+            if (accepted) {
+                pendingStream = next;
+                switchStartTime = System.currentTimeMillis();
             }
         }
-        start(scale, rotate);
+        if (!accepted) {
+            next.shutdown();
+            return;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+        next.connect();
     }
 
-    public void kill() {
-        onClose();
-
-        running = false;
-        if (minicapThread != null) {
-            minicapThread.stop();
+    /**
+     * 修改JPG质量(-Q)，正在运行时用新的参数重启minicap
+     */
+    public void setQuality(int quality) {
+        if (killed || this.quality == quality) {
+            return;
         }
-
-        // 关闭socket
-        if (minicapSocket != null && minicapSocket.isConnected()) {
-            try {
-                minicapSocket.close();
-            } catch (IOException e) {
-            }
-            minicapSocket = null;
+        this.quality = quality;
+        if (stream != null) {
+            reStart(scale, rotate);
         }
+    }
 
-        if (dataReaderThread != null) {
-            try {
-                dataReaderThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    public int getQuality() {
+        return quality;
+    }
 
-        if (imageParserThread != null) {
-            try {
-                imageParserThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    @Override
+    public void kill() {
+        synchronized (this) {
+            killed = true;
+        }
+        onClose();
+        frameMailbox.close();
+        stopStream();
+        BandwidthScheduler.Meter m = meter;
+        meter = null;
+        if (m != null) {
+            BandwidthScheduler.getInstance().unregister(m);
         }
     }
 
     /**
-     * 启动线程开启 minicap
-     * @param shellCommand
-     * @return 线程
+     * 创建forward并启动minicap进程，返回还没连接的socket
      */
-    private Thread startMinicapThread(final String shellCommand) {
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    device.getIDevice().executeShellCommand(shellCommand, new IShellOutputReceiver() {
-                        @Override
-                        public void addOutput(byte[] bytes, int offset, int len) {
-                            System.out.println("startMinicapThread" + new String(bytes, offset, len));
-                        }
-                        @Override
-                        public void flush() {}
-                        @Override
-                        public boolean isCancelled() {
-                            return false;
-                        }
-                    }, 0);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-
-        thread.start();
-        return thread;
-    }
-
-    private Thread startInitialThread(final String host, final int port) {
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    byte[] bytes = null;
-                    int tryTime = 50;
-                    while (true) {
-                        // 连接minicap启动的服务
-                        minicapSocket = new Socket(host, port);
-                        InputStream inputStream = minicapSocket.getInputStream();
-                        bytes = new byte[4096];
-                        int n = inputStream.read(bytes);
-
-                        if (n == -1) {
-                            Thread.sleep(10);
-                            minicapSocket.close();
-                        } else {
-                            // bytes内包含有信息，需要给Dataparser处理
-                            dataQueue.add(Arrays.copyOfRange(bytes, 0, n));
-                            running = true;
-                            onStartup(true);
-
-                            // 启动 DataReader  ImageParser
-                            dataReaderThread = startDataReaderThread(minicapSocket);
-                            imageParserThread = startImageParserThread();
-                            break;
-                        }
-
-                        tryTime--;
-                        if (tryTime == 0) {
-                            onStartup(false);
-                            break;
-                        }
-                    }
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            }
-        });
-        thread.start();
-        return thread;
+    private StreamReader launch(int ow, int oh, int dw, int dh, int rotate, boolean shipFrame, String[] args) {
+        AdbForward forward = createForward();
+        if (quality > 0) {
+            args = ArrayUtils.addAll(args, "-Q", String.valueOf(quality));
+        }
+        String command = getMinicapCommand(ow, oh, dw, dh ,rotate, shipFrame, forward.getLocalAbstract(), args);
+        logger.info("start minicap:" + command);
+        MinicapProcess process = startMinicapProcess(command);
+        return new StreamReader("127.0.0.1", forward, process, 50);
     }
 
     /**
-     * 生成forward信息
+     * 关闭socket并结束设备上的minicap进程
      */
-    private AdbForward generateForwardInfo() {
-        AdbForward[] forwards = AdbServer.server().getForwardList();
-        // serial_cap_number
-        int maxNumber = 0;
-        if (forwards.length > 0) {
-            for (AdbForward forward : forwards) {
-                if (forward.getSerialNumber().equals(device.getIDevice().getSerialNumber())) {
-                    String l = forward.getLocalAbstract();
-                    String[] s = l.split("_");
-                    if (s.length == 3) {
-                        int n = Integer.parseInt(s[2]);
-                        if (n > maxNumber) maxNumber = n;
-                    }
-                }
-            }
+    private void stopStream() {
+        running = false;
+        StreamReader s;
+        StreamReader p;
+        synchronized (this) {
+            s = stream;
+            p = pendingStream;
+            stream = null;
+            pendingStream = null;
+        }
+        if (s != null) {
+            s.shutdown();
+        }
+        if (p != null) {
+            p.shutdown();
         }
-        maxNumber += 1;
-
-        String forwardStr = String.format("%s_cap_%d", device.getIDevice().getSerialNumber(), maxNumber);
-        int freePort = Util.getFreePort();
-        AdbForward forward = new AdbForward(device.getIDevice().getSerialNumber(), freePort, forwardStr);
-        return forward;
-    }
-
-    private Thread startDataReaderThread(Socket minicapSocket) {
-        Thread thread = new Thread(new DataReader(minicapSocket));
-        thread.start();
-        return thread;
-    }
-
-    private Thread startImageParserThread() {
-        Thread thread = new Thread(new ImageParser());
-        thread.start();
-        return thread;
     }
 
-    private void onStartup(boolean success) {
-        for (MinicapListener listener : listenerList) {
-            listener.onStartup(this, success);
+    /**
+     * 新的minicap已经输出数据，替换旧的
+     */
+    private boolean promote(StreamReader next) {
+        StreamReader old;
+        synchronized (this) {
+            if (pendingStream != next) {
+                return false;
+            }
+            old = stream;
+            stream = next;
+            pendingStream = null;
         }
+        if (old != null) {
+            old.shutdown();
+        }
+        long used = System.currentTimeMillis() - switchStartTime;
+        Metrics.histogram("minicap.restart.ms").record(used);
+        logger.info(String.format("device(%s) minicap switched over in %dms", device.getSerialNumber(), used));
+        return true;
     }
 
-    private void onClose() {
-        for (MinicapListener listener : listenerList) {
-            listener.onClose(this);
-        }
-        removeForward();
+    /**
+     * 在shell线程池中启动 minicap
+     * @param shellCommand
+     * @return minicap进程
+     */
+    private MinicapProcess startMinicapProcess(final String shellCommand) {
+        MinicapProcess process = new MinicapProcess(shellCommand);
+        engine.getShellExecutor().execute(process);
+        return process;
     }
 
-    private void onBanner(Banner banner) {
-        for (MinicapListener listener : listenerList) {
-            listener.onBanner(this, banner);
-        }
+    private void onJPG(JpgFrame frame) {
+        onFrameTap(frame);
+        frameMailbox.offer(frame);
     }
 
-    private void onJPG(byte[] data) {
+    private void dispatchJPG(JpgFrame frame) {
         for (MinicapListener listener : listenerList) {
-            listener.onJPG(this, data);
+            listener.onJPG(this, frame);
         }
     }
 
@@ -478,195 +548,213 @@ public class Minicap extends ScreencapBase {
         return s.startsWith("{");
     }
 
-    private class DataReader implements Runnable {
-        static final int BUFF_SIZ = 4096;
-        Socket socket = null;
-        InputStream inputStream = null;
-        long ts = 0;
+    /**
+     * 只有当前的stream才输出banner和图片，切换中的和已经被替换的丢弃
+     */
+    private class FrameHandler implements MinicapFrameDecoder.Handler {
+        private final StreamReader owner;
 
-        DataReader(Socket minicapSocket) {
-            this.socket = minicapSocket;
-            try {
-                this.inputStream = minicapSocket.getInputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
-                onClose();
-            }
+        FrameHandler(StreamReader owner) {
+            this.owner = owner;
         }
 
         @Override
-        public void run() {
-            try {
-                readData();
-            } catch (IOException e) {
-                logger.warn("minicap lost connection: " + e.getMessage());
-                onClose();
+        public void onBanner(Banner b) {
+            if (stream != owner) {
+                return;
             }
+            banner = b;
+            Minicap.this.onBanner(b);
         }
 
-        public void readData() throws IOException {
-            DataInputStream stream = new DataInputStream(inputStream);
-            while (running) {
-                byte[] buffer = new byte[BUFF_SIZ];
-                ts = System.currentTimeMillis();
-                int len = stream.read(buffer);
-                if (len == -1) {
-                    return;
-                }
-                if (len == BUFF_SIZ) {
-                    dataQueue.add(buffer);
-                } else {
-                    dataQueue.add(Util.subArray(buffer, 0, len));
-                }
+        @Override
+        public void onFrame(JpgFrame frame) {
+            if (stream != owner) {
+                return;
+            }
+            BandwidthScheduler.Meter m = meter;
+            long pause = m == null ? 0 : m.consume(frame.length());
+            onJPG(frame);
+            if (pause > 0) {
+                owner.pauseReads(pause);
             }
         }
-
     }
 
-    private class ImageParser implements Runnable {
-        int readn = 0; // 已读大小
-        int bannerLen = 2; // banner信息大小
-        int readFrameBytes = 0;
-        int frameBodyLength = 0;
-        byte[] frameBody = new byte[0];
-        long t = 0;
+    /**
+     * 设备上的minicap进程，adb shell命令会一直阻塞到进程退出
+     * 取消后ddmlib会断开shell连接，设备上的minicap随之退出
+     */
+    private class MinicapProcess implements Runnable, IShellOutputReceiver {
+        private final String command;
+        private volatile boolean cancelled = false;
+
+        MinicapProcess(String command) {
+            this.command = command;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
 
         @Override
         public void run() {
-            while (running) {
-                try {
-                    banner = new Banner();
-                    readData();
-                } catch (InterruptedException e) {
-                    System.out.println(e.getMessage());
-                    onClose();
+            try {
+                device.getIDevice().executeShellCommand(command, this, 0);
+            } catch (Exception e) {
+                if (!cancelled) {
+                    e.printStackTrace();
                 }
             }
         }
 
-        void readData() throws InterruptedException {
-            byte[] buffer = dataQueue.poll(5000, TimeUnit.MILLISECONDS);
-            if (buffer == null) { // TODO 使用阻塞队列就不用判断了
+        @Override
+        public void addOutput(byte[] bytes, int offset, int len) {
+            System.out.println("startMinicapThread" + new String(bytes, offset, len));
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * 连接minicap启动的服务，数据由 CaptureEngine 的selector线程读取，直接在 MinicapFrameDecoder 的缓冲区里解析出图片
+     *
+     * minicap还没启动完成时，adb会接受连接然后立即关闭，这种情况下稍后重连
+     */
+    private class StreamReader implements CaptureEngine.StreamHandler {
+        private final String host;
+        private final AdbForward forward;
+        private final MinicapProcess process;
+        private final int tryTime;
+        private final MinicapFrameDecoder decoder = new MinicapFrameDecoder(new FrameHandler(this));
+        private volatile CaptureEngine.Stream registration;
+        private volatile boolean stopped = false;
+        private boolean connected = false;
+
+        StreamReader(String host, AdbForward forward, MinicapProcess process, int tryTime) {
+            this.host = host;
+            this.forward = forward;
+            this.process = process;
+            this.tryTime = tryTime;
+        }
+
+        void connect() {
+            engine.getScheduler().execute(this::doConnect);
+        }
+
+        void pauseReads(long millis) {
+            CaptureEngine.Stream r = registration;
+            if (r != null) {
+                r.pauseReads(millis);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            CaptureEngine.Stream r = registration;
+            if (r != null) {
+                r.close();
+            }
+        }
+
+        /**
+         * 关闭socket，结束minicap进程并移除forward
+         */
+        void shutdown() {
+            stop();
+            process.cancel();
+            engine.getShellExecutor().execute(() -> removeForward(forward));
+        }
+
+        private void doConnect() {
+            if (stopped) {
+                decoder.release();
                 return;
             }
-            int length = buffer.length;
-            for (int cursor = 0; cursor < length;) {
-                int ch = buffer[cursor] & 0xff;
-                if (readn < bannerLen) {
-                    cursor = parserBanner(cursor, ch);
-                } else if(readFrameBytes < 4) { // frame length
-                    frameBodyLength += (ch << (readFrameBytes * 8));
-                    cursor += 1;
-                    readFrameBytes += 1;
-                    if (readFrameBytes == 4) {
-                        t = System.currentTimeMillis();
-                    }
-                } else {
-                    if (length - cursor >= frameBodyLength) {
-                        byte[] subByte = Arrays.copyOfRange(buffer, cursor,
-                                cursor + frameBodyLength);
-                        frameBody = Util.mergeArray(frameBody, subByte);
-                        if ((frameBody[0] != -1) || frameBody[1] != -40) {
-                            System.out.println("Frame body does not start with JPG header");
-                            return;
-                        }
-                        byte[] finalBytes = Arrays.copyOfRange(frameBody, 0, frameBody.length);
-
-                        onJPG(finalBytes);
-
-                        cursor += frameBodyLength;
-                        frameBodyLength = 0;
-                        readFrameBytes = 0;
-                        frameBody = new byte[0];
-
-                        long timeused = (System.currentTimeMillis() - t);
-                        timeused = timeused == 0 ? 1 : timeused;
-                        String log = String.format("jpg: %d timeused: %dms  fps: %d", finalBytes.length, (int)timeused, 1000 / timeused);
-                    } else {
-                        byte[] subByte = Arrays.copyOfRange(buffer, cursor, length);
-                        frameBody = Util.mergeArray(frameBody, subByte);
-                        frameBodyLength -= (length - cursor);
-                        readFrameBytes += (length - cursor);
-                        cursor = length;
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open(new InetSocketAddress(host, forward.getPort()));
+                registration = engine.register(channel, this);
+                if (stopped) {
+                    registration.close();
+                }
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
                     }
                 }
+                decoder.release();
+                retry();
             }
         }
 
-        ////// banner
-        int pid = 0;
-        int realWidth = 0;
-        int realHeight = 0;
-        int virtualWidth = 0;
-        int virtualHeight = 0;
-        int orientation = 0;
-        int quirks = 0;
-        int parserBanner(int cursor, int ch) {
-            switch (cursor) {
-                case 0:
-                    banner.setVersion(ch);
-                    break;
-                case 1:
-                    bannerLen = ch;
-                    banner.setLength(bannerLen);
-                    break;
-                case 2:
-                case 3:
-                case 4:
-                case 5: {
-                    pid += (ch << ((readn - 2) * 8));
-                    if (cursor == 5)
-                        banner.setPid(pid);
-                    break;
+        private void retry() {
+            if (stopped) {
+                return;
+            }
+            StreamReader next = tryTime <= 1 ? null : new StreamReader(host, forward, process, tryTime - 1);
+            boolean pending;
+            synchronized (Minicap.this) {
+                if (stream == this) {
+                    pending = false;
+                    stream = next;
+                } else if (pendingStream == this) {
+                    pending = true;
+                    pendingStream = next;
+                } else {
+                    return;
                 }
-                case 6:
-                case 7:
-                case 8:
-                case 9:
-                {
-                    realWidth += (ch << ((readn - 6) * 8));
-                    if (cursor == 9)
-                        banner.setReadWidth(realWidth);
-                    break;
+            }
+            if (next != null) {
+                engine.getScheduler().schedule(next::doConnect, 10, TimeUnit.MILLISECONDS);
+                return;
+            }
+            shutdown();
+            if (pending) {
+                // 新参数启动失败，继续使用旧的
+                Metrics.counter("minicap.restart.failed").inc();
+                logger.warn(String.format("device(%s) minicap restart failed, keep the running one", device.getSerialNumber()));
+            } else {
+                onStartup(false);
+            }
+        }
+
+        @Override
+        public int onReadable(SocketChannel channel) throws IOException {
+            if (connected) {
+                return decoder.readFrom(channel);
+            }
+            int n = decoder.fill(channel);
+            if (n > 0) {
+                connected = true;
+                // 切换中的stream收到数据后替换旧的，不再通知启动
+                if (!promote(this)) {
+                    running = true;
+                    onStartup(true);
                 }
+                decoder.decode();
+            }
+            return n;
+        }
 
-                case 10:
-                case 11:
-                case 12:
-                case 13:
-                    realHeight += (ch << ((readn - 10) * 8));
-                    if (cursor == 13)
-                        banner.setReadHeight(realHeight);
-                    break;
-                case 14:
-                case 15:
-                case 16:
-                case 17:
-                    virtualWidth += (ch << ((readn - 14) * 8));
-                    if (cursor == 17)
-                        banner.setVirtualWidth(virtualWidth);
-                    break;
-                case 18:
-                case 19:
-                case 20:
-                case 21:
-                    virtualHeight += (ch << ((readn - 18) * 8));
-                    if (cursor == 21)
-                        banner.setVirtualHeight(virtualHeight);
-                    break;
-                case 22:
-                    orientation = ch * 90;
-                    banner.setOrientation(orientation);
-                    break;
-                case 23:
-                    quirks = ch;
-                    banner.setQuirks(quirks);
-                    onBanner(banner);
-                    break;
+        @Override
+        public void onClosed(IOException cause) {
+            decoder.release();
+            if (!connected) {
+                retry();
+            } else if (!stopped && stream == this) {
+                running = false;
+                logger.warn("minicap lost connection: " + (cause == null ? "closed" : cause.getMessage()));
+                onClose();
             }
-            ++readn;
-            ++cursor;
-            return cursor;
         }
     }
 }
@@ -0,0 +1,287 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * minicap数据流解析器
+ *
+ * socket的数据直接读进一块复用的环形缓冲区，banner和帧都在缓冲区上原地解析，
+ * 每帧以引用计数切片(JpgFrame)的形式交给Handler，中间不做拷贝。
+ *
+ * 缓冲区尾部空间不够时回绕到头部：只需要搬动还没解析完的那部分数据。
+ * 回绕要求切出去的帧都已经释放。帧还在被使用时（信箱里等待分发、正在发给网速慢的客户端），
+ * 从内存池换一块缓冲区并搬动未解析的数据，旧的等最后一帧释放后回到池里，次数见 capture.decoder.ring.swapped。
+ * 因此不要长期持有帧，需要保留的（比如最近一帧）请拷贝。
+ *
+ * 非线程安全，同一时刻只能有一个线程调用 readFrom
+ */
+public class MinicapFrameDecoder {
+    private static Logger logger = Logger.getLogger(MinicapFrameDecoder.class);
+
+    public interface Handler {
+        void onBanner(Banner banner);
+        // frame在回调返回后会被释放
+        void onFrame(JpgFrame frame);
+    }
+
+    static final int BANNER_SIZE = 24;
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+    static final int MIN_READ_SIZE = 16 * 1024;
+    static final int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+    private final Handler handler;
+    private final ByteBufAllocator allocator;
+    private final boolean direct;
+
+    private ByteBuf ring;
+    private Banner banner = null;
+    private int frameLength = -1;
+
+    public MinicapFrameDecoder(Handler handler) {
+        this(handler, false);
+    }
+
+    public MinicapFrameDecoder(Handler handler, boolean direct) {
+        this(handler, PooledByteBufAllocator.DEFAULT, direct, DEFAULT_CAPACITY);
+    }
+
+    public MinicapFrameDecoder(Handler handler, ByteBufAllocator allocator, boolean direct, int capacity) {
+        this.handler = handler;
+        this.allocator = allocator;
+        this.direct = direct;
+        this.ring = allocate(capacity);
+    }
+
+    /**
+     * 从channel读取一次数据并解析
+     * @return 读取的字节数，-1表示连接已关闭
+     */
+    public int readFrom(ScatteringByteChannel channel) throws IOException {
+        int n = fill(channel);
+        if (n > 0) {
+            decode();
+        }
+        return n;
+    }
+
+    /**
+     * 从InputStream读取一次数据并解析
+     * @return 读取的字节数，-1表示连接已关闭
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        prepareWrite();
+        int n = ring.writeBytes(inputStream, ring.writableBytes());
+        if (n > 0) {
+            decode();
+        }
+        return n;
+    }
+
+    /**
+     * 只读取数据不解析，配合 decode() 使用
+     * @return 读取的字节数，-1表示连接已关闭
+     */
+    public int fill(ScatteringByteChannel channel) throws IOException {
+        prepareWrite();
+        return ring.writeBytes(channel, ring.writableBytes());
+    }
+
+    public Banner getBanner() {
+        return banner;
+    }
+
+    /**
+     * 丢弃未解析完的数据，重新从banner开始解析
+     */
+    public void reset() {
+        ring.clear();
+        banner = null;
+        frameLength = -1;
+    }
+
+    public void release() {
+        if (ring != null) {
+            ring.release();
+            ring = null;
+        }
+    }
+
+    private ByteBuf allocate(int capacity) {
+        return direct ? allocator.directBuffer(capacity, capacity) : allocator.heapBuffer(capacity, capacity);
+    }
+
+    /**
+     * 保证缓冲区尾部有足够的空间，当前帧的长度已知时，保证整帧可以连续存放
+     */
+    private void prepareWrite() {
+        int need = MIN_READ_SIZE;
+        if (frameLength > 0) {
+            need = Math.max(need, frameLength - ring.readableBytes());
+        }
+        if (ring.writableBytes() >= need) {
+            return;
+        }
+
+        int readable = ring.readableBytes();
+        int required = readable + need;
+        if (ring.refCnt() == 1 && ring.capacity() >= required) {
+            // 没有帧在外面引用，回绕到头部
+            ring.discardReadBytes();
+            return;
+        }
+
+        int capacity = ring.capacity();
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        Metrics.counter("capture.decoder.ring.swapped").inc();
+        ByteBuf next = allocate(capacity);
+        next.writeBytes(ring, ring.readerIndex(), readable);
+        ring.release();
+        ring = next;
+    }
+
+    /**
+     * 解析缓冲区内已有的数据，每解析出一帧回调一次 Handler
+     */
+    public void decode() throws IOException {
+        while (true) {
+            if (banner == null) {
+                if (!decodeBanner()) {
+                    return;
+                }
+                continue;
+            }
+
+            if (frameLength < 0) {
+                if (ring.readableBytes() < 4) {
+                    return;
+                }
+                frameLength = ring.readIntLE();
+                if (frameLength <= 0 || frameLength > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid minicap frame length: " + frameLength);
+                }
+            }
+
+            if (ring.readableBytes() < frameLength) {
+                return;
+            }
+
+            ByteBuf body = ring.readRetainedSlice(frameLength);
+            frameLength = -1;
+
+            if (body.getByte(body.readerIndex()) != (byte) 0xFF || body.getByte(body.readerIndex() + 1) != (byte) 0xD8) {
+                logger.warn("Frame body does not start with JPG header");
+                body.release();
+                continue;
+            }
+
+            JpgFrame frame = new JpgFrame(body, System.currentTimeMillis(), fingerprint(body));
+            try {
+                handler.onFrame(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * 计算图片内容的指纹：跳过JPG的各个头部段，只对SOS之后的熵编码数据做64位hash
+     * 画面不变时minicap编码出的数据完全相同
+     */
+    static long fingerprint(ByteBuf jpg) {
+        int pos = jpg.readerIndex() + 2;
+        int end = jpg.writerIndex();
+        while (pos + 4 <= end) {
+            if (jpg.getByte(pos) != (byte) 0xFF) {
+                break;
+            }
+            int marker = jpg.getByte(pos + 1) & 0xFF;
+            int length = jpg.getUnsignedShort(pos + 2);
+            pos += 2 + length;
+            if (marker == 0xDA) {
+                break;
+            }
+        }
+        if (pos >= end) {
+            pos = jpg.readerIndex();
+        }
+
+        long h = 0xcbf29ce484222325L;
+        for (; pos + 8 <= end; pos += 8) {
+            h ^= jpg.getLong(pos);
+            h *= 0x100000001b3L;
+            h ^= h >>> 29;
+        }
+        for (; pos < end; pos++) {
+            h ^= jpg.getByte(pos);
+            h *= 0x100000001b3L;
+        }
+        // 0 保留给没有指纹的帧
+        return h == 0 ? 1 : h;
+    }
+
+    private boolean decodeBanner() throws IOException {
+        if (ring.readableBytes() < 2) {
+            return false;
+        }
+        int start = ring.readerIndex();
+        int length = ring.getUnsignedByte(start + 1);
+        if (length < BANNER_SIZE) {
+            throw new IOException("invalid minicap banner length: " + length);
+        }
+        if (ring.readableBytes() < length) {
+            return false;
+        }
+
+        Banner b = new Banner();
+        b.setVersion(ring.getUnsignedByte(start));
+        b.setLength(length);
+        b.setPid(ring.getIntLE(start + 2));
+        b.setReadWidth(ring.getIntLE(start + 6));
+        b.setReadHeight(ring.getIntLE(start + 10));
+        b.setVirtualWidth(ring.getIntLE(start + 14));
+        b.setVirtualHeight(ring.getIntLE(start + 18));
+        b.setOrientation(ring.getUnsignedByte(start + 22) * 90);
+        b.setQuirks(ring.getUnsignedByte(start + 23));
+        ring.skipBytes(length);
+
+        banner = b;
+        handler.onBanner(b);
+        return true;
+    }
+}
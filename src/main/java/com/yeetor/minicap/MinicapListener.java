@@ -31,11 +31,26 @@ package com.yeetor.minicap;
  */
 public interface MinicapListener {
     // minicap启动完毕后
-    public void onStartup(Minicap minicap, boolean success);
+    public void onStartup(ScreencapBase minicap, boolean success);
     // minicap关闭
-    public void onClose(Minicap minicap);
+    public void onClose(ScreencapBase minicap);
     // banner信息读取完毕
-    public void onBanner(Minicap minicap, Banner banner);
+    public void onBanner(ScreencapBase minicap, Banner banner);
     // 读取到图片信息
-    public void onJPG(Minicap minicap, byte[] data);
+    public void onJPG(ScreencapBase minicap, byte[] data);
+
+    /**
+     * 读取到图片信息，frame在回调返回后会被释放，需要异步使用时请先 retain()
+     * 默认拷贝一份byte[]交给 onJPG(ScreencapBase, byte[])，能直接处理ByteBuf的实现可以覆盖这个方法避免拷贝
+     */
+    default void onJPG(ScreencapBase minicap, JpgFrame frame) {
+        onJPG(minicap, frame.toByteArray());
+    }
+
+    /**
+     * 读取到H.264数据包（scrcpy采集源），packet在回调返回后会被释放，需要异步使用时请先 retain()
+     * 数据包之间有依赖关系，不能像图片一样随意丢弃
+     */
+    default void onH264(ScreencapBase minicap, H264Packet packet) {
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.minicap;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.touch.scrcpy.ScrcpyServer;
+import org.apache.log4j.Logger;
+
+/**
+ * scrcpy屏幕采集，读取scrcpy-server的video socket，把H.264数据包原样交给listener
+ *
+ * scrcpy-server和触控共用，编码参数在server启动时确定（scrcpy.max-size、scrcpy.bit-rate），
+ * 所以scale和rotate不起作用，由客户端自己缩放
+ */
+public class ScrcpyScreencap extends ScreencapBase implements ScrcpyServer.Listener {
+    private static Logger logger = Logger.getLogger(ScrcpyScreencap.class);
+
+    private final AdbDevice device;
+    private volatile ScrcpyServer server;
+    private volatile boolean closed = false;
+
+    public ScrcpyScreencap(AdbDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public AdbDevice getDevice() {
+        return device;
+    }
+
+    @Override
+    public void start(float scale, int rotate) {
+        logger.info("start scrcpy screencap: " + device.getSerialNumber());
+        ScrcpyServer s = ScrcpyServer.acquire(device);
+        server = s;
+        s.addListener(this);
+        s.start();
+    }
+
+    @Override
+    public void kill() {
+        ScrcpyServer s = server;
+        server = null;
+        if (s != null) {
+            s.removeListener(this);
+            s.release();
+        }
+        onClose();
+    }
+
+    @Override
+    protected void onClose() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        super.onClose();
+    }
+
+    @Override
+    public void onStartup(ScrcpyServer server, boolean success) {
+        onStartup(success);
+    }
+
+    @Override
+    public void onClose(ScrcpyServer server) {
+        onClose();
+    }
+
+    @Override
+    public void onDeviceMeta(ScrcpyServer server, String deviceName, int width, int height) {
+        Banner banner = new Banner();
+        banner.setReadWidth(width);
+        banner.setReadHeight(height);
+        banner.setVirtualWidth(width);
+        banner.setVirtualHeight(height);
+        onBanner(banner);
+    }
+
+    @Override
+    public void onVideoPacket(ScrcpyServer server, H264Packet packet) {
+        for (MinicapListener listener : listenerList) {
+            listener.onH264(this, packet);
+        }
+    }
+}
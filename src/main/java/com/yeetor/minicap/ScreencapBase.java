@@ -26,5 +26,70 @@
 
 package com.yeetor.minicap;
 
+import com.yeetor.adb.AdbDevice;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 屏幕采集源，minicap(JPG)和scrcpy(H.264)都通过 MinicapListener 回调数据
+ */
 public abstract class ScreencapBase {
+
+    protected List<MinicapListener> listenerList = new CopyOnWriteArrayList<MinicapListener>();
+    protected List<Consumer<JpgFrame>> frameTapList = new CopyOnWriteArrayList<Consumer<JpgFrame>>();
+
+    public abstract AdbDevice getDevice();
+
+    /**
+     * 开始采集，异步完成，结果通过 onStartup 通知
+     */
+    public abstract void start(float scale, int rotate);
+
+    public abstract void kill();
+
+    public void addEventListener(MinicapListener listener) {
+        if (listener != null) {
+            this.listenerList.add(listener);
+        }
+    }
+
+    /**
+     * 不丢帧地接收图片：每一帧在放进分发信箱之前回调，在解析线程里执行，不能阻塞
+     * frame在回调返回后会被释放，需要异步使用时请先 retain()
+     */
+    public void addFrameTap(Consumer<JpgFrame> tap) {
+        if (tap != null) {
+            this.frameTapList.add(tap);
+        }
+    }
+
+    public List<MinicapListener> getEventListener() {
+        return listenerList;
+    }
+
+    protected void onStartup(boolean success) {
+        for (MinicapListener listener : listenerList) {
+            listener.onStartup(this, success);
+        }
+    }
+
+    protected void onClose() {
+        for (MinicapListener listener : listenerList) {
+            listener.onClose(this);
+        }
+    }
+
+    protected void onFrameTap(JpgFrame frame) {
+        for (Consumer<JpgFrame> tap : frameTapList) {
+            tap.accept(frame);
+        }
+    }
+
+    protected void onBanner(Banner banner) {
+        for (MinicapListener listener : listenerList) {
+            listener.onBanner(this, banner);
+        }
+    }
 }
@@ -26,10 +26,29 @@
 
 package com.yeetor.protocol;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 public class BinaryProtocol {
     public static class Header {
         public final static short SM_SHOT = 0x0010;
         public final static short SM_JPG = 0x0011;
+        // H.264数据包：flags(1字节，bit0 config，bit1 关键帧) + pts(8字节) + Annex B 数据
+        public final static short SM_H264 = 0x0012;
+        // 缩略图墙的图片：设备序列号长度(1字节) + 序列号(UTF-8) + JPG
+        public final static short SM_WALL_JPG = 0x0013;
+        // 脏块增量：flags(1字节，bit0 关键帧) + 宽高 + 块数 + 每块的坐标和JPG，见 TileStreamer
+        public final static short SM_TILE = 0x0014;
+    }
+
+    /**
+     * 二进制消息头：协议类型(2字节) + 消息体长度(4字节)，小端
+     */
+    public static ByteBuf newHeader(ByteBufAllocator allocator, short protocolHeader, int bodyLength, int extraCapacity) {
+        ByteBuf head = allocator.buffer(6 + extraCapacity);
+        head.writeShortLE(protocolHeader);
+        head.writeIntLE(bodyLength);
+        return head;
     }
 
     private short protocolHeader = 0;
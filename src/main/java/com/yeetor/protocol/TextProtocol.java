@@ -40,6 +40,8 @@ public class TextProtocol {
         public final static String M_PUSH = "M_PUSH";
         public final static String M_SHOT = "M_SHOT";
         public final static String M_DEVICES = "M_DEVICES";
+        public final static String M_REPLAY = "M_REPLAY";
+        public final static String M_WALL = "M_WALL";
         
         
         public final static String SM_OPENED = "SM_OPENED";
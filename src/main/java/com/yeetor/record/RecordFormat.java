@@ -0,0 +1,71 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * 录像文件格式
+ *
+ * 每次录像一个目录 {record.dir}/{serialNumber}/{yyyyMMdd-HHmmss}/，按大小和时长切分成多个分段，
+ * 每个分段一个数据文件和一个索引文件，都只追加写入，多字节整数为大端：
+ *
+ *   00000.dat: 文件头 "YREC" + 版本(4字节)，之后每帧为 时间戳ms(8字节) + 长度(4字节) + jpg数据
+ *   00000.idx: 每帧一条 时间戳ms(8字节) + 帧在数据文件中的偏移(8字节)，定长，可以二分查找
+ */
+public final class RecordFormat {
+
+    public static final byte[] MAGIC = {'Y', 'R', 'E', 'C'};
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int FRAME_HEADER_SIZE = 12;
+    public static final int INDEX_ENTRY_SIZE = 16;
+
+    public static final String DATA_SUFFIX = ".dat";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final String SESSION_DATE_FORMAT = "yyyyMMdd-HHmmss";
+
+    private RecordFormat() {
+    }
+
+    public static File dataFile(File sessionDir, int segment) {
+        return new File(sessionDir, String.format("%05d%s", segment, DATA_SUFFIX));
+    }
+
+    public static File indexFile(File sessionDir, int segment) {
+        return new File(sessionDir, String.format("%05d%s", segment, INDEX_SUFFIX));
+    }
+
+    static ByteBuffer fileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        return header;
+    }
+}
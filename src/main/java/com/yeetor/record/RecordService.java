@@ -0,0 +1,140 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.server.ServicesPool;
+import com.yeetor.util.Constant;
+import com.yeetor.util.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * 录像管理，每台设备同时只有一个录像
+ */
+public class RecordService {
+
+    private final File rootDir = new File(Constant.getProperty("record.dir", "records"));
+
+    // 回放的发送线程，读取mmap时可能会等待磁盘，不和采集共用线程
+    private final ScheduledExecutorService replayScheduler = Executors.newScheduledThreadPool(
+            Math.max(1, Constant.getIntProperty("replay.threads", 2)), new NamedThreadFactory("replay"));
+
+    private final Map<String, SessionRecorder> recorders = new HashMap<>();
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * 开始录像，已经在录像时返回正在进行的录像
+     * @param scale 录像的缩放比例
+     */
+    public SessionRecorder start(AdbDevice device, float scale) throws IOException {
+        SessionRecorder recorder;
+        synchronized (this) {
+            recorder = recorders.get(device.getSerialNumber());
+            if (recorder != null) {
+                return recorder;
+            }
+            recorder = new SessionRecorder(this, device, rootDir);
+            recorders.put(device.getSerialNumber(), recorder);
+        }
+        recorder.setViewer(ServicesPool.getInstance().getScreencapService().acquireLossless(device, scale, 0, recorder));
+        return recorder;
+    }
+
+    /**
+     * 停止录像
+     * @return 没有在录像时返回null
+     */
+    public SessionRecorder stop(String serialNumber) {
+        SessionRecorder recorder;
+        synchronized (this) {
+            recorder = recorders.remove(serialNumber);
+        }
+        if (recorder != null) {
+            recorder.stop();
+        }
+        return recorder;
+    }
+
+    public synchronized SessionRecorder getRecorder(String serialNumber) {
+        return recorders.get(serialNumber);
+    }
+
+    public synchronized List<SessionRecorder> getRecorders() {
+        return new ArrayList<>(recorders.values());
+    }
+
+    /**
+     * 设备的所有录像，按开始时间排序
+     */
+    public List<String> listSessions(String serialNumber) {
+        File dir = new File(rootDir, serialNumber);
+        String[] names = isSafeName(serialNumber) ? dir.list((d, name) -> new File(d, name).isDirectory()) : null;
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * 打开一次录像
+     */
+    public RecordingReader openReader(String serialNumber, String session) throws IOException {
+        if (!isSafeName(serialNumber) || !isSafeName(session)) {
+            throw new IOException("invalid record name: " + serialNumber + "/" + session);
+        }
+        return RecordingReader.open(new File(new File(rootDir, serialNumber), session));
+    }
+
+    /**
+     * 从录像开始后offset毫秒处开始回放
+     */
+    public ReplayPlayer replay(String serialNumber, String session, long offset, double speed, ReplayPlayer.Sink sink) throws IOException {
+        ReplayPlayer player = new ReplayPlayer(openReader(serialNumber, session), sink, replayScheduler);
+        player.setSpeed(speed);
+        player.seek(offset);
+        return player;
+    }
+
+    // 不允许通过名字访问录像目录之外的文件
+    private static boolean isSafeName(String name) {
+        return name != null && !name.isEmpty() && !name.contains("/") && !name.contains("\\") && !name.startsWith(".");
+    }
+}
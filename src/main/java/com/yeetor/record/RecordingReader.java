@@ -0,0 +1,271 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 读取一次录像，数据和索引文件都用mmap映射，不把录像读进堆内存
+ *
+ * 按时间戳在索引上二分查找定位帧；返回的帧直接引用映射的内存，没有拷贝。
+ * 正在录制的录像只能读到打开时已经写入的帧。
+ */
+public class RecordingReader implements Closeable {
+
+    /**
+     * 录像中的一帧，data 引用映射的文件内容，不需要释放
+     */
+    public static class Frame {
+        private final long position;
+        private final long timestamp;
+        private final ByteBuf data;
+
+        Frame(long position, long timestamp, ByteBuf data) {
+            this.position = position;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public ByteBuf getData() {
+            return data;
+        }
+    }
+
+    private final File sessionDir;
+    private final List<Segment> segments;
+    private final long frameCount;
+
+    private RecordingReader(File sessionDir, List<Segment> segments) {
+        this.sessionDir = sessionDir;
+        this.segments = segments;
+        long count = 0;
+        for (Segment segment : segments) {
+            segment.firstPosition = count;
+            count += segment.frames;
+        }
+        this.frameCount = count;
+    }
+
+    public static RecordingReader open(File sessionDir) throws IOException {
+        File[] files = sessionDir.listFiles((dir, name) -> name.endsWith(RecordFormat.INDEX_SUFFIX));
+        if (files == null) {
+            throw new IOException("record not found: " + sessionDir);
+        }
+        Arrays.sort(files);
+        List<Segment> segments = new ArrayList<Segment>();
+        try {
+            for (File indexFile : files) {
+                String name = indexFile.getName();
+                int number = Integer.parseInt(name.substring(0, name.length() - RecordFormat.INDEX_SUFFIX.length()));
+                Segment segment = new Segment(RecordFormat.dataFile(sessionDir, number), indexFile);
+                if (segment.frames > 0) {
+                    segments.add(segment);
+                } else {
+                    segment.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException("invalid record: " + sessionDir, e);
+        }
+        return new RecordingReader(sessionDir, segments);
+    }
+
+    public File getSessionDir() {
+        return sessionDir;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getStartTime() {
+        return segments.isEmpty() ? 0 : segments.get(0).timestamp(0);
+    }
+
+    public long getEndTime() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.timestamp(last.frames - 1);
+    }
+
+    /**
+     * 查找时间戳不小于timestamp的第一帧
+     * @return 帧的位置，超过录像结尾时返回 getFrameCount()
+     */
+    public long seek(long timestamp) {
+        for (Segment segment : segments) {
+            if (segment.timestamp(segment.frames - 1) >= timestamp) {
+                int lo = 0;
+                int hi = segment.frames - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (segment.timestamp(mid) < timestamp) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                return segment.firstPosition + lo;
+            }
+        }
+        return frameCount;
+    }
+
+    public long timestamp(long position) {
+        Segment segment = segmentOf(position);
+        return segment.timestamp((int) (position - segment.firstPosition));
+    }
+
+    /**
+     * 读取指定位置的帧
+     */
+    public Frame read(long position) throws IOException {
+        Segment segment = segmentOf(position);
+        int i = (int) (position - segment.firstPosition);
+        long offset = segment.offset(i);
+        ByteBuffer data = segment.data();
+        if (offset + RecordFormat.FRAME_HEADER_SIZE > data.capacity()) {
+            throw new IOException("invalid record offset: " + offset);
+        }
+        long timestamp = data.getLong((int) offset);
+        int length = data.getInt((int) offset + 8);
+        int start = (int) offset + RecordFormat.FRAME_HEADER_SIZE;
+        if (length <= 0 || start + length > data.capacity()) {
+            throw new IOException("invalid record frame length: " + length);
+        }
+        ByteBuffer slice = data.duplicate();
+        slice.limit(start + length);
+        slice.position(start);
+        return new Frame(position, timestamp, Unpooled.wrappedBuffer(slice.slice()));
+    }
+
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private Segment segmentOf(long position) {
+        if (position < 0 || position >= frameCount) {
+            throw new IndexOutOfBoundsException("frame position: " + position);
+        }
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).firstPosition <= position) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return segments.get(lo);
+    }
+
+    private static class Segment {
+        private final FileChannel dataChannel;
+        private final FileChannel indexChannel;
+        private final MappedByteBuffer index;
+        private final long dataSize;
+        private final int frames;
+        private MappedByteBuffer data;
+        private long firstPosition;
+
+        Segment(File dataFile, File indexFile) throws IOException {
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+            try {
+                dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                indexChannel.close();
+                throw e;
+            }
+            // 先取索引大小再取数据大小，录像中的分段也能保证索引指向的帧都已写入
+            frames = (int) (indexChannel.size() / RecordFormat.INDEX_ENTRY_SIZE);
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) frames * RecordFormat.INDEX_ENTRY_SIZE);
+            dataSize = dataChannel.size();
+        }
+
+        long timestamp(int i) {
+            return index.getLong(i * RecordFormat.INDEX_ENTRY_SIZE);
+        }
+
+        long offset(int i) {
+            return index.getLong(i * RecordFormat.INDEX_ENTRY_SIZE + 8);
+        }
+
+        /**
+         * 数据文件第一次读取时才映射
+         */
+        synchronized ByteBuffer data() throws IOException {
+            if (data == null) {
+                data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataSize);
+            }
+            return data;
+        }
+
+        void close() {
+            try {
+                dataChannel.close();
+            } catch (IOException e) {
+            }
+            try {
+                indexChannel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
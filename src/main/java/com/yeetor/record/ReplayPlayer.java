@@ -0,0 +1,181 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按录制时的时间间隔（可加速）回放录像
+ *
+ * 以某一帧为锚点，之后每帧的发送时间 = 锚点时间 + (帧时间戳 - 锚点时间戳) / 倍速，
+ * 跳转和调整倍速时重新设置锚点。客户端来不及接收的帧直接跳过，不影响时间轴。
+ */
+public class ReplayPlayer {
+    private static Logger logger = Logger.getLogger(ReplayPlayer.class);
+
+    public interface Sink {
+        /**
+         * 发送一帧，在回放线程调用，返回后frame不再可用
+         * @return 是否已发送，false表示跳过
+         */
+        boolean send(RecordingReader.Frame frame);
+
+        // 播放到结尾或者出错
+        void onEnd();
+    }
+
+    private final RecordingReader reader;
+    private final Sink sink;
+    private final ScheduledExecutorService scheduler;
+
+    private long position;
+    private double speed = 1.0;
+    private long anchorTime;
+    private long anchorTimestamp;
+    private ScheduledFuture<?> pending;
+    // 跳转后取消已经开始执行的旧任务
+    private int generation = 0;
+    private boolean stopped = false;
+    private long sent = 0;
+    private long skipped = 0;
+
+    public ReplayPlayer(RecordingReader reader, Sink sink, ScheduledExecutorService scheduler) {
+        this.reader = reader;
+        this.sink = sink;
+        this.scheduler = scheduler;
+    }
+
+    public RecordingReader getReader() {
+        return reader;
+    }
+
+    public synchronized long getSentFrames() {
+        return sent;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skipped;
+    }
+
+    /**
+     * 跳到录像开始后offset毫秒的位置
+     */
+    public synchronized void seek(long offset) {
+        if (stopped) {
+            return;
+        }
+        position = reader.seek(reader.getStartTime() + Math.max(0, offset));
+        reschedule();
+    }
+
+    public synchronized void setSpeed(double speed) {
+        if (stopped || speed <= 0) {
+            return;
+        }
+        this.speed = speed;
+        // 还没开始播放时只记录倍速
+        if (pending != null) {
+            reschedule();
+        }
+    }
+
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        reader.close();
+    }
+
+    private void reschedule() {
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        generation++;
+        if (position >= reader.getFrameCount()) {
+            pending = null;
+            scheduler.execute(this::end);
+            return;
+        }
+        anchorTime = System.currentTimeMillis();
+        anchorTimestamp = reader.timestamp(position);
+        int gen = generation;
+        pending = scheduler.schedule(() -> tick(gen), 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick(int gen) {
+        RecordingReader.Frame frame;
+        synchronized (this) {
+            if (stopped || gen != generation) {
+                return;
+            }
+            if (position >= reader.getFrameCount()) {
+                pending = null;
+                scheduler.execute(this::end);
+                return;
+            }
+            try {
+                frame = reader.read(position++);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("read record failed: " + e.getMessage());
+                pending = null;
+                scheduler.execute(this::end);
+                return;
+            }
+            if (sink.send(frame)) {
+                sent++;
+            } else {
+                skipped++;
+            }
+            if (position < reader.getFrameCount()) {
+                long due = anchorTime + (long) ((reader.timestamp(position) - anchorTimestamp) / speed);
+                pending = scheduler.schedule(() -> tick(gen), Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } else {
+                pending = null;
+                scheduler.execute(this::end);
+            }
+        }
+    }
+
+    private void end() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+        sink.onEnd();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import com.yeetor.minicap.JpgFrame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 一个录像分段，数据和索引都通过FileChannel聚集写入，一批帧只调用一次write
+ *
+ * 只在录像的I/O线程使用
+ */
+class SegmentWriter implements Closeable {
+
+    private final int segment;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final long startTime;
+    private long dataSize;
+    private long frames = 0;
+
+    SegmentWriter(File sessionDir, int segment) throws IOException {
+        this.segment = segment;
+        this.startTime = System.currentTimeMillis();
+        this.data = FileChannel.open(RecordFormat.dataFile(sessionDir, segment).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            this.index = FileChannel.open(RecordFormat.indexFile(sessionDir, segment).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        writeFully(data, new ByteBuffer[] {RecordFormat.fileHeader()});
+        dataSize = RecordFormat.FILE_HEADER_SIZE;
+    }
+
+    int getSegment() {
+        return segment;
+    }
+
+    long getDataSize() {
+        return dataSize;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    /**
+     * 追加 frames[from, to) 这些帧
+     */
+    void append(List<JpgFrame> batch, int from, int to) throws IOException {
+        int count = to - from;
+        ByteBuffer entries = ByteBuffer.allocate(count * RecordFormat.INDEX_ENTRY_SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[count * 2];
+        long offset = dataSize;
+        for (int i = 0; i < count; i++) {
+            JpgFrame frame = batch.get(from + i);
+            int length = frame.length();
+
+            entries.putLong(frame.getTimestamp());
+            entries.putLong(offset);
+
+            ByteBuffer header = ByteBuffer.allocate(RecordFormat.FRAME_HEADER_SIZE);
+            header.putLong(frame.getTimestamp());
+            header.putInt(length);
+            header.flip();
+            buffers[i * 2] = header;
+            buffers[i * 2 + 1] = frame.content().nioBuffer();
+
+            offset += RecordFormat.FRAME_HEADER_SIZE + length;
+        }
+        entries.flip();
+
+        // 先写数据再写索引，中途崩溃时索引不会指向不完整的帧
+        writeFully(data, buffers);
+        writeFully(index, new ByteBuffer[] {entries});
+        dataSize = offset;
+        frames += count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.force(true);
+            index.force(true);
+        } finally {
+            data.close();
+            index.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        int last = buffers.length - 1;
+        while (buffers[last].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+}
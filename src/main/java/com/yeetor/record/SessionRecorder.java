@@ -0,0 +1,261 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.record;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.minicap.Banner;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.MinicapListener;
+import com.yeetor.minicap.ScreencapBase;
+import com.yeetor.server.CaptureViewer;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录像：作为不丢帧的观看者加入屏幕采集，把每一帧和时间戳追加写入分段文件
+ *
+ * onJPG 只把帧放进队列，写文件在单独的I/O线程里批量进行，不会拖慢采集和其他观看者。
+ * 队列满时丢弃新帧并计数。
+ */
+public class SessionRecorder implements MinicapListener {
+    private static Logger logger = Logger.getLogger(SessionRecorder.class);
+
+    private static final int MAX_BATCH = 64;
+
+    private final RecordService service;
+    private final AdbDevice device;
+    private final File sessionDir;
+    private final long maxSegmentBytes = Constant.getIntProperty("record.segment.max-bytes", 64 * 1024 * 1024);
+    private final long maxSegmentMillis = Constant.getIntProperty("record.segment.max-seconds", 600) * 1000L;
+
+    private final BlockingQueue<JpgFrame> queue = new ArrayBlockingQueue<JpgFrame>(Constant.getIntProperty("record.queue", 256));
+    private final Thread ioThread;
+    private volatile boolean running = true;
+    private volatile CaptureViewer viewer;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+
+    // 以下只在I/O线程访问
+    private SegmentWriter segment;
+    private int nextSegment = 0;
+
+    SessionRecorder(RecordService service, AdbDevice device, File rootDir) throws IOException {
+        this.service = service;
+        this.device = device;
+        String name = new SimpleDateFormat(RecordFormat.SESSION_DATE_FORMAT).format(new Date(startTime));
+        this.sessionDir = new File(new File(rootDir, device.getSerialNumber()), name);
+        if (!sessionDir.mkdirs() && !sessionDir.isDirectory()) {
+            throw new IOException("can not create record dir: " + sessionDir.getAbsolutePath());
+        }
+        ioThread = new Thread(this::writeLoop, "record-io-" + device.getSerialNumber());
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    void setViewer(CaptureViewer viewer) {
+        this.viewer = viewer;
+        // 加入时采集已经启动失败
+        if (!running) {
+            this.viewer = null;
+            viewer.close();
+        }
+    }
+
+    public AdbDevice getDevice() {
+        return device;
+    }
+
+    public File getSessionDir() {
+        return sessionDir;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getDroppedFrames() {
+        return dropped.get();
+    }
+
+    /**
+     * 还没到录像就被采集源丢弃的帧数，只有服务端变换的采集会有
+     */
+    public long getUpstreamDroppedFrames() {
+        CaptureViewer v = viewer;
+        return v == null ? 0 : v.getDroppedFrames();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 停止录像，队列里剩下的帧写完后关闭文件
+     */
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        CaptureViewer v = viewer;
+        viewer = null;
+        if (v != null) {
+            v.close();
+        }
+        logger.info(String.format("stop recording %s, %d frames, %d dropped", sessionDir, frames.get(), dropped.get()));
+    }
+
+    @Override
+    public void onStartup(ScreencapBase minicap, boolean success) {
+        if (!success) {
+            service.stop(device.getSerialNumber());
+        }
+    }
+
+    @Override
+    public void onClose(ScreencapBase minicap) {
+        service.stop(device.getSerialNumber());
+    }
+
+    @Override
+    public void onBanner(ScreencapBase minicap, Banner banner) {
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, JpgFrame frame) {
+        if (!running) {
+            return;
+        }
+        JpgFrame f = frame.retain();
+        if (!queue.offer(f)) {
+            f.release();
+            dropped.incrementAndGet();
+            Metrics.counter("record.dropped").inc();
+        }
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, byte[] data) {
+        // 只使用 onJPG(ScreencapBase, JpgFrame)
+    }
+
+    private void writeLoop() {
+        List<JpgFrame> batch = new ArrayList<JpgFrame>(MAX_BATCH);
+        try {
+            while (running || !queue.isEmpty()) {
+                JpgFrame first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    write(batch);
+                } finally {
+                    for (JpgFrame frame : batch) {
+                        frame.release();
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("write record failed: " + sessionDir, e);
+            service.stop(device.getSerialNumber());
+        } finally {
+            JpgFrame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.release();
+            }
+            closeSegment();
+        }
+    }
+
+    private void write(List<JpgFrame> batch) throws IOException {
+        long begin = System.nanoTime();
+        int from = 0;
+        while (from < batch.size()) {
+            // 当前分段能放下多少帧
+            long now = batch.get(from).getTimestamp();
+            if (segment == null || segment.getDataSize() >= maxSegmentBytes || now - segment.getStartTime() >= maxSegmentMillis) {
+                closeSegment();
+                segment = new SegmentWriter(sessionDir, nextSegment++);
+            }
+            long size = segment.getDataSize();
+            int to = from;
+            do {
+                size += RecordFormat.FRAME_HEADER_SIZE + batch.get(to).length();
+                to++;
+            } while (to < batch.size() && size < maxSegmentBytes);
+
+            segment.append(batch, from, to);
+            for (int i = from; i < to; i++) {
+                bytes.addAndGet(batch.get(i).length());
+            }
+            frames.addAndGet(to - from);
+            from = to;
+        }
+        Metrics.counter("record.frames").add(batch.size());
+        Metrics.histogram("record.batch.write.us").record((System.nanoTime() - begin) / 1000);
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            logger.warn("close record segment failed: " + e.getMessage());
+        }
+        segment = null;
+    }
+}
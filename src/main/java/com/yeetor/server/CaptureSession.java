@@ -0,0 +1,417 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.minicap.*;
+import com.yeetor.touch.scrcpy.ScrcpyServer;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一台设备的一路屏幕采集（同一采集源、同一投影参数），可以同时分发给任意数量的观看者
+ *
+ * 最后一个观看者离开后等待一段宽限期再关闭minicap，期间有新的观看者加入就继续使用
+ */
+public class CaptureSession implements MinicapListener {
+
+    /**
+     * 采集源
+     */
+    public enum Source {
+        // minicap，JPG图片
+        MINICAP,
+        // scrcpy，H.264数据包
+        SCRCPY;
+
+        public static Source parse(String name) {
+            return "h264".equalsIgnoreCase(name) || "scrcpy".equalsIgnoreCase(name) ? SCRCPY : MINICAP;
+        }
+    }
+
+    private static Logger logger = Logger.getLogger(CaptureSession.class);
+
+    private final ScreencapService registry;
+    private final String key;
+    private final Source source;
+    private final AdbDevice device;
+    private final float scale;
+    private final int rotate;
+    // 不为0时由服务端从这个缩放比例的基础采集旋转缩放得到
+    private final float baseScale;
+
+    private final List<CaptureViewer> viewers = new CopyOnWriteArrayList<CaptureViewer>();
+    private final Object startLock = new Object();
+    private volatile ScreencapBase screencap;
+    private ScheduledFuture<?> shutdownFuture;
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+    private volatile Banner banner;
+
+    // 最近一帧的拷贝，用来直接响应截图请求
+    // 不引用解析缓冲区的切片，否则解析器的缓冲区一直有帧在外面，无法回绕复用
+    private final Object frameLock = new Object();
+    private JpgFrame lastFrame;
+
+    // H.264的SPS/PPS和最近的GOP，中途加入的观看者先收到这些数据包
+    // 默认上限为 码率 × 关键帧间隔 再留一半余量，8Mbps时约15MB
+    private final Object gopLock = new Object();
+    private final GopCache gopCache;
+
+    // 最近解码的一帧，多路服务端变换共用，每帧只解码一次
+    private final Object decodeLock = new Object();
+    private JpgFrame decodedFrame;
+    private BufferedImage decodedImage;
+
+    // 静止画面没有发给观看者的帧数和字节数
+    private final AtomicLong suppressedFrames = new AtomicLong();
+    private final AtomicLong suppressedBytes = new AtomicLong();
+
+    CaptureSession(ScreencapService registry, String key, Source source, AdbDevice device, float scale, int rotate) {
+        this(registry, key, source, device, scale, rotate, 0);
+    }
+
+    CaptureSession(ScreencapService registry, String key, Source source, AdbDevice device, float scale, int rotate, float baseScale) {
+        this.registry = registry;
+        this.key = key;
+        this.gopCache = new GopCache(key, Constant.getIntProperty("capture.h264.gop.max-bytes",
+                ScrcpyServer.getBitRate() / 8 * ScrcpyServer.I_FRAME_INTERVAL * 3 / 2));
+        this.source = source;
+        this.device = device;
+        this.scale = scale;
+        this.rotate = rotate;
+        this.baseScale = baseScale;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public AdbDevice getDevice() {
+        return device;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getRotate() {
+        return rotate;
+    }
+
+    public ScreencapBase getScreencap() {
+        return screencap;
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    public List<CaptureViewer> getViewers() {
+        return viewers;
+    }
+
+    public long getSuppressedFrames() {
+        return suppressedFrames.get();
+    }
+
+    /**
+     * 过滤重复画面节省的字节数
+     */
+    public long getSuppressedBytes() {
+        return suppressedBytes.get();
+    }
+
+    void onSuppressed(int bytes) {
+        suppressedFrames.incrementAndGet();
+        suppressedBytes.addAndGet(bytes);
+        Metrics.counter("capture.static.saved.bytes").add(bytes);
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 是否由服务端旋转缩放得到
+     */
+    public boolean isTransformed() {
+        return baseScale > 0;
+    }
+
+    /**
+     * 解码这个session输出的一帧，同一帧只解码一次
+     * 返回的图片被多个线程共用，只能读
+     */
+    BufferedImage decode(JpgFrame frame) throws IOException {
+        synchronized (decodeLock) {
+            // 只比较引用，不持有帧的数据
+            if (decodedFrame != frame) {
+                decodedImage = FrameTransformer.decode(frame);
+                decodedFrame = frame;
+            }
+            return decodedImage;
+        }
+    }
+
+    /**
+     * 最近收到的一帧
+     * @return retain过的帧，调用方负责释放；还没有图片时返回null
+     */
+    public JpgFrame getLastFrame() {
+        synchronized (frameLock) {
+            return lastFrame == null ? null : lastFrame.retainedDuplicate();
+        }
+    }
+
+    /**
+     * 拷贝到session自己的缓冲区；上一次的拷贝没有被截图请求引用时直接覆盖，不再分配
+     */
+    private void setLastFrame(JpgFrame frame) {
+        JpgFrame old = null;
+        synchronized (frameLock) {
+            if (frame == null || closed) {
+                old = lastFrame;
+                lastFrame = null;
+            } else {
+                ByteBuf data = frame.content();
+                int length = data.readableBytes();
+                ByteBuf buf;
+                // 在frameLock内检查，getLastFrame 不会同时拿走
+                if (lastFrame != null && lastFrame.refCnt() == 1 && lastFrame.content().capacity() >= length) {
+                    buf = lastFrame.content().clear();
+                } else {
+                    old = lastFrame;
+                    buf = PooledByteBufAllocator.DEFAULT.heapBuffer(length);
+                }
+                buf.writeBytes(data, data.readerIndex(), length);
+                lastFrame = new JpgFrame(buf, frame.getTimestamp(), frame.getFingerprint());
+            }
+        }
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * 启动采集，已经启动过则直接返回
+     */
+    void start() {
+        // 安装采集程序比较慢，不占用session的锁，避免阻塞其他观看者加入
+        try {
+            synchronized (startLock) {
+                if (screencap != null || closed) {
+                    return;
+                }
+                logger.info("start capture session: " + key);
+                long startTime = System.currentTimeMillis();
+                Metrics.gauge("capture.session." + key + ".saved.bytes", suppressedBytes::get);
+                Metrics.gauge("capture.session." + key + ".saved.frames", suppressedFrames::get);
+                ScreencapBase cap;
+                if (source == Source.SCRCPY) {
+                    cap = new ScrcpyScreencap(device);
+                } else if (isTransformed()) {
+                    cap = new TransformedScreencap(registry, device, baseScale);
+                } else {
+                    cap = new Minicap(device);
+                }
+                cap.addEventListener(this);
+                cap.addFrameTap(this::onFrameTap);
+                screencap = cap;
+                cap.start(scale, rotate);
+                // 包含安装设备端程序的时间
+                Metrics.histogram("capture.session.start.ms").record(System.currentTimeMillis() - startTime);
+            }
+        } catch (RuntimeException e) {
+            logger.error("start capture session failed: " + key, e);
+            registry.shutdownNow(this);
+            throw e;
+        }
+    }
+
+    synchronized void addViewer(CaptureViewer viewer) {
+        if (shutdownFuture != null) {
+            shutdownFuture.cancel(false);
+            shutdownFuture = null;
+        }
+        if (source == Source.SCRCPY) {
+            // 先补发关键帧缓存再加入，保证观看者收到的数据包是连续的
+            synchronized (gopLock) {
+                List<H264Packet> packets = gopCache.snapshot();
+                for (H264Packet packet : packets) {
+                    viewer.offer(packet);
+                    packet.release();
+                }
+                viewers.add(viewer);
+            }
+        } else {
+            viewers.add(viewer);
+        }
+        if (started) {
+            // 中途加入的观看者补发启动和banner信息
+            viewer.notifyStartup(true);
+            if (banner != null) {
+                viewer.notifyBanner(banner);
+            }
+        }
+    }
+
+    synchronized void removeViewer(CaptureViewer viewer) {
+        if (!viewers.remove(viewer) || !viewers.isEmpty() || closed) {
+            return;
+        }
+        long grace = registry.getGracePeriod();
+        logger.info(String.format("capture session %s has no viewer, close in %dms", key, grace));
+        shutdownFuture = CaptureEngine.getInstance().getScheduler().schedule(() -> registry.shutdown(this), grace, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 由 ScreencapService 在持有registry锁时调用
+     * @return 是否可以关闭
+     */
+    synchronized boolean markClosed(boolean force) {
+        if (closed) {
+            return false;
+        }
+        if (!force && !viewers.isEmpty()) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    void kill() {
+        setLastFrame(null);
+        Metrics.removeGauge("capture.session." + key + ".saved.bytes");
+        Metrics.removeGauge("capture.session." + key + ".saved.frames");
+        synchronized (decodeLock) {
+            decodedFrame = null;
+            decodedImage = null;
+        }
+        synchronized (gopLock) {
+            gopCache.clear();
+        }
+        ScreencapBase cap = getScreencap();
+        if (cap != null) {
+            logger.info("close capture session: " + key);
+            cap.kill();
+        }
+    }
+
+    @Override
+    public void onStartup(ScreencapBase minicap, boolean success) {
+        started = success;
+        for (CaptureViewer viewer : viewers) {
+            viewer.notifyStartup(success);
+        }
+        if (!success) {
+            registry.shutdownNow(this);
+        }
+    }
+
+    @Override
+    public void onClose(ScreencapBase minicap) {
+        if (closed) {
+            return;
+        }
+        started = false;
+        for (CaptureViewer viewer : viewers) {
+            viewer.notifyClose();
+        }
+        registry.shutdownNow(this);
+    }
+
+    @Override
+    public void onBanner(ScreencapBase minicap, Banner banner) {
+        this.banner = banner;
+        for (CaptureViewer viewer : viewers) {
+            viewer.notifyBanner(banner);
+        }
+    }
+
+    /**
+     * 上游丢弃的帧数，不丢帧的观看者也收不到这些帧；只有服务端变换的采集会有
+     */
+    long getUpstreamDroppedFrames() {
+        ScreencapBase cap = screencap;
+        return cap instanceof TransformedScreencap ? ((TransformedScreencap) cap).getDroppedFrames() : 0;
+    }
+
+    /**
+     * 解析线程里收到的每一帧，只交给不丢帧的观看者
+     */
+    private void onFrameTap(JpgFrame frame) {
+        for (CaptureViewer viewer : viewers) {
+            viewer.tap(frame);
+        }
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, JpgFrame frame) {
+        setLastFrame(frame);
+        for (CaptureViewer viewer : viewers) {
+            viewer.offer(frame);
+        }
+    }
+
+    @Override
+    public void onH264(ScreencapBase minicap, H264Packet packet) {
+        synchronized (gopLock) {
+            if (closed) {
+                return;
+            }
+            gopCache.add(packet);
+            for (CaptureViewer viewer : viewers) {
+                viewer.offer(packet);
+            }
+        }
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, byte[] data) {
+        // 只使用 onJPG(ScreencapBase, JpgFrame)
+    }
+}
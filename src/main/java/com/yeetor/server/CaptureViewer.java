@@ -0,0 +1,383 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.minicap.Banner;
+import com.yeetor.minicap.FrameMailbox;
+import com.yeetor.minicap.H264Packet;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.MinicapListener;
+import com.yeetor.minicap.ScreencapBase;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CaptureSession 的一个观看者
+ *
+ * 每个观看者有自己的信箱，处理不过来时只丢自己的帧，不影响同一session的其他观看者
+ *
+ * H.264数据包不能只保留最新的，按顺序排队；积压超过上限时整体丢弃，等下一个关键帧再继续
+ *
+ * 画面静止时和上一次发出的内容相同的图片不再重复发送，只按心跳间隔发一次
+ *
+ * 修改投影参数时新的观看者先处于待命状态，收到第一帧能显示的画面后才关闭旧的观看者，切换期间画面不中断
+ *
+ * 不丢帧的观看者（如录像）在采集源的分发信箱之前收到每一帧，也不过滤重复画面。
+ * 回调在minicap的解析线程(CaptureEngine的selector线程)里执行，listener自己负责不阻塞
+ */
+public class CaptureViewer {
+    private static Logger logger = Logger.getLogger(CaptureViewer.class);
+    private static final int MAX_QUEUED_PACKETS = Constant.getIntProperty("capture.h264.queue", 120);
+    // 静止画面的心跳间隔，0为不过滤重复画面
+    private static final int HEARTBEAT_MS = Constant.getIntProperty("capture.static.heartbeat.ms", 1000);
+
+    private final CaptureSession session;
+    private final MinicapListener listener;
+    private final Executor executor;
+    private final FrameMailbox<JpgFrame> mailbox;
+    // 不丢帧，每一帧都直接交给listener
+    private final boolean lossless;
+    private final AtomicLong directDelivered = new AtomicLong();
+
+    private final Queue<H264Packet> packets = new ConcurrentLinkedQueue<H264Packet>();
+    private final AtomicInteger queuedPackets = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong droppedPackets = new AtomicLong();
+    // 只在session的gopLock内访问
+    private boolean waitKeyFrame = false;
+    private volatile boolean closed = false;
+
+    // 加入时间，用来统计多久收到第一帧能显示的画面
+    private final long joinTime = System.currentTimeMillis();
+    private volatile boolean firstFrame = true;
+
+    // 切换时和旧的观看者共用，保证旧的关闭后不会再输出画面
+    private final Object deliveryLock;
+    // 待命时被替换的旧观看者
+    private volatile CaptureViewer replacing;
+    // 切换失败时继续使用的旧观看者，关闭时一起关闭
+    private volatile CaptureViewer fallback;
+    private volatile Banner pendingBanner;
+
+    // 上一次发出的图片指纹和时间，只在deliveryLock内访问
+    private long lastFingerprint = 0;
+    private long lastSentTime = 0;
+
+    CaptureViewer(CaptureSession session, MinicapListener listener, Executor executor) {
+        this(session, listener, executor, null, false);
+    }
+
+    /**
+     * @param replacing 不为null时新观看者处于待命状态，收到第一帧画面后替换它
+     * @param lossless 是否不丢帧
+     */
+    CaptureViewer(CaptureSession session, MinicapListener listener, Executor executor, CaptureViewer replacing, boolean lossless) {
+        this.session = session;
+        this.listener = listener;
+        this.executor = executor;
+        this.replacing = replacing;
+        this.lossless = lossless;
+        this.deliveryLock = replacing == null ? new Object() : replacing.deliveryLock;
+        this.mailbox = new FrameMailbox<JpgFrame>(executor, frame -> deliver(frame, true));
+    }
+
+    private void deliver(JpgFrame frame, boolean suppress) {
+        synchronized (deliveryLock) {
+            if (closed || (suppress && isDuplicate(frame))) {
+                return;
+            }
+            if (firstFrame) {
+                firstFrame = false;
+                Metrics.histogram("capture.jpg.ttff.ms").record(System.currentTimeMillis() - joinTime);
+                completeSwitch();
+            }
+            listener.onJPG(session.getScreencap(), frame);
+        }
+    }
+
+    public CaptureSession getSession() {
+        return session;
+    }
+
+    public MinicapListener getListener() {
+        return listener;
+    }
+
+    public ScreencapBase getScreencap() {
+        CaptureViewer f = fallback;
+        return f != null ? f.getScreencap() : session.getScreencap();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 切换失败时返回继续使用的旧观看者，否则返回自己
+     */
+    CaptureViewer resolve() {
+        CaptureViewer f = fallback;
+        return f != null ? f.resolve() : this;
+    }
+
+    /**
+     * 是否还在等待第一帧画面来替换旧的观看者
+     */
+    public boolean isStandby() {
+        return replacing != null;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public long getDeliveredFrames() {
+        return mailbox.getDelivered() + directDelivered.get();
+    }
+
+    public long getDroppedFrames() {
+        if (lossless) {
+            return session.getUpstreamDroppedFrames();
+        }
+        return mailbox.getDropped() + droppedPackets.get();
+    }
+
+    /**
+     * 离开session，最后一个观看者离开后session会在宽限期后关闭
+     */
+    public void close() {
+        closed = true;
+        mailbox.close();
+        releasePackets();
+        session.removeViewer(this);
+        CaptureViewer old = replacing;
+        if (old != null) {
+            replacing = null;
+            old.close();
+        }
+        CaptureViewer f = fallback;
+        if (f != null) {
+            f.close();
+        }
+    }
+
+    void notifyStartup(boolean success) {
+        if (replacing != null) {
+            // 待命时旧的观看者已经通知过启动
+            if (!success) {
+                abandonSwitch();
+            }
+            return;
+        }
+        listener.onStartup(session.getScreencap(), success);
+    }
+
+    void notifyClose() {
+        if (replacing != null) {
+            abandonSwitch();
+            return;
+        }
+        listener.onClose(session.getScreencap());
+    }
+
+    void notifyBanner(Banner banner) {
+        if (replacing != null) {
+            pendingBanner = banner;
+            return;
+        }
+        listener.onBanner(session.getScreencap(), banner);
+    }
+
+    /**
+     * 收到第一帧画面，关闭旧的观看者，调用时持有deliveryLock
+     */
+    private void completeSwitch() {
+        CaptureViewer old = replacing;
+        if (old == null) {
+            return;
+        }
+        replacing = null;
+        old.close();
+        Metrics.histogram("capture.viewer.switch.ms").record(System.currentTimeMillis() - joinTime);
+        // 通知客户端新的采集已经可用
+        listener.onStartup(session.getScreencap(), true);
+        Banner b = pendingBanner;
+        pendingBanner = null;
+        if (b != null) {
+            listener.onBanner(session.getScreencap(), b);
+        }
+    }
+
+    /**
+     * 新的采集启动失败，继续使用旧的观看者
+     */
+    void abandonSwitch() {
+        CaptureViewer old;
+        synchronized (deliveryLock) {
+            old = replacing;
+            if (old == null) {
+                return;
+            }
+            replacing = null;
+            fallback = old;
+        }
+        Metrics.counter("capture.viewer.switch.failed").inc();
+        logger.warn("capture switch failed, keep " + old.getSession().getKey());
+        closed = true;
+        mailbox.close();
+        releasePackets();
+        session.removeViewer(this);
+    }
+
+    /**
+     * 和上一次发出的画面相同且没到心跳时间，这一帧不用发送
+     */
+    private boolean isDuplicate(JpgFrame frame) {
+        long now = System.currentTimeMillis();
+        long fingerprint = frame.getFingerprint();
+        if (HEARTBEAT_MS > 0 && fingerprint != 0 && fingerprint == lastFingerprint && now - lastSentTime < HEARTBEAT_MS) {
+            session.onSuppressed(frame.length());
+            return true;
+        }
+        lastFingerprint = fingerprint;
+        lastSentTime = now;
+        return false;
+    }
+
+    void offer(JpgFrame frame) {
+        if (lossless) {
+            return;
+        }
+        mailbox.offer(frame);
+    }
+
+    /**
+     * 采集源放进分发信箱之前的每一帧，只有不丢帧的观看者处理
+     */
+    void tap(JpgFrame frame) {
+        if (!lossless) {
+            return;
+        }
+        directDelivered.incrementAndGet();
+        deliver(frame, false);
+    }
+
+    void offer(H264Packet packet) {
+        if (closed) {
+            return;
+        }
+        boolean decodable = packet.isConfig() || packet.isKeyFrame();
+        if (queuedPackets.get() >= MAX_QUEUED_PACKETS) {
+            dropQueuedPackets();
+            waitKeyFrame = true;
+        }
+        if (waitKeyFrame && !decodable) {
+            droppedPackets.incrementAndGet();
+            return;
+        }
+        if (packet.isKeyFrame()) {
+            waitKeyFrame = false;
+        }
+        packets.add(packet.retain());
+        queuedPackets.incrementAndGet();
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drainPackets);
+        }
+        if (closed) {
+            releasePackets();
+        }
+    }
+
+    /**
+     * 积压太多时丢弃排队的数据包，config包保留下来，否则客户端无法解码之后的关键帧
+     */
+    private void dropQueuedPackets() {
+        H264Packet config = null;
+        H264Packet p;
+        while ((p = packets.poll()) != null) {
+            queuedPackets.decrementAndGet();
+            if (p.isConfig()) {
+                if (config != null) {
+                    config.release();
+                }
+                config = p;
+            } else {
+                droppedPackets.incrementAndGet();
+                p.release();
+            }
+        }
+        if (config != null) {
+            packets.add(config);
+            queuedPackets.incrementAndGet();
+        }
+    }
+
+    private void drainPackets() {
+        while (true) {
+            H264Packet p;
+            while ((p = packets.poll()) != null) {
+                queuedPackets.decrementAndGet();
+                try {
+                    synchronized (deliveryLock) {
+                        if (!closed) {
+                            if (firstFrame && p.isKeyFrame()) {
+                                firstFrame = false;
+                                Metrics.histogram("capture.h264.ttff.ms").record(System.currentTimeMillis() - joinTime);
+                                completeSwitch();
+                            }
+                            listener.onH264(session.getScreencap(), p);
+                        }
+                    }
+                } catch (Throwable t) {
+                    logger.warn("h264 consumer error", t);
+                } finally {
+                    p.release();
+                }
+            }
+            draining.set(false);
+            if (packets.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void releasePackets() {
+        H264Packet p;
+        while ((p = packets.poll()) != null) {
+            queuedPackets.decrementAndGet();
+            p.release();
+        }
+    }
+}
@@ -26,9 +26,17 @@
 
 package com.yeetor.server;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.adb.AdbServer;
 import com.yeetor.adb.AdbUtils;
-import com.yeetor.minicap.Minicap;
+import com.yeetor.record.RecordService;
+import com.yeetor.record.RecordingReader;
+import com.yeetor.record.SessionRecorder;
 import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
@@ -43,6 +51,7 @@ import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 
 import static io.netty.handler.codec.http.HttpHeaderValues.KEEP_ALIVE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
@@ -142,22 +151,227 @@ public class HttpServer {
     @HttpRouter(uri="/shot")
     public void shot(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response) {
         String uri = request.uri();
+        if (uri.indexOf("?") != -1) {
+            uri = uri.substring(0, uri.indexOf("?"));
+        }
         String[] args = uri.split("/");
-        if (args.length < 1 || args[1].length() == 0) {
+        if (args.length < 3 || args[2].length() == 0 || AdbServer.server().getDevice(args[2]) == null) {
             writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
             return;
         }
         
         String serialNumber = args[2];
         long startTime=System.currentTimeMillis();
-        Minicap cap = new Minicap(serialNumber);
-        byte[] data = cap.takeScreenShot();
-        long endTime=System.currentTimeMillis();
-        logger.info("ScreenShot used：" + (endTime - startTime) + "ms");
-        response.headers().set(CONTENT_TYPE, "image/jpeg");
-        HttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(data));
-        response.headers().set(CONTENT_LENGTH, content.content().readableBytes());
-        writeResponse(ctx, request, response, content);
+        // 截图可能要几百毫秒，不阻塞netty的线程
+        ServicesPool.getInstance().getScreenshotCache().getScreenShot(serialNumber).whenComplete((data, e) -> {
+            if (e != null) {
+                logger.warn("ScreenShot failed: " + e.getMessage());
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            long endTime=System.currentTimeMillis();
+            logger.info("ScreenShot used：" + (endTime - startTime) + "ms");
+            response.headers().set(CONTENT_TYPE, "image/jpeg");
+            HttpContent content = new DefaultHttpContent(data);
+            response.headers().set(CONTENT_LENGTH, content.content().readableBytes());
+            writeResponse(ctx, request, response, content);
+        });
+    }
+
+    /**
+     * /record/start/{sn}?scale=0.5 开始录像
+     * /record/stop/{sn} 停止录像
+     * /record/list 正在进行的录像
+     */
+    @HttpRouter(uri="/record")
+    public void record(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response) {
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        String[] args = decoder.path().split("/");
+        RecordService recordService = ServicesPool.getInstance().getRecordService();
+        String action = args.length > 2 ? args[2] : "list";
+        String serialNumber = args.length > 3 ? args[3] : "";
+
+        JSONObject result = new JSONObject();
+        if ("list".equals(action)) {
+            JSONArray list = new JSONArray();
+            for (SessionRecorder recorder : recordService.getRecorders()) {
+                list.add(recorderToJSON(recorder));
+            }
+            result.put("recorders", list);
+        } else if ("start".equals(action)) {
+            AdbDevice device = AdbServer.server().getDevice(serialNumber);
+            if (device == null) {
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+            float scale = 0.5f;
+            List<String> scaleParam = decoder.parameters().get("scale");
+            if (scaleParam != null && !scaleParam.isEmpty()) {
+                try {
+                    scale = Float.parseFloat(scaleParam.get(0));
+                } catch (NumberFormatException e) {
+                    scale = Float.NaN;
+                }
+                // 不能放大，0和负数没有意义
+                if (!(scale > 0)) {
+                    writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.BAD_REQUEST);
+                    return;
+                }
+                scale = Math.min(scale, 1f);
+            }
+            try {
+                result = recorderToJSON(recordService.start(device, scale));
+            } catch (IOException e) {
+                logger.warn("start record failed: " + e.getMessage());
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                return;
+            }
+        } else if ("stop".equals(action)) {
+            SessionRecorder recorder = recordService.stop(serialNumber);
+            if (recorder == null) {
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+            result = recorderToJSON(recorder);
+        } else {
+            writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        response.headers().set(CONTENT_TYPE, "application/json");
+        writeHttpResponseWithString(ctx, request, response, result.toJSONString());
+    }
+
+    /**
+     * /replay/list/{sn} 设备的所有录像
+     * /replay/frame/{sn}/{session}?offset=ms 录像开始后offset毫秒处的一帧
+     * 连续播放通过websocket的 M_REPLAY
+     */
+    @HttpRouter(uri="/replay")
+    public void replay(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response) {
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        String[] args = decoder.path().split("/");
+        RecordService recordService = ServicesPool.getInstance().getRecordService();
+        if (args.length == 4 && "list".equals(args[2])) {
+            JSONArray list = new JSONArray();
+            for (String session : recordService.listSessions(args[3])) {
+                try (RecordingReader reader = recordService.openReader(args[3], session)) {
+                    JSONObject obj = new JSONObject();
+                    obj.put("session", session);
+                    obj.put("startTime", reader.getStartTime());
+                    obj.put("endTime", reader.getEndTime());
+                    obj.put("frames", reader.getFrameCount());
+                    obj.put("segments", reader.getSegmentCount());
+                    list.add(obj);
+                } catch (IOException e) {
+                    logger.warn("open record failed: " + e.getMessage());
+                }
+            }
+            response.headers().set(CONTENT_TYPE, "application/json");
+            writeHttpResponseWithString(ctx, request, response, list.toJSONString());
+        } else if (args.length == 5 && "frame".equals(args[2])) {
+            long offset = 0;
+            List<String> offsetParam = decoder.parameters().get("offset");
+            if (offsetParam != null && !offsetParam.isEmpty()) {
+                try {
+                    offset = Long.parseLong(offsetParam.get(0));
+                } catch (NumberFormatException e) {
+                    writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.BAD_REQUEST);
+                    return;
+                }
+            }
+            try (RecordingReader reader = recordService.openReader(args[3], args[4])) {
+                long position = reader.seek(reader.getStartTime() + offset);
+                if (position >= reader.getFrameCount()) {
+                    writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+                    return;
+                }
+                RecordingReader.Frame frame = reader.read(position);
+                response.headers().set(CONTENT_TYPE, "image/jpeg");
+                response.headers().set("X-Frame-Timestamp", frame.getTimestamp());
+                response.headers().set(CONTENT_LENGTH, frame.getData().readableBytes());
+                writeResponse(ctx, request, response, new DefaultHttpContent(frame.getData()));
+            } catch (IOException e) {
+                logger.warn("read record failed: " + e.getMessage());
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+            }
+        } else {
+            writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+        }
+    }
+
+    private static JSONObject recorderToJSON(SessionRecorder recorder) {
+        JSONObject obj = new JSONObject();
+        obj.put("sn", recorder.getDevice().getSerialNumber());
+        obj.put("path", recorder.getSessionDir().getPath());
+        obj.put("startTime", recorder.getStartTime());
+        obj.put("frames", recorder.getFrames());
+        obj.put("bytes", recorder.getBytes());
+        obj.put("dropped", recorder.getDroppedFrames());
+        obj.put("upstreamDropped", recorder.getUpstreamDroppedFrames());
+        obj.put("running", recorder.isRunning());
+        return obj;
+    }
+
+    /**
+     * /provision 所有设备的安装状态
+     * POST /provision/start 重新安装所有设备，POST /provision/start/{sn} 只安装指定设备
+     */
+    @HttpRouter(uri="/provision")
+    public void provision(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response) {
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        String[] args = decoder.path().split("/");
+        ProvisioningService provisioningService = ServicesPool.getInstance().getProvisioningService();
+        if (args.length > 2 && "start".equals(args[2])) {
+            // 会触发安装，不能被预取或者爬虫的GET触发
+            if (!HttpMethod.POST.equals(request.method())) {
+                response.headers().set(HttpHeaderNames.ALLOW, HttpMethod.POST.name());
+                writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.METHOD_NOT_ALLOWED);
+                return;
+            }
+            if (args.length > 3) {
+                AdbDevice device = AdbServer.server().getDevice(args[3]);
+                if (device == null) {
+                    writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+                    return;
+                }
+                provisioningService.provision(device);
+            } else {
+                provisioningService.provisionAll();
+            }
+        } else if (args.length > 2) {
+            writeErrorHttpResponse(ctx, request, response, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+
+        JSONObject result = new JSONObject();
+        JSONObject summary = new JSONObject();
+        for (ProvisioningService.State state : ProvisioningService.State.values()) {
+            summary.put(state.name().toLowerCase(), 0);
+        }
+        JSONArray list = new JSONArray();
+        for (ProvisioningService.Status status : provisioningService.getStatuses()) {
+            JSONObject obj = new JSONObject();
+            obj.put("sn", status.getSerialNumber());
+            obj.put("bus", status.getBus());
+            obj.put("state", status.getState().name().toLowerCase());
+            obj.put("pushed", status.getPushed());
+            obj.put("duration", status.getDuration());
+            obj.put("error", status.getError());
+            list.add(obj);
+            String key = status.getState().name().toLowerCase();
+            summary.put(key, summary.getIntValue(key) + 1);
+        }
+        result.put("summary", summary);
+        result.put("devices", list);
+        response.headers().set(CONTENT_TYPE, "application/json");
+        writeHttpResponseWithString(ctx, request, response, result.toJSONString());
+    }
+
+    @HttpRouter(uri="/metrics")
+    public void metrics(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response) {
+        String json = JSON.toJSONString(Metrics.snapshot(), true);
+        response.headers().set(CONTENT_TYPE, "application/json");
+        writeHttpResponseWithString(ctx, request, response, json);
     }
 
     /**
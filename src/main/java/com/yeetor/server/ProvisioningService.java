@@ -0,0 +1,294 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.adb.AdbServer;
+import com.yeetor.adb.AgentInstaller;
+import com.yeetor.adb.IAdbServerListener;
+import com.yeetor.minicap.Minicap;
+import com.yeetor.touch.minitouch.Minitouch;
+import com.yeetor.touch.scrcpy.ScrcpyServer;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import com.yeetor.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 启动时和设备接入时提前安装设备端程序（minicap、minitouch、scrcpy-server），第一次打开设备不需要再等待安装
+ *
+ * 所有设备并行安装，同一条USB总线上同时安装的设备数有上限，避免占满总线带宽；超出的设备按接入顺序排队
+ */
+public class ProvisioningService implements IAdbServerListener {
+    private static Logger logger = Logger.getLogger(ProvisioningService.class);
+
+    // 网络连接的设备不受USB总线限制
+    private static final String NO_BUS = "";
+
+    public enum State {
+        PENDING, RUNNING, DONE, FAILED
+    }
+
+    public static class Status {
+        private final String serialNumber;
+        // 安装任务开始时才查询，之前为null
+        private volatile String bus;
+        private volatile State state = State.PENDING;
+        private volatile int pushed;
+        private volatile String error;
+        private volatile long startTime;
+        private volatile long endTime;
+
+        Status(String serialNumber) {
+            this.serialNumber = serialNumber;
+        }
+
+        public String getSerialNumber() {
+            return serialNumber;
+        }
+
+        public String getBus() {
+            return bus;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getPushed() {
+            return pushed;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * 安装用时，还没结束时为0
+         */
+        public long getDuration() {
+            return endTime > 0 ? endTime - startTime : 0;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            Constant.getIntProperty("provision.threads", 8), new NamedThreadFactory("provision"));
+    private final int perBus = Constant.getIntProperty("provision.per-bus", 2);
+
+    // 序列号 -> 最近一次安装的状态
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    // 总线 -> 正在安装的数量，排队的设备，都由this保护
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Deque<AdbDevice>> waiting = new HashMap<>();
+
+    /**
+     * 监听设备接入并安装已连接的设备
+     */
+    public void start() {
+        if (!"true".equals(Constant.getProperty("provision.enabled", "true"))) {
+            return;
+        }
+        AdbServer.server().addListener(this);
+        Metrics.gauge("provision.running", () -> count(State.RUNNING));
+        Metrics.gauge("provision.pending", () -> count(State.PENDING));
+        provisionAll();
+    }
+
+    public void provisionAll() {
+        for (AdbDevice device : AdbServer.server().getDevices()) {
+            provision(device);
+        }
+    }
+
+    /**
+     * 开始安装，已经在排队或者正在安装时忽略
+     *
+     * 在HTTP和adb-device线程里调用，查询USB总线要扫描USB设备，放到安装线程里进行
+     * @return 设备的状态
+     */
+    public Status provision(AdbDevice device) {
+        Status status = new Status(device.getSerialNumber());
+        synchronized (this) {
+            Status old = statuses.get(device.getSerialNumber());
+            if (old != null && (old.state == State.PENDING || old.state == State.RUNNING)) {
+                return old;
+            }
+            statuses.put(device.getSerialNumber(), status);
+        }
+        executor.execute(() -> admit(device, status));
+        return status;
+    }
+
+    /**
+     * 查询设备所在的总线，总线上安装的设备数没到上限时直接安装，否则排队
+     */
+    private void admit(AdbDevice device, Status status) {
+        String bus = AdbServer.server().getUsbBus(device.getSerialNumber());
+        String key = bus == null ? NO_BUS : bus;
+        status.bus = bus;
+        synchronized (this) {
+            // 查询期间设备已经断开
+            if (statuses.get(device.getSerialNumber()) != status) {
+                return;
+            }
+            int n = running.getOrDefault(key, 0);
+            if (bus != null && n >= perBus) {
+                waiting.computeIfAbsent(key, k -> new ArrayDeque<>()).add(device);
+                return;
+            }
+            running.put(key, n + 1);
+        }
+        try {
+            install(device, status);
+        } finally {
+            next(key);
+        }
+    }
+
+    public List<Status> getStatuses() {
+        return new ArrayList<>(statuses.values());
+    }
+
+    public Status getStatus(String serialNumber) {
+        return statuses.get(serialNumber);
+    }
+
+    @Override
+    public void onAdbDeviceConnected(AdbDevice device) {
+        provision(device);
+    }
+
+    @Override
+    public void onAdbDeviceDisConnected(AdbDevice device) {
+        synchronized (this) {
+            statuses.remove(device.getSerialNumber());
+            for (Deque<AdbDevice> queue : waiting.values()) {
+                queue.removeIf(d -> d.getSerialNumber().equals(device.getSerialNumber()));
+            }
+        }
+    }
+
+    private void submit(AdbDevice device, Status status, String bus) {
+        executor.execute(() -> {
+            try {
+                install(device, status);
+            } finally {
+                next(bus);
+            }
+        });
+    }
+
+    /**
+     * 一台设备安装完后，同一总线上排队的下一台开始安装
+     */
+    private void next(String bus) {
+        AdbDevice device = null;
+        Status status = null;
+        synchronized (this) {
+            Deque<AdbDevice> queue = waiting.get(bus);
+            while (status == null && queue != null && !queue.isEmpty()) {
+                device = queue.poll();
+                status = statuses.get(device.getSerialNumber());
+            }
+            if (status == null) {
+                // 没有排队的设备，释放名额
+                int n = running.getOrDefault(bus, 1) - 1;
+                if (n > 0) {
+                    running.put(bus, n);
+                } else {
+                    running.remove(bus);
+                }
+                return;
+            }
+        }
+        submit(device, status, bus);
+    }
+
+    private void install(AdbDevice device, Status status) {
+        status.startTime = System.currentTimeMillis();
+        status.state = State.RUNNING;
+        // 所有程序一起检查，只需要一次STAT和一次md5sum
+        Map<File, String> files = new LinkedHashMap<>();
+        List<String> errors = new ArrayList<>();
+        Set<String> agents = new HashSet<>(Arrays.asList(Constant.getProperty("provision.agents", "minicap,minitouch,scrcpy").split(",")));
+        try {
+            if (agents.contains("minicap")) {
+                files.putAll(Minicap.agentFiles(device));
+            }
+        } catch (Exception e) {
+            errors.add("minicap: " + e.getMessage());
+        }
+        try {
+            if (agents.contains("minitouch")) {
+                files.putAll(Minitouch.agentFiles(device));
+            }
+        } catch (Exception e) {
+            errors.add("minitouch: " + e.getMessage());
+        }
+        try {
+            if (agents.contains("scrcpy")) {
+                files.putAll(ScrcpyServer.agentFiles());
+            }
+        } catch (Exception e) {
+            errors.add("scrcpy: " + e.getMessage());
+        }
+        try {
+            if (!files.isEmpty()) {
+                status.pushed = AgentInstaller.getInstance().install(device, files);
+            }
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+        status.endTime = System.currentTimeMillis();
+        Metrics.histogram("provision.ms").record(status.endTime - status.startTime);
+        if (errors.isEmpty()) {
+            status.state = State.DONE;
+            logger.info(String.format("device(%s) provisioned in %d ms, %d file(s) pushed", device.getSerialNumber(), status.getDuration(), status.pushed));
+        } else {
+            status.error = String.join("; ", errors);
+            status.state = State.FAILED;
+            Metrics.counter("provision.failed").inc();
+            logger.warn(String.format("device(%s) provision failed: %s", device.getSerialNumber(), status.error));
+        }
+    }
+
+    private int count(State state) {
+        int n = 0;
+        for (Status status : statuses.values()) {
+            if (status.state == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -27,30 +27,186 @@
 package com.yeetor.server;
 
 import com.yeetor.adb.AdbDevice;
-import com.yeetor.adb.AdbServer;
-import com.yeetor.minicap.ScreencapBase;
+import com.yeetor.minicap.CaptureEngine;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.MinicapListener;
+import com.yeetor.util.Constant;
+
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+
+/**
+ * 屏幕采集session的注册表
+ *
+ * 同一台设备、同一采集源、同一投影参数只启动一路采集，多个观看者共享
+ */
+public class ScreencapService {
+
+    private final Map<String, CaptureSession> sessions = new HashMap<>();
+
+    private final long gracePeriod = Constant.getIntProperty("capture.session.grace.ms", 5000);
+
+    // 开启后minicap只按基础比例采集一路，其他尺寸和方向在服务端旋转缩放，不再为每种参数启动一个minicap
+    private final boolean transform = Boolean.parseBoolean(Constant.getProperty("capture.transform", "false"));
+    private final float transformBaseScale = Constant.getIntProperty("capture.transform.base-percent", 100) / 100f;
+
+    /**
+     * 加入一路屏幕采集，不存在时新建
+     * @param listener 观看者的回调
+     * @return 观看者，离开时调用 close()
+     */
+    public CaptureViewer acquire(AdbDevice device, float scale, int rotate, MinicapListener listener) {
+        return acquire(device, CaptureSession.Source.MINICAP, scale, rotate, listener);
+    }
+
+    /**
+     * 加入一路屏幕采集，不存在时新建
+     * @param source 采集源，SCRCPY 时忽略scale和rotate
+     * @param listener 观看者的回调
+     * @return 观看者，离开时调用 close()
+     */
+    public CaptureViewer acquire(AdbDevice device, CaptureSession.Source source, float scale, int rotate, MinicapListener listener) {
+        return join(device, source, scale, rotate, listener, null, false);
+    }
+
+    /**
+     * 以不丢帧的方式加入一路minicap采集，每一帧在采集源的分发信箱之前、在解析线程里直接回调，不过滤重复画面
+     * 服务端变换的采集只能拿到变换后的帧，变换来不及时仍会丢帧，计入观看者的 getDroppedFrames
+     * @param listener onJPG 不能阻塞，否则会拖慢同一session的所有观看者
+     * @return 观看者，离开时调用 close()
+     */
+    public CaptureViewer acquireLossless(AdbDevice device, float scale, int rotate, MinicapListener listener) {
+        return join(device, CaptureSession.Source.MINICAP, scale, rotate, listener, null, true);
+    }
+
+    /**
+     * 修改采集参数，不先关闭旧的观看者
+     *
+     * 新的观看者收到第一帧画面后才关闭旧的，新的采集启动失败时继续使用旧的
+     * @param current 当前的观看者，可以为null
+     * @return 新的观看者；参数没有变化时返回current
+     */
+    public CaptureViewer switchTo(CaptureViewer current, AdbDevice device, CaptureSession.Source source, float scale, int rotate, MinicapListener listener) {
+        if (current != null) {
+            current = current.resolve();
+        }
+        if (current == null || current.isClosed()) {
+            return acquire(device, source, scale, rotate, listener);
+        }
+        CaptureSession old = current.getSession();
+        if (!old.isClosed() && old.getKey().equals(sessionKey(device, source, scale, rotate))) {
+            return current;
+        }
+        try {
+            return join(device, source, scale, rotate, listener, current, current.isLossless());
+        } catch (RuntimeException e) {
+            return current;
+        }
+    }
+
+    private CaptureViewer join(AdbDevice device, CaptureSession.Source source, float scale, int rotate, MinicapListener listener, CaptureViewer replacing, boolean lossless) {
+        String key = sessionKey(device, source, scale, rotate);
+        CaptureSession session;
+        CaptureViewer viewer;
+        synchronized (this) {
+            session = sessions.get(key);
+            if (session == null || session.isClosed()) {
+                session = isTransformed(source, scale, rotate)
+                        ? new CaptureSession(this, key, source, device, scale, rotate, transformBaseScale)
+                        : new CaptureSession(this, key, source, device, scale, rotate);
+                sessions.put(key, session);
+            }
+            viewer = new CaptureViewer(session, listener, CaptureEngine.getInstance().getDispatchExecutor(), replacing, lossless);
+            session.addViewer(viewer);
+        }
+        // 安装和启动采集比较慢，不在registry锁里做
+        try {
+            session.start();
+        } catch (RuntimeException e) {
+            if (replacing != null) {
+                viewer.abandonSwitch();
+            }
+            throw e;
+        }
+        return viewer;
+    }
+
+    public synchronized List<CaptureSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
 
-public class ScreencapService extends HashMap<AdbDevice, ScreencapBase> {
-    
-    public List<ScreencapBase> filterWithDevice(AdbDevice device) {
-        List<ScreencapBase> lst = new LinkedList<>();
-        Iterator iter = entrySet().iterator();
-        
-        while (iter.hasNext()) {
-            Entry entry = (Entry) iter.next();
-
-            AdbDevice key = (AdbDevice) entry.getKey();
-            if (key.equals(device)) {
-                lst.add((ScreencapBase) entry.getValue());
+    public synchronized List<CaptureSession> filterWithDevice(AdbDevice device) {
+        List<CaptureSession> lst = new ArrayList<>();
+        for (CaptureSession session : sessions.values()) {
+            if (session.getDevice().getSerialNumber().equals(device.getSerialNumber())) {
+                lst.add(session);
             }
         }
         return lst;
     }
-    
-    
-    
+
+    /**
+     * 从正在运行的session中取该设备最近的一帧，有多路时取分辨率最高的
+     * @return retain过的帧，调用方负责释放；没有正在运行的session时返回null
+     */
+    public JpgFrame getLastFrame(String serialNumber) {
+        List<CaptureSession> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (CaptureSession session : sessions.values()) {
+                if (session.isStarted() && session.getDevice().getSerialNumber().equals(serialNumber)) {
+                    candidates.add(session);
+                }
+            }
+        }
+        candidates.sort((a, b) -> Float.compare(b.getScale(), a.getScale()));
+        for (CaptureSession session : candidates) {
+            JpgFrame frame = session.getLastFrame();
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    long getGracePeriod() {
+        return gracePeriod;
+    }
+
+    /**
+     * 宽限期结束，没有新的观看者时关闭session
+     */
+    void shutdown(CaptureSession session) {
+        close(session, false);
+    }
+
+    /**
+     * minicap异常退出，不管是否有观看者都关闭session
+     */
+    void shutdownNow(CaptureSession session) {
+        close(session, true);
+    }
+
+    private void close(CaptureSession session, boolean force) {
+        synchronized (this) {
+            if (!session.markClosed(force)) {
+                return;
+            }
+            sessions.remove(session.getKey(), session);
+        }
+        session.kill();
+    }
+
+    private boolean isTransformed(CaptureSession.Source source, float scale, int rotate) {
+        return transform && source == CaptureSession.Source.MINICAP
+                && (rotate != 0 || Math.abs(scale - transformBaseScale) > 0.001f);
+    }
+
+    private static String sessionKey(AdbDevice device, CaptureSession.Source source, float scale, int rotate) {
+        if (source == CaptureSession.Source.SCRCPY) {
+            return device.getSerialNumber() + "@h264";
+        }
+        return String.format("%s@%.2f/%d", device.getSerialNumber(), scale, rotate);
+    }
 }
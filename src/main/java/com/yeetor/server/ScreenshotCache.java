@@ -0,0 +1,145 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.Minicap;
+import com.yeetor.util.Constant;
+import com.yeetor.util.NamedThreadFactory;
+import io.netty.buffer.ByteBuf;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * 截图服务
+ *
+ * 设备正在推流时直接返回最近一帧；否则使用缓存，缓存过期才去设备上截图。
+ * 同一设备同时有多个请求时只截一次图，所有请求共享结果。
+ *
+ * 配置见 yeetor.properties:
+ *   shot.cache.max-age.ms  缓存的有效期
+ *   shot.threads           截图线程数
+ */
+public class ScreenshotCache {
+    private static Logger logger = Logger.getLogger(ScreenshotCache.class);
+
+    private final long maxAge = Constant.getIntProperty("shot.cache.max-age.ms", 1000);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Constant.getIntProperty("shot.threads", 4)), new NamedThreadFactory("screenshot"));
+
+    // 缓存持有数据的一个引用，替换或失效时释放；读取和替换都在cache的锁里
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 获取设备截图，不会阻塞调用线程
+     * @return jpg数据，调用方负责释放
+     */
+    public CompletableFuture<ByteBuf> getScreenShot(String serialNumber) {
+        JpgFrame frame = ServicesPool.getInstance().getScreencapService().getLastFrame(serialNumber);
+        if (frame != null) {
+            return CompletableFuture.completedFuture(frame.content());
+        }
+
+        synchronized (cache) {
+            Entry entry = cache.get(serialNumber);
+            if (entry != null && System.currentTimeMillis() - entry.timestamp <= maxAge) {
+                return CompletableFuture.completedFuture(entry.data.retainedDuplicate());
+            }
+        }
+
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        CompletableFuture<Entry> future = pending.putIfAbsent(serialNumber, created);
+        if (future == null) {
+            future = created;
+            executor.execute(() -> capture(serialNumber, created));
+        }
+        return future.thenApply(e -> retain(serialNumber, e));
+    }
+
+    public void invalidate(String serialNumber) {
+        synchronized (cache) {
+            Entry old = cache.remove(serialNumber);
+            if (old != null) {
+                old.data.release();
+            }
+        }
+    }
+
+    /**
+     * 等待中的请求拿到结果时缓存可能已经被替换，这时使用新的数据
+     */
+    private ByteBuf retain(String serialNumber, Entry entry) {
+        synchronized (cache) {
+            if (entry.data.refCnt() > 0) {
+                return entry.data.retainedDuplicate();
+            }
+            Entry current = cache.get(serialNumber);
+            if (current == null) {
+                throw new IllegalStateException("screenshot invalidated: " + serialNumber);
+            }
+            return current.data.retainedDuplicate();
+        }
+    }
+
+    private void capture(String serialNumber, CompletableFuture<Entry> future) {
+        try {
+            long startTime = System.currentTimeMillis();
+            ByteBuf data = new Minicap(serialNumber).takeScreenShotBuffer();
+            if (!data.isReadable()) {
+                data.release();
+                throw new IOException("take screenshot failed: " + serialNumber);
+            }
+            logger.info(String.format("device(%s) screenshot used: %dms", serialNumber, System.currentTimeMillis() - startTime));
+            Entry entry = new Entry(data, System.currentTimeMillis());
+            synchronized (cache) {
+                Entry old = cache.put(serialNumber, entry);
+                if (old != null) {
+                    old.data.release();
+                }
+            }
+            future.complete(entry);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            pending.remove(serialNumber, future);
+        }
+    }
+
+    private static class Entry {
+        final ByteBuf data;
+        final long timestamp;
+
+        Entry(ByteBuf data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -26,13 +26,21 @@
 
 package com.yeetor.server;
 
+import com.yeetor.record.RecordService;
+
 public class ServicesPool {
     
     private static ServicesPool instance = null;
 
     ScreencapService screencapService = null;
+
+    ScreenshotCache screenshotCache = null;
+
+    RecordService recordService = null;
+
+    ProvisioningService provisioningService = null;
     
-    public static ServicesPool getInstance() {
+    public static synchronized ServicesPool getInstance() {
         if (instance == null) {
             instance = new ServicesPool();
         }
@@ -41,10 +49,25 @@ public class ServicesPool {
     
     private ServicesPool() {
         screencapService = new ScreencapService();
+        screenshotCache = new ScreenshotCache();
+        recordService = new RecordService();
+        provisioningService = new ProvisioningService();
     }
 
 
     public ScreencapService getScreencapService() {
         return screencapService;
     }
+
+    public ScreenshotCache getScreenshotCache() {
+        return screenshotCache;
+    }
+
+    public RecordService getRecordService() {
+        return recordService;
+    }
+
+    public ProvisioningService getProvisioningService() {
+        return provisioningService;
+    }
 }
@@ -0,0 +1,243 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.minicap.FrameMailbox;
+import com.yeetor.minicap.FrameTransformer;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.protocol.BinaryProtocol;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.apache.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 脏块增量模式，给带宽很低的远程观看者用
+ *
+ * 在服务端解码每一帧，按固定大小的块和上一次发出的画面比较，只把变化的块编码成小JPG发送。
+ * 加入时、每隔一段时间、以及发送失败后发一次完整的关键帧。
+ * 比较和编码在 FrameTransformer 的线程池里进行，处理不过来时只保留最新一帧
+ */
+public class TileStreamer {
+    private static Logger logger = Logger.getLogger(TileStreamer.class);
+
+    private static final int TILE_SIZE = Math.max(16, Constant.getIntProperty("capture.tile.size", 64));
+    private static final int KEYFRAME_MS = Constant.getIntProperty("capture.tile.keyframe.ms", 5000);
+    // 变化的块超过这个比例(%)时直接发关键帧
+    private static final int FULL_PERCENT = Constant.getIntProperty("capture.tile.full-percent", 50);
+
+    public static final int FLAG_KEYFRAME = 1;
+
+    /**
+     * 发送一条完整的 SM_TILE 消息，返回false表示连接发不动了
+     */
+    public interface Sink {
+        boolean send(ByteBuf message);
+    }
+
+    private final Sink sink;
+    private final FrameMailbox<JpgFrame> mailbox = new FrameMailbox<JpgFrame>(FrameTransformer.getExecutor(), this::process);
+
+    // 上一次发出的画面，只在处理线程里访问
+    private byte[] previous;
+    private int width;
+    private int height;
+    private long lastKeyFrame = 0;
+    private volatile boolean needKeyFrame = true;
+
+    public TileStreamer(Sink sink) {
+        this.sink = sink;
+    }
+
+    public void offer(JpgFrame frame) {
+        mailbox.offer(frame);
+    }
+
+    /**
+     * 下一帧发送关键帧，比如观看者切换了采集参数
+     */
+    public void requestKeyFrame() {
+        needKeyFrame = true;
+    }
+
+    public void close() {
+        mailbox.close();
+    }
+
+    private void process(JpgFrame frame) {
+        long start = System.nanoTime();
+        BufferedImage image;
+        try {
+            image = toBgr(FrameTransformer.decode(frame));
+        } catch (Exception e) {
+            logger.warn("tile: decode failed: " + e.getMessage());
+            return;
+        }
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        long now = System.currentTimeMillis();
+        boolean key = needKeyFrame || previous == null || w != width || h != height
+                || (KEYFRAME_MS > 0 && now - lastKeyFrame >= KEYFRAME_MS);
+        List<int[]> dirty = key ? null : diff(previous, pixels, w, h);
+        if (dirty != null && dirty.isEmpty()) {
+            return;
+        }
+        int total = ((w + TILE_SIZE - 1) / TILE_SIZE) * ((h + TILE_SIZE - 1) / TILE_SIZE);
+        if (dirty != null && dirty.size() * 100 >= total * FULL_PERCENT) {
+            key = true;
+        }
+
+        ByteBuf message;
+        try {
+            message = key ? keyFrameMessage(frame, w, h) : deltaMessage(image, dirty, w, h);
+        } catch (Exception e) {
+            logger.warn("tile: encode failed: " + e.getMessage());
+            return;
+        }
+        int size = message.readableBytes();
+        if (!sink.send(message)) {
+            // 丢了一帧增量，之后的增量都对不上了
+            needKeyFrame = true;
+            return;
+        }
+        previous = pixels;
+        width = w;
+        height = h;
+        if (key) {
+            needKeyFrame = false;
+            lastKeyFrame = now;
+            Metrics.counter("capture.tile.keyframes").inc();
+        } else {
+            Metrics.counter("capture.tile.saved.bytes").add(Math.max(0, frame.length() - size));
+        }
+        Metrics.histogram("capture.tile.process.us").record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * 按块比较两帧的像素，返回变化的块 {x, y, w, h}
+     */
+    private static List<int[]> diff(byte[] prev, byte[] cur, int w, int h) {
+        List<int[]> dirty = new ArrayList<>();
+        int stride = w * 3;
+        for (int ty = 0; ty < h; ty += TILE_SIZE) {
+            int th = Math.min(TILE_SIZE, h - ty);
+            for (int tx = 0; tx < w; tx += TILE_SIZE) {
+                int tw = Math.min(TILE_SIZE, w - tx);
+                if (tileChanged(prev, cur, stride, tx * 3, ty, tw * 3, th)) {
+                    dirty.add(new int[]{tx, ty, tw, th});
+                }
+            }
+        }
+        return dirty;
+    }
+
+    private static boolean tileChanged(byte[] prev, byte[] cur, int stride, int x, int y, int rowBytes, int rows) {
+        for (int row = 0; row < rows; row++) {
+            int off = (y + row) * stride + x;
+            int end = off + rowBytes;
+            for (int i = off; i < end; i++) {
+                if (prev[i] != cur[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 关键帧直接发送原始JPG，不需要重新编码
+     */
+    private static ByteBuf keyFrameMessage(JpgFrame frame, int w, int h) {
+        ByteBuf head = newMessageHead(FLAG_KEYFRAME, w, h, 1, frame.length());
+        writeTile(head, 0, 0, w, h, frame.length());
+        return Unpooled.wrappedBuffer(head, frame.content().retainedDuplicate());
+    }
+
+    private static ByteBuf deltaMessage(BufferedImage image, List<int[]> dirty, int w, int h) throws Exception {
+        List<JpgFrame> tiles = new ArrayList<>(dirty.size());
+        try {
+            int bodyLength = 0;
+            for (int[] t : dirty) {
+                JpgFrame jpg = FrameTransformer.encode(image.getSubimage(t[0], t[1], t[2], t[3]), 0, 0);
+                tiles.add(jpg);
+                bodyLength += jpg.length();
+            }
+            ByteBuf head = newMessageHead(0, w, h, dirty.size(), bodyLength);
+            ByteBuf[] parts = new ByteBuf[tiles.size() + 1];
+            parts[0] = head;
+            for (int i = 0; i < tiles.size(); i++) {
+                int[] t = dirty.get(i);
+                writeTile(head, t[0], t[1], t[2], t[3], tiles.get(i).length());
+                parts[i + 1] = tiles.get(i).content().retain();
+            }
+            return Unpooled.wrappedBuffer(parts);
+        } finally {
+            for (JpgFrame jpg : tiles) {
+                jpg.release();
+            }
+        }
+    }
+
+    /**
+     * SM_TILE: 消息头 + flags(1) + 宽(2) + 高(2) + 块数(2) + 块信息[x(2) y(2) w(2) h(2) 长度(4)] + 各块的JPG，小端
+     */
+    private static ByteBuf newMessageHead(int flags, int w, int h, int count, int dataLength) {
+        int headLength = 7 + count * 12;
+        ByteBuf head = BinaryProtocol.newHeader(PooledByteBufAllocator.DEFAULT, BinaryProtocol.Header.SM_TILE, headLength + dataLength, headLength);
+        head.writeByte(flags);
+        head.writeShortLE(w);
+        head.writeShortLE(h);
+        head.writeShortLE(count);
+        return head;
+    }
+
+    private static void writeTile(ByteBuf head, int x, int y, int w, int h, int length) {
+        head.writeShortLE(x);
+        head.writeShortLE(y);
+        head.writeShortLE(w);
+        head.writeShortLE(h);
+        head.writeIntLE(length);
+    }
+
+    private static BufferedImage toBgr(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return image;
+        }
+        BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        bgr.getGraphics().drawImage(image, 0, 0, null);
+        return bgr;
+    }
+}
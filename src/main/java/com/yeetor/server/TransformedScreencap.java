@@ -0,0 +1,153 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.minicap.*;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 由服务端旋转缩放得到的屏幕采集
+ *
+ * 作为一个观看者加入同一设备的基础采集，收到的图片在 FrameTransformer 的线程池里处理，
+ * 处理不过来时只保留最新一帧，不会排队。frame tap 也在变换之后回调，变换来不及时同样会丢帧，计入 getDroppedFrames
+ */
+class TransformedScreencap extends ScreencapBase implements MinicapListener {
+    private static Logger logger = Logger.getLogger(TransformedScreencap.class);
+
+    private final ScreencapService registry;
+    private final AdbDevice device;
+    private final float baseScale;
+    private final FrameMailbox<JpgFrame> mailbox = new FrameMailbox<JpgFrame>(FrameTransformer.getExecutor(), this::transform);
+
+    private volatile CaptureViewer base;
+    private float scale;
+    private int rotate;
+
+    TransformedScreencap(ScreencapService registry, AdbDevice device, float baseScale) {
+        this.registry = registry;
+        this.device = device;
+        this.baseScale = baseScale;
+    }
+
+    @Override
+    public AdbDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @param scale 相对设备分辨率的缩放
+     */
+    @Override
+    public void start(float scale, int rotate) {
+        this.scale = scale / baseScale;
+        this.rotate = rotate;
+        base = registry.acquire(device, CaptureSession.Source.MINICAP, baseScale, 0, this);
+    }
+
+    @Override
+    public void kill() {
+        onClose();
+        mailbox.close();
+        CaptureViewer b = base;
+        base = null;
+        if (b != null) {
+            b.close();
+        }
+    }
+
+    private void transform(JpgFrame frame) {
+        CaptureViewer b = base;
+        if (b == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        JpgFrame out;
+        try {
+            BufferedImage image = b.getSession().decode(frame);
+            out = FrameTransformer.encode(FrameTransformer.transform(image, scale, rotate), frame.getTimestamp(), frame.getFingerprint());
+        } catch (Exception e) {
+            logger.warn("transform frame failed: " + e.getMessage());
+            return;
+        }
+        Metrics.histogram("capture.transform.us").record((System.nanoTime() - start) / 1000);
+        try {
+            onFrameTap(out);
+            for (MinicapListener listener : listenerList) {
+                listener.onJPG(this, out);
+            }
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * 变换来不及而丢弃的帧数
+     */
+    public long getDroppedFrames() {
+        return mailbox.getDropped();
+    }
+
+    @Override
+    public void onStartup(ScreencapBase minicap, boolean success) {
+        onStartup(success);
+    }
+
+    @Override
+    public void onClose(ScreencapBase minicap) {
+        onClose();
+    }
+
+    @Override
+    public void onBanner(ScreencapBase minicap, Banner banner) {
+        boolean swap = rotate == 90 || rotate == 270;
+        Banner b = new Banner();
+        b.setVersion(banner.getVersion());
+        b.setLength(banner.getLength());
+        b.setPid(banner.getPid());
+        b.setReadWidth(banner.getReadWidth());
+        b.setReadHeight(banner.getReadHeight());
+        b.setVirtualWidth(Math.round((swap ? banner.getVirtualHeight() : banner.getVirtualWidth()) * scale));
+        b.setVirtualHeight(Math.round((swap ? banner.getVirtualWidth() : banner.getVirtualHeight()) * scale));
+        b.setOrientation(rotate);
+        b.setQuirks(banner.getQuirks());
+        onBanner(b);
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, JpgFrame frame) {
+        mailbox.offer(frame);
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, byte[] data) {
+        // 只使用 onJPG(ScreencapBase, JpgFrame)
+    }
+}
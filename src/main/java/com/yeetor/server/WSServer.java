@@ -33,7 +33,9 @@ import com.yeetor.adb.AdbServer;
 import com.yeetor.adb.AdbUtils;
 import com.yeetor.adb.IAdbServerListener;
 import com.yeetor.minicap.Banner;
-import com.yeetor.minicap.Minicap;
+import com.yeetor.minicap.H264Packet;
+import com.yeetor.minicap.JpgFrame;
+import com.yeetor.minicap.ScreencapBase;
 import com.yeetor.minicap.MinicapListener;
 import com.yeetor.touch.TouchEventService;
 import com.yeetor.touch.TouchServiceException;
@@ -41,18 +43,23 @@ import com.yeetor.touch.minitouch.Minitouch;
 import com.yeetor.touch.TouchEventServiceListener;
 import com.yeetor.protocol.BinaryProtocol;
 import com.yeetor.protocol.TextProtocol;
+import com.yeetor.record.RecordingReader;
+import com.yeetor.record.ReplayPlayer;
 import com.yeetor.server.handler.IWebsocketEvent;
 import com.yeetor.touch.scrcpy.ScrcpyTouchService;
 import com.yeetor.util.Constant;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -66,9 +73,25 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     AdbDevice bindedDevice = null;
 
     /**
-     * Minicap  
+     * 屏幕采集，同一设备的多个观看者共享一个minicap
      */
-    Minicap capService = null;
+    CaptureViewer capViewer = null;
+
+    /**
+     * 录像回放
+     */
+    volatile ReplayPlayer replayPlayer = null;
+
+    /**
+     * 多设备缩略图墙，wallFollowAll 时跟随设备连接和断开
+     */
+    volatile WallSession wallSession = null;
+    volatile boolean wallFollowAll = false;
+
+    /**
+     * 脏块增量模式，M_START 的 config 里 mode 为 tile 时开启
+     */
+    volatile TileStreamer tileStreamer = null;
 
     /**
      * Minitouch
@@ -83,6 +106,11 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     static final int DATA_TIMEOUT = 100; //ms
     private boolean isWaitting = false;
     private BlockingQueue<ImageData> dataQueue = new LinkedBlockingQueue<ImageData>();
+
+    /**
+     * H.264 只能从关键帧开始解码，发送缓冲区满丢包后也要等下一个关键帧
+     */
+    private volatile boolean waitKeyFrame = true;
     
     WSServer() {
         AdbServer.server().addListener(this);
@@ -98,9 +126,14 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         if (eventService != null) {
             eventService.kill();
         }
-        if (capService != null) {
-            capService.kill();
+        if (capViewer != null) {
+            capViewer.close();
+            capViewer = null;
         }
+        stopReplay();
+        stopWall();
+        stopTile();
+        clearImages();
     }
 
     @Override
@@ -125,6 +158,12 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
             case TextProtocol.Header.M_KEYEVENT:
                 onM_KEYEVENT(ctx, protocol);
                 break;
+            case TextProtocol.Header.M_REPLAY:
+                onM_REPLAY(ctx, protocol);
+                break;
+            case TextProtocol.Header.M_WALL:
+                onM_WALL(ctx, protocol);
+                break;
             default:
                 onInvalidProtocl(ctx, protocol);
                 break;
@@ -186,30 +225,136 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         }
     }
     
+    /**
+     * 回放录像，不需要先M_WAIT绑定设备
+     * {"action": "start", "sn": "...", "session": "...", "offset": 0, "speed": 1.0}
+     * {"action": "seek", "offset": 60000} / {"action": "speed", "speed": 4} / {"action": "stop"}
+     */
+    private void onM_REPLAY(ChannelHandlerContext ctx, TextProtocol protocol) {
+        this.channel = ctx.channel();
+        JSONObject obj = (JSONObject) JSON.parse(protocol.getProtocolBody());
+        String action = obj.getString("action");
+        ReplayPlayer player = replayPlayer;
+        if ("start".equals(action)) {
+            stopReplay();
+            double speed = obj.containsKey("speed") ? obj.getDoubleValue("speed") : 1.0;
+            try {
+                replayPlayer = ServicesPool.getInstance().getRecordService().replay(obj.getString("sn"), obj.getString("session"),
+                        obj.getLongValue("offset"), speed, new ReplaySink());
+                sendServiceState("replay", "open");
+            } catch (IOException e) {
+                logger.warn("replay failed: " + e.getMessage());
+                sendServiceState("replay", "close");
+            }
+        } else if (player == null) {
+            logger.warn("replay not started");
+        } else if ("seek".equals(action)) {
+            player.seek(obj.getLongValue("offset"));
+        } else if ("speed".equals(action)) {
+            player.setSpeed(obj.getDoubleValue("speed"));
+        } else if ("stop".equals(action)) {
+            stopReplay();
+        }
+    }
+
+    private void stopReplay() {
+        ReplayPlayer player = replayPlayer;
+        replayPlayer = null;
+        if (player != null) {
+            player.stop();
+        }
+    }
+
+    /**
+     * 多设备缩略图墙，不需要先M_WAIT绑定设备
+     * {"action": "start", "serials": ["..."], "scale": 0.1, "fps": 30}，serials 为空时显示所有设备，fps 为所有设备的总帧率
+     * {"action": "devices", "serials": [...]} / {"action": "stop"}
+     */
+    private void onM_WALL(ChannelHandlerContext ctx, TextProtocol protocol) {
+        this.channel = ctx.channel();
+        JSONObject obj = (JSONObject) JSON.parse(protocol.getProtocolBody());
+        String action = obj.getString("action");
+        List<String> serials = obj.containsKey("serials") ? obj.getJSONArray("serials").toJavaList(String.class) : null;
+        if ("start".equals(action)) {
+            stopWall();
+            float scale = obj.containsKey("scale") ? obj.getFloatValue("scale") : WallSession.DEFAULT_SCALE;
+            int fps = obj.containsKey("fps") ? obj.getIntValue("fps") : WallSession.DEFAULT_FPS;
+            WallSession wall = new WallSession(new WallSink(), scale, fps);
+            wallFollowAll = serials == null;
+            wallSession = wall;
+            sendServiceState("wall", "open");
+            wall.setDevices(serials);
+        } else if ("devices".equals(action)) {
+            WallSession wall = wallSession;
+            if (wall != null) {
+                wallFollowAll = serials == null;
+                wall.setDevices(serials);
+            }
+        } else if ("stop".equals(action)) {
+            stopWall();
+            sendServiceState("wall", "close");
+        }
+    }
+
+    private void stopWall() {
+        WallSession wall = wallSession;
+        wallSession = null;
+        if (wall != null) {
+            wall.close();
+        }
+    }
+
+    private void stopTile() {
+        TileStreamer t = tileStreamer;
+        tileStreamer = null;
+        if (t != null) {
+            t.close();
+        }
+    }
+
+    private void sendServiceState(String type, String stat) {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", type);
+        map.put("stat", stat);
+        sendProtocolResponse(TextProtocol.newProtocol(TextProtocol.Header.SM_SERVICE_STATE, JSON.toJSONString(map)));
+    }
+
     private void onInvalidProtocl(ChannelHandlerContext ctx, TextProtocol protocol) {
         logger.warn("invalid protocol: " + protocol.getProtocolHeader());
     }
     
     private void startCapService(JSONObject jsonObject) {
-        if (capService != null) {
-            capService.kill();
-        }
-        
-        Minicap cap = new Minicap(bindedDevice);
-        this.capService = cap;
-        cap.addEventListener(this);
-        
+
         // 默认配置
         Float scale = 0.3f; 
         Integer rotate = 0;
+        String source = null;
+        String mode = null;
 
         JSONObject obj = (JSONObject) jsonObject.get("config");
         if (obj != null) {
             scale = obj.getFloat("scale");
             rotate = obj.getInteger("rotate");
+            source = obj.getString("source");
+            mode = obj.getString("mode");
+        }
+
+        if ("tile".equals(mode)) {
+            if (tileStreamer == null) {
+                tileStreamer = new TileStreamer(new TileSink());
+            } else {
+                tileStreamer.requestKeyFrame();
+            }
+        } else {
+            stopTile();
+        }
+
+        // 新的采集出图后才关闭旧的，切换期间画面不中断
+        CaptureViewer viewer = ServicesPool.getInstance().getScreencapService().switchTo(capViewer, bindedDevice, CaptureSession.Source.parse(source), scale, rotate, this);
+        if (viewer != capViewer) {
+            waitKeyFrame = true;
+            capViewer = viewer;
         }
-        
-        cap.start(scale, rotate);
     }
     
     private void startEventService() {
@@ -242,7 +387,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     /*****************************************************************************/
 
     @Override
-    public void onStartup(Minicap minicap, boolean success) {
+    public void onStartup(ScreencapBase minicap, boolean success) {
         HashMap<String, String> map = new HashMap<>();
         map.put("type", "cap");
         map.put("stat", "open");
@@ -251,7 +396,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     }
 
     @Override
-    public void onClose(Minicap minicap) {
+    public void onClose(ScreencapBase minicap) {
         HashMap<String, String> map = new HashMap<>();
         map.put("type", "cap");
         map.put("stat", "close");
@@ -260,11 +405,29 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     }
 
     @Override
-    public void onBanner(Minicap minicap, Banner banner) {
+    public void onBanner(ScreencapBase minicap, Banner banner) {
     }
 
     @Override
-    public void onJPG(Minicap minicap, byte[] data) {
+    public void onJPG(ScreencapBase minicap, JpgFrame frame) {
+        TileStreamer t = tileStreamer;
+        if (t != null) {
+            t.offer(frame);
+        } else {
+            // 引用解析缓冲区里的数据，不拷贝
+            offerImage(frame.content().retainedDuplicate());
+        }
+    }
+
+    @Override
+    public void onJPG(ScreencapBase minicap, byte[] data) {
+        offerImage(Unpooled.wrappedBuffer(data));
+    }
+
+    /**
+     * @param data 调用者转移所有权，发送或丢弃后释放
+     */
+    private synchronized void offerImage(ByteBuf data) {
         if (isWaitting) {
             if (dataQueue.size() > 0) {
                 dataQueue.add(new ImageData(data));
@@ -281,7 +444,30 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         }
     }
 
-    public void setWaitting(boolean waitting) {
+    @Override
+    public void onH264(ScreencapBase minicap, H264Packet packet) {
+        Channel ch = channel;
+        if (ch == null) {
+            return;
+        }
+        // 客户端来不及接收时丢弃，直到下一个关键帧
+        if (!ch.isWritable()) {
+            waitKeyFrame = true;
+        }
+        if (!packet.isConfig() && (waitKeyFrame && !packet.isKeyFrame() || !ch.isWritable())) {
+            return;
+        }
+        if (packet.isKeyFrame()) {
+            waitKeyFrame = false;
+        }
+
+        ByteBuf head = BinaryProtocol.newHeader(ch.alloc(), BinaryProtocol.Header.SM_H264, 9 + packet.length(), 9);
+        head.writeByte((packet.isConfig() ? 1 : 0) | (packet.isKeyFrame() ? 2 : 0));
+        head.writeLongLE(packet.getPts());
+        ch.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(head, packet.content().retainedDuplicate())));
+    }
+
+    public synchronized void setWaitting(boolean waitting) {
         isWaitting = waitting;
         trySendImage();
     }
@@ -299,7 +485,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         long curTS = System.currentTimeMillis();
         while (d != null) {
             if (curTS - d.timesp < DATA_TIMEOUT) {
-                dataQueue.poll();
+                dataQueue.poll().data.release();
                 d = dataQueue.peek();
             } else {
                 break;
@@ -317,6 +503,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
             if (d == null || curTS - d.timesp < DATA_TIMEOUT || dataQueue.size() == 0) {
                 break;
             }
+            d.data.release();
         }
         return d;
     }
@@ -339,23 +526,21 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         return b;
     }
 
-    private void sendImage(byte[] data) {
-        
-        
-        byte[] head =  new byte[2];
-        head[0] = (BinaryProtocol.Header.SM_JPG) & 0xff;
-        head[1] = (BinaryProtocol.Header.SM_JPG >> 8) & 0xff;
-        
-        int len = data.length;
-        byte[] lenbuf = new byte[4];
-        lenbuf[0] = (byte)((len) & 0xff);
-        lenbuf[1] = (byte)((len >> 8) & 0xff);
-        lenbuf[2] = (byte)((len >> 16) & 0xff);
-        lenbuf[3] = (byte)((len >> 24) & 0xff);
-        
-        byte[] d = ArrayUtils.addAll(ArrayUtils.addAll(head, lenbuf), data);
-        
-        channel.writeAndFlush(new BinaryWebSocketFrame(Unpooled.copiedBuffer(d)));
+    private void sendImage(ByteBuf data) {
+        Channel ch = channel;
+        if (ch == null) {
+            data.release();
+            return;
+        }
+        ByteBuf head = BinaryProtocol.newHeader(ch.alloc(), BinaryProtocol.Header.SM_JPG, data.readableBytes(), 0);
+        ch.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(head, data)));
+    }
+
+    private synchronized void clearImages() {
+        ImageData d;
+        while ((d = dataQueue.poll()) != null) {
+            d.data.release();
+        }
     }
     
     /*********************************************************************************/
@@ -382,6 +567,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     
     @Override
     public void onAdbDeviceConnected(AdbDevice device) {
+        refreshWall();
         if (this.channel != null) {
             String devicesJson = AdbUtils.devices2JSON();
             TextProtocol p = TextProtocol.newProtocol(TextProtocol.Header.SM_DEVICES, devicesJson);
@@ -391,6 +577,7 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
     
     @Override
     public void onAdbDeviceDisConnected(AdbDevice device) {
+        refreshWall();
         if (this.channel != null) {
             String devicesJson = AdbUtils.devices2JSON();
             TextProtocol p = TextProtocol.newProtocol(TextProtocol.Header.SM_DEVICES, devicesJson);
@@ -398,14 +585,75 @@ public class WSServer implements IWebsocketEvent, MinicapListener, TouchEventSer
         }
     }
     
+    private void refreshWall() {
+        WallSession wall = wallSession;
+        if (wall != null && wallFollowAll) {
+            wall.setDevices(null);
+        }
+    }
+
     /****************************************************************************/
 
+    /**
+     * 缩略图墙的帧带上设备序列号，客户端按序列号更新对应的格子
+     */
+    private class WallSink implements WallSession.Sink {
+        @Override
+        public boolean send(String serialNumber, JpgFrame frame) {
+            Channel ch = channel;
+            if (ch == null || !ch.isWritable()) {
+                return false;
+            }
+            byte[] sn = serialNumber.getBytes(StandardCharsets.UTF_8);
+            ByteBuf head = BinaryProtocol.newHeader(ch.alloc(), BinaryProtocol.Header.SM_WALL_JPG, 1 + sn.length + frame.length(), 1 + sn.length);
+            head.writeByte(sn.length);
+            head.writeBytes(sn);
+            ch.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(head, frame.content().retainedDuplicate())));
+            return true;
+        }
+    }
+
+    private class TileSink implements TileStreamer.Sink {
+        @Override
+        public boolean send(ByteBuf message) {
+            Channel ch = channel;
+            if (ch == null || !ch.isWritable()) {
+                message.release();
+                return false;
+            }
+            ch.writeAndFlush(new BinaryWebSocketFrame(message));
+            return true;
+        }
+    }
+
+    /**
+     * 回放的帧按 SM_JPG 格式发送，数据直接引用mmap的文件内容
+     */
+    private class ReplaySink implements ReplayPlayer.Sink {
+        @Override
+        public boolean send(RecordingReader.Frame frame) {
+            Channel ch = channel;
+            if (ch == null || !ch.isWritable()) {
+                return false;
+            }
+            ByteBuf data = frame.getData();
+            ByteBuf head = BinaryProtocol.newHeader(ch.alloc(), BinaryProtocol.Header.SM_JPG, data.readableBytes(), 0);
+            ch.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(head, data)));
+            return true;
+        }
+
+        @Override
+        public void onEnd() {
+            sendServiceState("replay", "end");
+        }
+    }
+
     public static class ImageData {
-        ImageData(byte[] d) {
+        ImageData(ByteBuf d) {
             timesp = System.currentTimeMillis();
             data = d;
         }
         long timesp;
-        byte[] data;
+        ByteBuf data;
     }
 }
@@ -0,0 +1,289 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.server;
+
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.adb.AdbServer;
+import com.yeetor.minicap.*;
+import com.yeetor.util.Constant;
+import com.yeetor.util.Metrics;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 多设备缩略图墙
+ *
+ * 每台设备用很小的投影加入一路屏幕采集，只保留最新一帧；调度器按总帧率发放发送额度，
+ * 轮流从有新画面的设备里取帧，设备再多也不会超过总帧率，每台设备分到的帧数相同
+ */
+public class WallSession {
+    private static Logger logger = Logger.getLogger(WallSession.class);
+
+    public static final float DEFAULT_SCALE = Constant.getIntProperty("wall.scale.percent", 10) / 100f;
+    public static final int DEFAULT_FPS = Constant.getIntProperty("wall.fps", 30);
+    public static final int MAX_FPS = Constant.getIntProperty("wall.fps.max", 60);
+    private static final int TICK_MS = 20;
+
+    /**
+     * 发送缩略图，返回false表示连接发不动了，这一帧留到下一轮
+     */
+    public interface Sink {
+        boolean send(String serialNumber, JpgFrame frame);
+    }
+
+    private final Sink sink;
+    private final float scale;
+    private final int fps;
+
+    // 按加入顺序排列，调度器从上次的位置继续轮询
+    private final Map<String, Tile> tiles = new LinkedHashMap<>();
+    private int cursor = 0;
+    private double budget = 0;
+    private long lastTick = System.currentTimeMillis();
+    private volatile boolean closed = false;
+    private final ScheduledFuture<?> ticker;
+
+    public WallSession(Sink sink, float scale, int fps) {
+        this.sink = sink;
+        this.scale = Math.max(0.01f, Math.min(1.0f, scale));
+        this.fps = Math.max(1, Math.min(MAX_FPS, fps));
+        this.ticker = CaptureEngine.getInstance().getScheduler().scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    /**
+     * 设置墙上的设备，新增的加入采集，不在列表里的离开
+     * @param serialNumbers 为null时显示所有已连接的设备
+     */
+    public void setDevices(Collection<String> serialNumbers) {
+        Set<String> wanted = new LinkedHashSet<>();
+        if (serialNumbers == null) {
+            for (AdbDevice device : AdbServer.server().getDevices()) {
+                wanted.add(device.getSerialNumber());
+            }
+        } else {
+            wanted.addAll(serialNumbers);
+        }
+
+        List<Tile> removed = new ArrayList<>();
+        List<String> added = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Iterator<Map.Entry<String, Tile>> it = tiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Tile> e = it.next();
+                if (!wanted.contains(e.getKey()) || e.getValue().closed) {
+                    removed.add(e.getValue());
+                    it.remove();
+                }
+            }
+            for (String sn : wanted) {
+                if (!tiles.containsKey(sn)) {
+                    added.add(sn);
+                }
+            }
+        }
+        for (Tile tile : removed) {
+            tile.close();
+        }
+        // 启动采集比较慢，在shell线程池里并行加入，不阻塞调用线程
+        for (String sn : added) {
+            CaptureEngine.getInstance().getShellExecutor().execute(() -> join(sn));
+        }
+    }
+
+    private void join(String sn) {
+        AdbDevice device = AdbServer.server().getDevice(sn);
+        if (device == null) {
+            return;
+        }
+        Tile tile = new Tile(sn);
+        synchronized (this) {
+            if (closed || tiles.containsKey(sn)) {
+                return;
+            }
+            tiles.put(sn, tile);
+        }
+        try {
+            tile.viewer = ServicesPool.getInstance().getScreencapService().acquire(device, scale, 0, tile);
+        } catch (RuntimeException e) {
+            logger.warn("wall: start capture failed: " + sn, e);
+            tile.closed = true;
+        }
+        // 加入期间墙被关闭或设备被移除
+        if (tile.closed) {
+            tile.close();
+        }
+    }
+
+    public synchronized List<String> getDevices() {
+        return new ArrayList<>(tiles.keySet());
+    }
+
+    public void close() {
+        List<Tile> lst;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lst = new ArrayList<>(tiles.values());
+            tiles.clear();
+        }
+        ticker.cancel(false);
+        for (Tile tile : lst) {
+            tile.close();
+        }
+    }
+
+    /**
+     * 按总帧率累计发送额度，从上次的位置开始轮询有新画面的设备
+     */
+    private void tick() {
+        List<Tile> lst;
+        int start;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            // 最多攒一秒的额度，避免空闲后突发
+            budget = Math.min(fps, budget + (now - lastTick) * fps / 1000.0);
+            lastTick = now;
+            if (closed || tiles.isEmpty() || budget < 1) {
+                return;
+            }
+            lst = new ArrayList<>(tiles.values());
+            start = cursor % lst.size();
+        }
+
+        int sent = 0;
+        int next = start;
+        for (int i = 0; i < lst.size() && sent < (int) budget; i++) {
+            int index = (start + i) % lst.size();
+            Tile tile = lst.get(index);
+            JpgFrame frame = tile.latest.getAndSet(null);
+            if (frame == null) {
+                continue;
+            }
+            try {
+                if (!sink.send(tile.serialNumber, frame)) {
+                    // 连接发不动，放回去等下一轮
+                    if (!tile.latest.compareAndSet(null, frame.retain())) {
+                        frame.release();
+                    }
+                    break;
+                }
+            } finally {
+                frame.release();
+            }
+            sent++;
+            next = index + 1;
+        }
+        if (sent > 0) {
+            Metrics.counter("wall.frames").add(sent);
+        }
+        synchronized (this) {
+            budget -= sent;
+            cursor = next;
+        }
+    }
+
+    private class Tile implements MinicapListener {
+        final String serialNumber;
+        final AtomicReference<JpgFrame> latest = new AtomicReference<>();
+        volatile CaptureViewer viewer;
+        volatile boolean closed = false;
+
+        Tile(String serialNumber) {
+            this.serialNumber = serialNumber;
+        }
+
+        void close() {
+            closed = true;
+            CaptureViewer v = viewer;
+            viewer = null;
+            if (v != null) {
+                v.close();
+            }
+            JpgFrame f = latest.getAndSet(null);
+            if (f != null) {
+                f.release();
+            }
+        }
+
+        @Override
+        public void onStartup(ScreencapBase minicap, boolean success) {
+            if (!success) {
+                closed = true;
+            }
+        }
+
+        @Override
+        public void onClose(ScreencapBase minicap) {
+            closed = true;
+        }
+
+        @Override
+        public void onBanner(ScreencapBase minicap, Banner banner) {
+        }
+
+        @Override
+        public void onJPG(ScreencapBase minicap, JpgFrame frame) {
+            if (closed) {
+                return;
+            }
+            // 只保留最新一帧，没来得及发送的旧帧丢弃
+            JpgFrame old = latest.getAndSet(frame.retain());
+            if (old != null) {
+                old.release();
+                Metrics.counter("wall.dropped").inc();
+            }
+            if (closed) {
+                JpgFrame f = latest.getAndSet(null);
+                if (f != null) {
+                    f.release();
+                }
+            }
+        }
+
+        @Override
+        public void onJPG(ScreencapBase minicap, byte[] data) {
+            // 只使用 onJPG(ScreencapBase, JpgFrame)
+        }
+    }
+}
@@ -28,11 +28,14 @@ package com.yeetor.touch;
 
 import com.yeetor.adb.AdbDevice;
 import com.yeetor.adb.AdbUtils;
+import com.yeetor.adb.ShellSession;
+import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public abstract class AbstractTouchEventService implements TouchEventService{
+    private static Logger logger = Logger.getLogger(AbstractTouchEventService.class);
 
     protected final AdbDevice device;
 
@@ -64,6 +67,18 @@ public abstract class AbstractTouchEventService implements TouchEventService{
 
     protected abstract boolean isInstalled();
 
+    /**
+     * 异步执行输入命令（input keyevent、input text），不阻塞调用者（比如netty的线程）
+     * 命令写入设备的常驻shell，按调用顺序执行
+     */
+    protected void executeInput(String command) {
+        ShellSession.execute(device.getIDevice(), command).whenComplete((r, e) -> {
+            if (e != null) {
+                logger.warn(String.format("device(%s) input failed: %s, %s", device.getSerialNumber(), command, e.getMessage()));
+            }
+        });
+    }
+
     @Override
     public void addEventListener(TouchEventServiceListener listener) {
         if (listener != null) {
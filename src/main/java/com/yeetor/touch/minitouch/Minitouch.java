@@ -31,6 +31,7 @@ import com.yeetor.adb.AdbDevice;
 import com.yeetor.adb.AdbForward;
 import com.yeetor.adb.AdbServer;
 import com.yeetor.adb.AdbUtils;
+import com.yeetor.adb.AgentInstaller;
 import com.yeetor.touch.AbstractTouchEventService;
 import com.yeetor.touch.TouchEventServiceListener;
 import com.yeetor.touch.TouchServiceException;
@@ -43,7 +44,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by harry on 2017/4/19.
@@ -64,13 +67,27 @@ public class Minitouch extends AbstractTouchEventService {
         if (device == null || device.getIDevice() == null) {
             return false;
         }
-        String s = AdbServer.executeShellCommand(device.getIDevice(), String.format("%s/%s -i", REMOTE_PATH, MINITOUCH_BIN));
-        // TODO: 这里简单处理了一下
-        return s.startsWith("{");
+        try {
+            return AgentInstaller.getInstance().isCurrent(device, agentFiles(device));
+        } catch (TouchServiceException e) {
+            return false;
+        }
     }
 
     @Override
     public void install() throws TouchServiceException {
+        try {
+            AgentInstaller.getInstance().install(device, agentFiles(device));
+        } catch (IOException e) {
+            throw new TouchServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * 按设备的ABI选择需要安装的文件
+     * @return 本地文件 -> 设备路径
+     */
+    public static Map<File, String> agentFiles(AdbDevice device) throws TouchServiceException {
         String sdk = device.getProperty(Constant.PROP_SDK);
         String abi = device.getProperty(Constant.PROP_ABI);
 
@@ -78,20 +95,13 @@ public class Minitouch extends AbstractTouchEventService {
             throw new TouchServiceException("cant not get device info. please check device is connected");
         }
 
-        sdk = sdk.trim();
         abi = abi.trim();
 
         File minitouch_bin = Constant.getMinitouchBin(abi);
         if (minitouch_bin == null || !minitouch_bin.exists()) {
             throw new TouchServiceException("File: " + minitouch_bin.getAbsolutePath() + " not exists!");
         }
-        try {
-            AdbServer.server().executePushFile(device.getIDevice(), minitouch_bin.getAbsolutePath(), REMOTE_PATH + "/" + MINITOUCH_BIN);
-        } catch (Exception e) {
-            throw new TouchServiceException(e.getMessage());
-        }
-
-        AdbServer.executeShellCommand(device.getIDevice(), "chmod 777 " + REMOTE_PATH + "/" + MINITOUCH_BIN);
+        return Collections.singletonMap(minitouch_bin, REMOTE_PATH + "/" + MINITOUCH_BIN);
     }
 
     public Minitouch(AdbDevice device) {
@@ -148,12 +158,12 @@ public class Minitouch extends AbstractTouchEventService {
 
     @Override
     public void sendKeyEvent(int k) {
-        AdbServer.executeShellCommand(device.getIDevice(), "input keyevent " + k);
+        executeInput("input keyevent " + k);
     }
 
     @Override
     public void inputText(String str) {
-        AdbServer.executeShellCommand(device.getIDevice(), "input text " + str);
+        executeInput("input text " + AdbUtils.shellQuote(str));
     }
 
     private Thread startMinitouchThread(final String command) {
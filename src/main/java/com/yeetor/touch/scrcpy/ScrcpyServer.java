@@ -0,0 +1,523 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.touch.scrcpy;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.yeetor.adb.AdbDevice;
+import com.yeetor.adb.AdbForward;
+import com.yeetor.adb.AdbServer;
+import com.yeetor.adb.AdbUtils;
+import com.yeetor.adb.AgentInstaller;
+import com.yeetor.minicap.CaptureEngine;
+import com.yeetor.minicap.H264Packet;
+import com.yeetor.touch.TouchServiceException;
+import com.yeetor.util.Constant;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备上运行的scrcpy-server，同一台设备的触控(control socket)和屏幕采集(video socket)共用一个
+ *
+ * 通过 acquire/release 引用计数，最后一个使用者释放后关闭
+ */
+public class ScrcpyServer {
+
+    private static final Logger LOGGER = Logger.getLogger(ScrcpyServer.class);
+
+    static final String REMOTE_DIR = "/data/local/tmp";
+    static final String EXECUTE_BIN = "scrcpy-server.jar";
+    static final String VERSION = "1.22";
+    private static final String SOCKET_NAME = "scrcpy";
+    private static final int DEBUGGER_PORT = 5005;
+    private static final int CONNECT_TRY_TIME = 100;
+    private static final int CONNECT_RETRY_INTERVAL = 50; // ms
+    // scrcpy server默认的关键帧间隔(秒)，启动参数里没有修改
+    public static final int I_FRAME_INTERVAL = 10;
+
+    /**
+     * debug时手动adb启动scrcpy-server，只需要直接连接端口
+     */
+    private static final boolean isDebug = false;
+
+    private static final Map<String, ScrcpyServer> servers = new HashMap<>();
+
+    /**
+     * 回调在锁内执行，不能阻塞
+     */
+    public interface Listener {
+        default void onStartup(ScrcpyServer server, boolean success) {}
+        default void onClose(ScrcpyServer server) {}
+        default void onDeviceMeta(ScrcpyServer server, String deviceName, int width, int height) {}
+        // packet在回调返回后会被释放
+        default void onVideoPacket(ScrcpyServer server, H264Packet packet) {}
+    }
+
+    private enum State {
+        NEW, STARTING, RUNNING, CLOSED
+    }
+
+    private final AdbDevice device;
+    private final CaptureEngine engine = CaptureEngine.getInstance();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int refCount = 0;
+
+    private final Object lock = new Object();
+    private volatile State state = State.NEW;
+    private ServerProcess process;
+    private AdbForward forward;
+    private CaptureEngine.Stream video;
+    private SocketChannel control;
+    private String deviceName;
+    private int videoWidth;
+    private int videoHeight;
+    // 最近的config包(SPS/PPS)，中途加入的listener需要先拿到它才能解码
+    private H264Packet configPacket;
+
+    private ScrcpyServer(AdbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * 获取设备的scrcpy-server，不存在时新建（还未启动）
+     */
+    public static ScrcpyServer acquire(AdbDevice device) {
+        synchronized (servers) {
+            ScrcpyServer server = servers.get(device.getSerialNumber());
+            if (server == null || server.isClosed()) {
+                server = new ScrcpyServer(device);
+                servers.put(device.getSerialNumber(), server);
+            }
+            server.refCount++;
+            return server;
+        }
+    }
+
+    /**
+     * 最后一个使用者释放后关闭
+     */
+    public void release() {
+        synchronized (servers) {
+            if (--refCount > 0) {
+                return;
+            }
+            servers.remove(device.getSerialNumber(), this);
+        }
+        close();
+    }
+
+    public static boolean isInstalled(AdbDevice device) {
+        // 比较设备上的scrcpy-server.jar和本地的内容
+        try {
+            return AgentInstaller.getInstance().isCurrent(device, agentFiles());
+        } catch (TouchServiceException e) {
+            return false;
+        }
+    }
+
+    public static void install(AdbDevice device) throws TouchServiceException {
+        if (isDebug) {
+            return;
+        }
+        // adb push scrcpy-server.jar to /data/local/tmp，内容一致时不重复上传
+        try {
+            if (AgentInstaller.getInstance().install(device, agentFiles()) > 0) {
+                LOGGER.info("push to phone:" + REMOTE_DIR + "/" + EXECUTE_BIN);
+            }
+        } catch (IOException e) {
+            throw new TouchServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return 本地文件 -> 设备路径
+     */
+    public static Map<File, String> agentFiles() throws TouchServiceException {
+        File scrcpyServer = Constant.getScrcpyServerJar();
+        if (!scrcpyServer.exists()) {
+            throw new TouchServiceException("scrcpy server jar is not exists:" + scrcpyServer.getAbsolutePath());
+        }
+        return Collections.singletonMap(scrcpyServer, REMOTE_DIR + "/" + EXECUTE_BIN);
+    }
+
+    public AdbDevice getDevice() {
+        return device;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public int getVideoWidth() {
+        return videoWidth;
+    }
+
+    public int getVideoHeight() {
+        return videoHeight;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * 添加listener，server已经启动时补发启动、设备信息和config包
+     */
+    public void addListener(Listener listener) {
+        synchronized (lock) {
+            listeners.add(listener);
+            if (state == State.RUNNING) {
+                listener.onStartup(this, true);
+                if (deviceName != null) {
+                    listener.onDeviceMeta(this, deviceName, videoWidth, videoHeight);
+                }
+                if (configPacket != null) {
+                    H264Packet packet = configPacket.retainedDuplicate();
+                    try {
+                        listener.onVideoPacket(this, packet);
+                    } finally {
+                        packet.release();
+                    }
+                }
+            } else if (state == State.CLOSED) {
+                listener.onClose(this);
+            }
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 启动scrcpy-server并建立连接，已经启动过则直接返回，结果通过 Listener.onStartup 通知
+     */
+    public void start() {
+        synchronized (lock) {
+            if (state != State.NEW) {
+                return;
+            }
+            state = State.STARTING;
+        }
+        engine.getShellExecutor().execute(this::doStart);
+    }
+
+    /**
+     * 通过control socket发送控制消息
+     */
+    public void sendControl(byte[] msg) throws IOException {
+        SocketChannel channel;
+        synchronized (lock) {
+            channel = control;
+        }
+        if (channel == null) {
+            throw new IOException("scrcpy control socket is not connected");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(msg);
+        synchronized (channel) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private void doStart() {
+        try {
+            if (!isDebug && !isInstalled(device)) {
+                install(device);
+            }
+            ServerProcess p = new ServerProcess(getCommand());
+            synchronized (lock) {
+                if (state == State.CLOSED) {
+                    return;
+                }
+                process = p;
+            }
+            if (!isDebug) {
+                LOGGER.info("启动scrcpy server！");
+                engine.getShellExecutor().execute(p);
+            }
+
+            // adb forward tcp:port scrcpy
+            AdbForward f = AdbUtils.createForward(device, SOCKET_NAME);
+            if (f == null) {
+                throw new IOException("create scrcpy forward failed!");
+            }
+            synchronized (lock) {
+                forward = f;
+            }
+            connect(f.getPort());
+        } catch (Exception e) {
+            LOGGER.error("start scrcpy server failed: " + device.getSerialNumber(), e);
+            fail();
+        }
+    }
+
+    private String getCommand() {
+        // adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar app_process / com.genymobile.scrcpy.Server 1.22 log_level=verbose bit_rate=8000000 tunnel_forward=true
+        String command = String.format("CLASSPATH=%s app_process", REMOTE_DIR + "/" + EXECUTE_BIN);
+        if (isDebug) {
+            // https://github.com/Genymobile/scrcpy/blob/master/DEVELOP.md#debug-the-server
+            int sdk = Integer.parseInt(this.device.getProperty(Constant.PROP_SDK));
+            if (sdk >= 28) {
+                /* Android 9 and above */
+                command += "-XjdwpProvider:internal -XjdwpOptions:transport=dt_socket,suspend=y,server=y,address=";
+            } else {
+                /* Android 8 and below */
+                command += " -agentlib:jdwp=transport=dt_socket,suspend=y,server=y,address=";
+            }
+            command += DEBUGGER_PORT;
+        }
+        // redmi note 9 android.media.MediaCodec$CodecException: Error 0xfffffff4
+        // https://github.com/Genymobile/scrcpy/issues/833
+        // pass an invalid encoder name to list all encoders
+        command += String.format(" / com.genymobile.scrcpy.Server %s log_level=verbose bit_rate=%d max_size=%d tunnel_forward=true send_dummy_byte=true",
+                VERSION, getBitRate(), Constant.getIntProperty("scrcpy.max-size", 0));
+        LOGGER.info("scrcpy start command:" + command);
+        return command;
+    }
+
+    public static int getBitRate() {
+        return Constant.getIntProperty("scrcpy.bit-rate", 8000000);
+    }
+
+    /**
+     * 第一个连接为video socket，server会先发送一个字节表示连接成功；第二个连接为control socket
+     *
+     * server还没启动完成时，adb会接受连接然后立即关闭，这种情况下稍后重连
+     */
+    private void connect(int port) throws IOException, InterruptedException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for (int tryTime = CONNECT_TRY_TIME; tryTime > 0; tryTime--) {
+            if (isClosed()) {
+                return;
+            }
+            SocketChannel videoChannel = SocketChannel.open(address);
+            // 只读取一个字节，后面的设备信息留给解析器
+            ByteBuffer dummy = ByteBuffer.allocate(1);
+            int readNum;
+            try {
+                readNum = videoChannel.read(dummy);
+            } catch (IOException e) {
+                readNum = -1;
+            }
+            if (readNum <= 0) {
+                videoChannel.close();
+                Thread.sleep(CONNECT_RETRY_INTERVAL);
+                continue;
+            }
+            LOGGER.info("scrcpy video socket 建立成功!");
+
+            SocketChannel controlChannel;
+            try {
+                controlChannel = SocketChannel.open(address);
+            } catch (IOException e) {
+                videoChannel.close();
+                throw e;
+            }
+            LOGGER.info("scrcpy control socket 建立成功!!");
+
+            synchronized (lock) {
+                if (state == State.CLOSED) {
+                    videoChannel.close();
+                    controlChannel.close();
+                    return;
+                }
+                control = controlChannel;
+                video = engine.register(videoChannel, new VideoReader());
+                state = State.RUNNING;
+                for (Listener listener : listeners) {
+                    listener.onStartup(this, true);
+                }
+            }
+            return;
+        }
+        throw new IOException("connect to scrcpy server socket timeout");
+    }
+
+    private void fail() {
+        synchronized (lock) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            for (Listener listener : listeners) {
+                listener.onStartup(this, false);
+            }
+        }
+        close();
+    }
+
+    /**
+     * 关闭连接并结束设备上的scrcpy-server
+     */
+    private void close() {
+        AdbForward f;
+        synchronized (lock) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            boolean wasRunning = state == State.RUNNING;
+            state = State.CLOSED;
+            if (video != null) {
+                video.close();
+                video = null;
+            }
+            if (control != null) {
+                try {
+                    control.close();
+                } catch (IOException e) {
+                }
+                control = null;
+            }
+            if (process != null) {
+                process.cancel();
+                process = null;
+            }
+            if (configPacket != null) {
+                configPacket.release();
+                configPacket = null;
+            }
+            f = forward;
+            forward = null;
+            if (wasRunning) {
+                for (Listener listener : listeners) {
+                    listener.onClose(this);
+                }
+            }
+        }
+        LOGGER.info("shutdown the scrcpy server:" + device.getSerialNumber());
+        AdbUtils.removeForward(device, f);
+    }
+
+    /**
+     * 读取video socket，由 CaptureEngine 的selector线程回调
+     */
+    private class VideoReader implements CaptureEngine.StreamHandler, ScrcpyVideoDecoder.Handler {
+        private final ScrcpyVideoDecoder decoder = new ScrcpyVideoDecoder(this);
+
+        @Override
+        public int onReadable(SocketChannel channel) throws IOException {
+            return decoder.readFrom(channel);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            decoder.release();
+            if (!isClosed()) {
+                LOGGER.warn("scrcpy video socket lost connection: " + (cause == null ? "closed" : cause.getMessage()));
+                close();
+            }
+        }
+
+        @Override
+        public void onDeviceMeta(String name, int width, int height) {
+            synchronized (lock) {
+                deviceName = name;
+                videoWidth = width;
+                videoHeight = height;
+                for (Listener listener : listeners) {
+                    listener.onDeviceMeta(ScrcpyServer.this, name, width, height);
+                }
+            }
+        }
+
+        @Override
+        public void onPacket(H264Packet packet) {
+            synchronized (lock) {
+                if (state != State.RUNNING) {
+                    return;
+                }
+                if (packet.isConfig()) {
+                    if (configPacket != null) {
+                        configPacket.release();
+                    }
+                    configPacket = packet.retain();
+                }
+                for (Listener listener : listeners) {
+                    listener.onVideoPacket(ScrcpyServer.this, packet);
+                }
+            }
+        }
+    }
+
+    /**
+     * 设备上的scrcpy-server进程，adb shell命令会一直阻塞到进程退出
+     */
+    private class ServerProcess implements Runnable, IShellOutputReceiver {
+        private final String command;
+        private volatile boolean cancelled = false;
+
+        ServerProcess(String command) {
+            this.command = command;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // wait forever
+                device.getIDevice().executeShellCommand(command, this, 0, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                if (!cancelled) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            LOGGER.debug("scrcpy start cmd output:" + new String(data, offset, length));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
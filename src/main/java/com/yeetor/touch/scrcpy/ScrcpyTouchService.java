@@ -26,27 +26,19 @@
 
 package com.yeetor.touch.scrcpy;
 
-import com.android.ddmlib.IShellOutputReceiver;
 import com.google.common.collect.Lists;
 import com.yeetor.adb.AdbDevice;
-import com.yeetor.adb.AdbForward;
-import com.yeetor.adb.AdbServer;
 import com.yeetor.adb.AdbUtils;
 import com.yeetor.touch.AbstractTouchEventService;
 import com.yeetor.touch.TouchServiceException;
 import com.yeetor.touch.scrcpy.message.ScControlMsg;
 import com.yeetor.touch.scrcpy.message.ScrollEventMsg;
 import com.yeetor.touch.scrcpy.message.TouchEventMsg;
-import com.yeetor.util.Constant;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import static com.yeetor.adb.AdbDevice.SCREEN_HEIGHT;
 import static com.yeetor.adb.AdbDevice.SCREEN_WIDTH;
@@ -55,21 +47,8 @@ public class ScrcpyTouchService extends AbstractTouchEventService {
 
     private static final Logger LOGGER = Logger.getLogger(ScrcpyTouchService.class);
 
-    private static final String REMOTE_DIR = "/data/local/tmp";
-    private static final String EXECUTE_BIN = "scrcpy-server.jar";
-    private static final int DEBUGGER_PORT = 5005;
-
-    /**
-     * debug时手动adb启动scrcpy-server，只需要直接连接端口
-     */
-    private static final boolean isDebug = false;
-
-    private Thread scrcpyServerCmdThread;
-    private Thread scrcpySocketThread;
-    private AdbForward forward;
-    private Socket videoSocket;
-    private Socket controlSocket;
-    private OutputStream controlSocketOutputStream;
+    private volatile ScrcpyServer server;
+    private final ServerListener serverListener = new ServerListener();
 
     private final int screenWidth;
     private final int screenHeight;
@@ -86,38 +65,23 @@ public class ScrcpyTouchService extends AbstractTouchEventService {
         LOGGER.info("============> create scrcpy touch service:" + adbDevice.getSerialNumber());
         this.screenWidth = Integer.parseInt(adbDevice.getProperty(SCREEN_WIDTH));
         this.screenHeight = Integer.parseInt(adbDevice.getProperty(SCREEN_HEIGHT));
-        this.forceInstall = true;
     }
 
     @Override
     protected boolean isInstalled() {
-        // 判断指定路径下是否存在scrcpy-server.jar
-        String result = AdbServer.executeShellCommand(this.device.getIDevice(),
-                String.format("ls %s/%s", REMOTE_DIR, EXECUTE_BIN));
-        LOGGER.info("check scrcpy server is install:" + result);
-        return !StringUtils.contains(result, "No such file or directory");
+        return ScrcpyServer.isInstalled(device);
     }
 
     @Override
     public void install() throws TouchServiceException {
-        if (isDebug) {
-            return;
-        }
-        // adb push scrcpy-server.jar to /data/local/tmp
-        File scrcpyServer = Constant.getScrcpyServerJar();
-        if (!scrcpyServer.exists()) {
-            throw new TouchServiceException("scrcpy server jar is not exists:" + scrcpyServer.getAbsolutePath());
-        }
-        String remotePath = REMOTE_DIR + "/" + EXECUTE_BIN;
-        AdbServer.server().executePushFile(device.getIDevice(), scrcpyServer.getAbsolutePath(), remotePath);
-        LOGGER.info("push to phone:" + remotePath);
-        AdbServer.executeShellCommand(device.getIDevice(), "chmod 777 " + remotePath);
+        ScrcpyServer.install(device);
     }
 
     @Override
     public void sendTouchEvent(String msg) {
         // todo 这里msg是minitouch的协议，可以封装一个自己的协议
-        if (controlSocketOutputStream == null) {
+        ScrcpyServer server = this.server;
+        if (server == null || !server.isRunning()) {
             return;
         }
 
@@ -187,11 +151,7 @@ public class ScrcpyTouchService extends AbstractTouchEventService {
 
             if (eventMsg != null) {
                 try {
-                    if (!controlSocket.isClosed()) {
-                        controlSocketOutputStream.write(eventMsg.serialize());
-                    } else {
-                        LOGGER.error("control socket is closed!!!!");
-                    }
+                    server.sendControl(eventMsg.serialize());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -203,12 +163,12 @@ public class ScrcpyTouchService extends AbstractTouchEventService {
     public void sendKeyEvent(int key) {
         // ref: scrcpy app/tests/test_control_msg_serialize.c:test_serialize_inject_keycode
         // can use scrcpy or use adb shell input keyevent
-        AdbServer.executeShellCommand(device.getIDevice(), "input keyevent " + key);
+        executeInput("input keyevent " + key);
     }
 
     @Override
     public void inputText(String text) {
-        AdbServer.executeShellCommand(device.getIDevice(), "input text " + text);
+        executeInput("input text " + AdbUtils.shellQuote(text));
     }
 
     @Override
@@ -216,174 +176,33 @@ public class ScrcpyTouchService extends AbstractTouchEventService {
         if (!isInstalled()) {
             throw new TouchServiceException("scrcpy server jar is not installed on the device");
         }
-        // adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar app_process ./ com.genymobile.scrcpy.Server 1.22 log_level=verbose bit_rate=8000000 tunnel_forward=true
-        // todo version
-        String command = String.format("CLASSPATH=%s app_process", REMOTE_DIR + "/" + EXECUTE_BIN);
-        if (isDebug) {
-            // https://github.com/Genymobile/scrcpy/blob/master/DEVELOP.md#debug-the-server
-            int sdk = Integer.parseInt(this.device.getProperty(Constant.PROP_SDK));
-            if (sdk >= 28) {
-                /* Android 9 and above */
-                command += "-XjdwpProvider:internal -XjdwpOptions:transport=dt_socket,suspend=y,server=y,address=";
-            } else {
-                /* Android 8 and below */
-                command += " -agentlib:jdwp=transport=dt_socket,suspend=y,server=y,address=";
-            }
-            command += DEBUGGER_PORT;
-        }
-        // redmi note 9 android.media.MediaCodec$CodecException: Error 0xfffffff4
-        // https://github.com/Genymobile/scrcpy/issues/833
-        // pass an invalid encoder name to list all encoders
-        command += " / com.genymobile.scrcpy.Server 1.22 log_level=verbose bit_rate=8000000 tunnel_forward=true send_dummy_byte=true";
-        LOGGER.info("scrcpy start command:" + command);
-        scrcpyServerCmdThread = startScrcpy(command);
-
-        // adb forward tcp:port scrcpy
-        // todo 定制scrcpy监听的端口名称
-        String scrcpySocketName = "scrcpy";
-        forward = AdbUtils.createForward(this.device, scrcpySocketName);
-        if (forward == null) {
-            throw new TouchServiceException("create scrcpy forward failed!");
-        }
-
-        // connect to scrcpy socket to send control message
-        scrcpySocketThread = startScrcpyControl("127.0.0.1", forward.getPort());
-    }
-
-    private Thread startScrcpyControl(String host, int port) {
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-
-                int tryTime = 200;
-                while (true) {
-                    // todo 修改scrcpy 去除多余的socket连接
-                    Socket tmpVideoSocket = null;
-                    Socket tmpControlsocket = null;
-                    try {
-                        byte[] bytes = new byte[256];
-                        // 第一个socket为video socket
-                        tmpVideoSocket = new Socket(host, port);
-                        // read one byte to test the connection
-                        int readNum = tmpVideoSocket.getInputStream().read(bytes);
-                        if (readNum == -1) {
-                            Thread.sleep(10);
-                            tmpVideoSocket.close();
-                            LOGGER.info("scrcpy video socket 建立失败!");
-                            continue;
-                        } else {
-                            videoSocket = tmpVideoSocket;
-                            LOGGER.info("scrcpy video socket 建立成功!");
-                        }
-
-                        // 第二个才为control socket
-                        tmpControlsocket = new Socket(host, port);
-                        readNum = tmpControlsocket.getInputStream().read(bytes);
-                        if (readNum == -1) {
-                            Thread.sleep(10);
-                            tmpControlsocket.close();
-                            LOGGER.info("scrcpy control socket 建立失败!");
-                            continue;
-                        } else {
-                            controlSocket = tmpControlsocket;
-                            controlSocketOutputStream = tmpControlsocket.getOutputStream();
-                            LOGGER.info("scrcpy control socket 建立成功!!");
-                            onStartup(true);
-                            break;
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        if (tmpVideoSocket != null) {
-                            try {
-                                tmpVideoSocket.close();
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-
-                        if (tmpControlsocket != null) {
-                            try {
-                                tmpControlsocket.close();
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                    }
-
-                    tryTime--;
-                    LOGGER.info("retry to connect to scrcpy server socket:" + tryTime);
-                    if (tryTime == 0) {
-                        onStartup(false);
-                        break;
-                    }
-                }
-            }
-        });
-
-        thread.start();
-        return thread;
-    }
-
-    private Thread startScrcpy(String command) {
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // wait forever
-                    ScrcpyTouchService.this.device.getIDevice()
-                            .executeShellCommand(command, new IShellOutputReceiver() {
-                                @Override
-                                public void addOutput(byte[] data, int offset, int length) {
-                                    System.out.println("scrcpy start cmd output:" + new String(data, offset, length));
-                                }
-
-                                @Override
-                                public void flush() {
-
-                                }
-
-                                @Override
-                                public boolean isCancelled() {
-                                    return false;
-                                }
-                            }, 0, TimeUnit.SECONDS);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-        if (!isDebug) {
-            LOGGER.info("启动scrcpy server！");
-            thread.start();
-        }
-        return thread;
+        // scrcpy-server 和屏幕采集共用，video socket 由 ScrcpyScreencap 读取
+        server = ScrcpyServer.acquire(device);
+        server.addListener(serverListener);
+        server.start();
     }
 
     @Override
     public void kill() {
         LOGGER.info("shutdown the scrcpy touch service:" + this.device.getSerialNumber());
-        AdbUtils.removeForward(device, forward);
-        onClose();
-        if (scrcpyServerCmdThread != null) {
-            scrcpyServerCmdThread.stop();
+        ScrcpyServer s = server;
+        server = null;
+        if (s != null) {
+            s.removeListener(serverListener);
+            s.release();
         }
+        onClose();
+    }
 
-        if (scrcpySocketThread != null) {
-            scrcpySocketThread.stop();
+    private class ServerListener implements ScrcpyServer.Listener {
+        @Override
+        public void onStartup(ScrcpyServer server, boolean success) {
+            ScrcpyTouchService.this.onStartup(success);
         }
 
-        if (controlSocket != null && controlSocket.isConnected()) {
-            try {
-                controlSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            controlSocket = null;
+        @Override
+        public void onClose(ScrcpyServer server) {
+            ScrcpyTouchService.this.onClose();
         }
     }
 }
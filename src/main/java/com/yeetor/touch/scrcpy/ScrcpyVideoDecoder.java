@@ -0,0 +1,207 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2017 朱辉 https://blog.yeetor.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.yeetor.touch.scrcpy;
+
+import com.yeetor.minicap.H264Packet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * scrcpy video socket 数据流解析器
+ *
+ * 数据流格式（scrcpy 1.22，send_device_meta=true send_frame_meta=true）：
+ *   device meta: 64字节设备名(UTF-8, 以0结尾) + 2字节宽 + 2字节高
+ *   每个数据包: 8字节PTS + 4字节长度 (大端) + H.264 Annex B 数据
+ * config包(SPS/PPS)的PTS为-1；新版本scrcpy用PTS最高两位标记config和关键帧，这里一并兼容
+ *
+ * 和 MinicapFrameDecoder 一样在复用的缓冲区上原地切片，非线程安全
+ */
+public class ScrcpyVideoDecoder {
+
+    public interface Handler {
+        void onDeviceMeta(String deviceName, int width, int height);
+        // packet在回调返回后会被释放
+        void onPacket(H264Packet packet);
+    }
+
+    static final int DEVICE_NAME_FIELD_LENGTH = 64;
+    static final int DEVICE_META_SIZE = DEVICE_NAME_FIELD_LENGTH + 4;
+    static final int PACKET_HEADER_SIZE = 12;
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+    static final int MIN_READ_SIZE = 16 * 1024;
+    static final int MAX_PACKET_SIZE = 32 * 1024 * 1024;
+
+    static final long NO_PTS = -1;
+    static final long PACKET_FLAG_CONFIG = 1L << 63;
+    static final long PACKET_FLAG_KEY_FRAME = 1L << 62;
+    static final long PACKET_PTS_MASK = PACKET_FLAG_KEY_FRAME - 1;
+
+    static final int NAL_TYPE_IDR = 5;
+
+    private final Handler handler;
+    private final ByteBufAllocator allocator;
+
+    private ByteBuf ring;
+    private boolean metaRead = false;
+    private long pts;
+    private int packetLength = -1;
+
+    public ScrcpyVideoDecoder(Handler handler) {
+        this(handler, PooledByteBufAllocator.DEFAULT, DEFAULT_CAPACITY);
+    }
+
+    public ScrcpyVideoDecoder(Handler handler, ByteBufAllocator allocator, int capacity) {
+        this.handler = handler;
+        this.allocator = allocator;
+        this.ring = allocator.heapBuffer(capacity, capacity);
+    }
+
+    /**
+     * 从channel读取一次数据并解析
+     * @return 读取的字节数，-1表示连接已关闭
+     */
+    public int readFrom(ScatteringByteChannel channel) throws IOException {
+        prepareWrite();
+        int n = ring.writeBytes(channel, ring.writableBytes());
+        if (n > 0) {
+            decode();
+        }
+        return n;
+    }
+
+    public void release() {
+        if (ring != null) {
+            ring.release();
+            ring = null;
+        }
+    }
+
+    /**
+     * 保证缓冲区尾部有足够的空间，当前包的长度已知时，保证整包可以连续存放
+     */
+    private void prepareWrite() {
+        int need = MIN_READ_SIZE;
+        if (packetLength > 0) {
+            need = Math.max(need, packetLength - ring.readableBytes());
+        }
+        if (ring.writableBytes() >= need) {
+            return;
+        }
+
+        int readable = ring.readableBytes();
+        int required = readable + need;
+        if (ring.refCnt() == 1 && ring.capacity() >= required) {
+            ring.discardReadBytes();
+            return;
+        }
+
+        int capacity = ring.capacity();
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        ByteBuf next = allocator.heapBuffer(capacity, capacity);
+        next.writeBytes(ring, ring.readerIndex(), readable);
+        ring.release();
+        ring = next;
+    }
+
+    private void decode() throws IOException {
+        if (!metaRead) {
+            if (ring.readableBytes() < DEVICE_META_SIZE) {
+                return;
+            }
+            int start = ring.readerIndex();
+            int nameLength = 0;
+            while (nameLength < DEVICE_NAME_FIELD_LENGTH && ring.getByte(start + nameLength) != 0) {
+                nameLength++;
+            }
+            String deviceName = ring.toString(start, nameLength, StandardCharsets.UTF_8);
+            int width = ring.getUnsignedShort(start + DEVICE_NAME_FIELD_LENGTH);
+            int height = ring.getUnsignedShort(start + DEVICE_NAME_FIELD_LENGTH + 2);
+            ring.skipBytes(DEVICE_META_SIZE);
+            metaRead = true;
+            handler.onDeviceMeta(deviceName, width, height);
+        }
+
+        while (true) {
+            if (packetLength < 0) {
+                if (ring.readableBytes() < PACKET_HEADER_SIZE) {
+                    return;
+                }
+                pts = ring.readLong();
+                packetLength = ring.readInt();
+                if (packetLength <= 0 || packetLength > MAX_PACKET_SIZE) {
+                    throw new IOException("invalid scrcpy packet length: " + packetLength);
+                }
+            }
+
+            if (ring.readableBytes() < packetLength) {
+                return;
+            }
+
+            ByteBuf body = ring.readRetainedSlice(packetLength);
+            packetLength = -1;
+
+            boolean config = pts == NO_PTS || (pts & PACKET_FLAG_CONFIG) != 0;
+            boolean keyFrame = !config && ((pts & PACKET_FLAG_KEY_FRAME) != 0 || containsIdr(body));
+            H264Packet packet = new H264Packet(body, config ? NO_PTS : pts & PACKET_PTS_MASK, config, keyFrame, System.currentTimeMillis());
+            try {
+                handler.onPacket(packet);
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * 遍历Annex B起始码，遇到第一个slice时判断是否为IDR，不扫描整个slice的数据
+     */
+    static boolean containsIdr(ByteBuf data) {
+        int end = data.writerIndex();
+        int i = data.readerIndex();
+        while (i + 3 < end) {
+            if (data.getByte(i) == 0 && data.getByte(i + 1) == 0 && data.getByte(i + 2) == 1) {
+                int type = data.getByte(i + 3) & 0x1F;
+                if (type == NAL_TYPE_IDR) {
+                    return true;
+                }
+                if (type >= 1 && type <= 4) {
+                    return false;
+                }
+                i += 3;
+            } else {
+                i++;
+            }
+        }
+        return false;
+    }
+}
@@ -27,10 +27,8 @@
 package com.yeetor.util;
 
 import com.android.ddmlib.*;
-import org.apache.commons.lang3.RandomUtils;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -50,26 +48,4 @@ public class Util {
         return arr;
     }
 
-    /**
-     * 获取闲置端口号
-     * @return
-     */
-    public static int getFreePort() {
-        ServerSocket tmp;
-        int i = 10000;
-        while (true){
-            try{
-                
-                i = RandomUtils.nextInt(10000, 65535);
-                tmp = new ServerSocket(i);
-                tmp.close();
-                tmp = null;
-                return i;
-            }
-            catch(Exception e4){
-                continue;
-            }
-        }
-    }
-
 }